@@ -0,0 +1,94 @@
+package org.switcher;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SpeedRecorder} 的热点路径，recorder按 全局 -> 上游代理 -> 连接 组成三层
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpeedRecorderBenchmark {
+    @State(Scope.Benchmark)
+    public static class Chain {
+        SpeedRecorder global;
+        SpeedRecorder upstream;
+
+        /**
+         * 模拟多个连接共享同一个上游代理
+         */
+        SpeedRecorder[] connections;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            global = new SpeedRecorder();
+            upstream = new SpeedRecorder(global);
+            connections = new SpeedRecorder[64];
+            for (int i = 0; i < connections.length; i++) {
+                connections[i] = new SpeedRecorder(SpeedRecorder.inheritSpeedEstimator(upstream), 1, upstream);
+                connections[i].record(1024);
+            }
+        }
+    }
+
+    /**
+     * 每个线程对应一个连接，和实际运行时一样
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        SpeedRecorder speedRecorder;
+
+        @Setup(Level.Trial)
+        public void setUp(Chain chain) {
+            speedRecorder = chain.connections[(int) (Thread.currentThread().getId() % chain.connections.length)];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void record1(Connection connection) {
+        connection.speedRecorder.record(1460);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void record8(Connection connection) {
+        connection.speedRecorder.record(1460);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void record64(Connection connection) {
+        connection.speedRecorder.record(1460);
+    }
+
+    /**
+     * 读取全局速度，需要合并三层所有的recorder
+     */
+    @Benchmark
+    public long getSpeed(Chain chain) {
+        return chain.global.getSpeed();
+    }
+
+    /**
+     * 读取单个连接的速度
+     */
+    @Benchmark
+    public long getConnectionSpeed(Chain chain) {
+        return chain.connections[0].getSpeed();
+    }
+
+    /**
+     * 一个连接的recorder从创建到断开的开销，单独测量断开时Level.Invocation的开销会比操作本身还大
+     */
+    @Benchmark
+    public void createAndTearDown(Chain chain) {
+        SpeedRecorder speedRecorder = new SpeedRecorder(SpeedRecorder.inheritSpeedEstimator(chain.upstream), 1,
+                chain.upstream);
+        speedRecorder.tearDown();
+    }
+}
@@ -0,0 +1,84 @@
+package org.switcher;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.littleshoot.proxy.ChainedProxy;
+import org.littleshoot.proxy.impl.ClientDetails;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 建立连接时的热点路径：选择上游代理，以及连接的增加和移除
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SwitcherBenchmark {
+    @Param({"10", "100", "1000"})
+    public int upstreams;
+
+    @Param({"CONNECTION_COUNT", "THROUGHPUT", "LATENCY", "HOST_AFFINITY"})
+    public String tactics;
+
+    Switcher switcher;
+
+    HttpRequest httpRequest;
+
+    ClientDetails clientDetails;
+
+    private final AtomicInteger nextPort = new AtomicInteger();
+
+    /**
+     * 和littleproxy一样使用 {@link ConcurrentLinkedQueue}，每加入一个代理都会分配一个节点
+     */
+    @State(Scope.Thread)
+    public static class ChainedProxies {
+        final Queue<ChainedProxy> queue = new ConcurrentLinkedQueue<>();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        switcher = new Switcher((SwitchTactics) Switcher.class.getField(tactics).get(null));
+        for (int i = 0; i < upstreams; i++) {
+            switcher.upstreamProxyManager.add(new InetSocketAddress("127.0.0.1", 10000 + i));
+        }
+        // 让一部分上游代理上已有连接，比较时不会全部相等
+        for (int i = 0; i < upstreams; i += 3) {
+            switcher.connectionManager.add(new InetSocketAddress("127.0.0.1", 1024 + i),
+                    new InetSocketAddress("127.0.0.1", 10000 + i), "http://example.com/");
+        }
+        httpRequest = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "http://example.com/");
+        clientDetails = new ClientDetails();
+        clientDetails.setClientAddress(new InetSocketAddress("127.0.0.1", 50000));
+    }
+
+    @Benchmark
+    public Queue<ChainedProxy> lookupChainedProxies(ChainedProxies chainedProxies) {
+        chainedProxies.queue.clear();
+        switcher.lookupChainedProxies(httpRequest, chainedProxies.queue, clientDetails);
+        return chainedProxies.queue;
+    }
+
+    /**
+     * 一个连接从建立到断开的开销
+     */
+    @Benchmark
+    @Threads(4)
+    public void connectionChurn() {
+        int n = nextPort.getAndIncrement();
+        InetSocketAddress clientSocket = InetSocketAddress.createUnresolved("client", n & 0xffff);
+        switcher.connectionManager.add(clientSocket, new InetSocketAddress("127.0.0.1", 10000 + Math.floorMod(n, upstreams)),
+                "http://example.com/");
+        switcher.connectionManager.remove(clientSocket);
+    }
+}
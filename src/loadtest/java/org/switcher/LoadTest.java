@@ -0,0 +1,293 @@
+package org.switcher;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.sun.net.httpserver.HttpServer;
+import org.littleshoot.proxy.ActivityTrackerAdapter;
+import org.littleshoot.proxy.FlowContext;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 端到端的压力测试，全部在本机完成，不需要网络
+ * <p>
+ * 启动一个提供大小文件的源服务器、若干个限速的上游代理（和README中的示例一样）以及switcher，
+ * 再用多个客户端通过switcher并发下载，最后输出总吞吐量、各上游代理的均衡程度、建立连接的延迟分位数和GC情况。
+ * 用于在同一台机器上比较不同的 {@link SwitchTactics} 和参数
+ * <p>
+ * 参数形如 --name=value，见 {@link #DEFAULTS}，例如：
+ * ./gradlew loadTest -PloadTestArgs="--upstreams=4 --clients=32 --tactics=THROUGHPUT"
+ */
+public class LoadTest {
+    private final static Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        // 上游代理数（不包括直连）
+        DEFAULTS.put("upstreams", "3");
+        // 每个上游代理和直连的下载速度限制（字节/秒）
+        DEFAULTS.put("limit", String.valueOf(100 * 1024));
+        // 并发的客户端数
+        DEFAULTS.put("clients", "16");
+        // 测试时长（秒）
+        DEFAULTS.put("duration", "30");
+        // 大文件和小文件的大小（字节）
+        DEFAULTS.put("large", String.valueOf(4 * 1024 * 1024));
+        DEFAULTS.put("small", String.valueOf(16 * 1024));
+        // 请求大文件的比例
+        DEFAULTS.put("large-ratio", "0.2");
+        // Switcher中的选择策略名，如CONNECTION_COUNT、THROUGHPUT、LATENCY、HOST_AFFINITY
+        DEFAULTS.put("tactics", "CONNECTION_COUNT");
+    }
+
+    private final Map<String, String> options;
+
+    /**
+     * 每个上游代理返回给switcher的字节数
+     */
+    private final Map<InetSocketAddress, AtomicLong> upstreamBytes = new ConcurrentHashMap<>();
+
+    private final AtomicLong clientBytes = new AtomicLong();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * 从发出请求到收到响应头部的时间（微秒），每次请求都新建连接，所以包含了switcher选择代理和建立连接的时间
+     */
+    private final Queue<long[]> latencies = new ConcurrentLinkedQueue<>();
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (!arg.startsWith("--") || i < 0 || !DEFAULTS.containsKey(arg.substring(2, i))) {
+                System.err.println("未知参数 " + arg + "，可用参数及默认值：" + DEFAULTS);
+                System.exit(1);
+            }
+            options.put(arg.substring(2, i), arg.substring(i + 1));
+        }
+        System.out.println("参数：" + options);
+        new LoadTest(options).run();
+        System.exit(0);
+    }
+
+    private HttpServer startOrigin() throws IOException {
+        byte[] large = new byte[intOption("large")];
+        byte[] small = new byte[intOption("small")];
+        new Random(0).nextBytes(large);
+        System.arraycopy(large, 0, small, 0, Math.min(small.length, large.length));
+        HttpServer origin = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        origin.createContext("/", exchange -> {
+            byte[] body = exchange.getRequestURI().getPath().startsWith("/large") ? large : small;
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            } catch (IOException ignored) {
+                // 客户端在测试结束时断开
+            }
+        });
+        origin.setExecutor(Executors.newCachedThreadPool());
+        origin.start();
+        return origin;
+    }
+
+    private HttpProxyServer startUpstream(int i, long limit) {
+        AtomicLong bytes = new AtomicLong();
+        HttpProxyServer upstream = DefaultHttpProxyServer.bootstrap()
+                .withName("upstream" + i)
+                .withPort(0)
+                .withThrottling(limit, 0)
+                .plusActivityTracker(new ActivityTrackerAdapter() {
+                    @Override
+                    public void bytesSentToClient(FlowContext flowContext, int numberOfBytes) {
+                        bytes.addAndGet(numberOfBytes);
+                    }
+                })
+                .start();
+        upstreamBytes.put(upstream.getListenAddress(), bytes);
+        return upstream;
+    }
+
+    private void run() throws Exception {
+        long limit = Long.parseLong(options.get("limit"));
+        HttpServer origin = startOrigin();
+        List<HttpProxyServer> upstreams = new ArrayList<>();
+        for (int i = 0; i < intOption("upstreams"); i++) {
+            upstreams.add(startUpstream(i, limit));
+        }
+        SwitcherHttpProxyServer switcherHttpProxyServer = SwitcherHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withDirectProxyThrottling(limit, 0)
+                .start();
+        Switcher switcher = switcherHttpProxyServer.switcher;
+        switcher.setSwitchTactics((SwitchTactics) Switcher.class.getField(options.get("tactics")).get(null));
+        upstreams.forEach(upstream -> switcher.upstreamProxyManager.add(upstream.getListenAddress()));
+
+        String base = "http://127.0.0.1:" + origin.getAddress().getPort();
+        OkHttpClient client = new OkHttpClient();
+        client.setProxy(new Proxy(Proxy.Type.HTTP, switcherHttpProxyServer.getListenAddress()));
+        // 不复用连接，每次请求都会经过switcher的选择
+        client.setConnectionPool(new ConnectionPool(0, 1));
+        client.setReadTimeout(60, TimeUnit.SECONDS);
+
+        int clients = intOption("clients");
+        double largeRatio = Double.parseDouble(options.get("large-ratio"));
+        long durationNanos = TimeUnit.SECONDS.toNanos(intOption("duration"));
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        GcSnapshot gcBefore = new GcSnapshot();
+        long start = System.nanoTime();
+        long deadline = start + durationNanos;
+        for (int i = 0; i < clients; i++) {
+            executor.execute(() -> drive(client, base, largeRatio, deadline));
+        }
+        executor.shutdown();
+        executor.awaitTermination(durationNanos + TimeUnit.MINUTES.toNanos(1), TimeUnit.NANOSECONDS);
+        long elapsed = System.nanoTime() - start;
+        GcSnapshot gcAfter = new GcSnapshot();
+
+        report(elapsed, gcBefore, gcAfter, limit);
+
+        switcherHttpProxyServer.abort();
+        upstreams.forEach(HttpProxyServer::abort);
+        origin.stop(0);
+    }
+
+    /**
+     * 一个客户端不断下载直到deadline，只有在deadline前完成的下载才计入结果
+     */
+    private void drive(OkHttpClient client, String base, double largeRatio, long deadline) {
+        Random random = new Random();
+        long[] latency = new long[1 << 16];
+        int n = 0;
+        byte[] buffer = new byte[16 * 1024];
+        while (System.nanoTime() < deadline) {
+            String url = base + (random.nextDouble() < largeRatio ? "/large" : "/small") + "?r=" + random.nextInt();
+            long sent = System.nanoTime();
+            long received = 0;
+            try {
+                Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+                if (n == latency.length) {
+                    latencies.add(latency);
+                    latency = new long[latency.length];
+                    n = 0;
+                }
+                latency[n++] = (System.nanoTime() - sent) / 1000;
+                try (InputStream inputStream = response.body().byteStream()) {
+                    int read;
+                    while ((read = inputStream.read(buffer)) >= 0) {
+                        received += read;
+                    }
+                }
+                if (response.code() != 200) {
+                    failures.incrementAndGet();
+                    continue;
+                }
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                continue;
+            }
+            if (System.nanoTime() < deadline) {
+                requests.incrementAndGet();
+                clientBytes.addAndGet(received);
+            }
+        }
+        latencies.add(Arrays.copyOf(latency, n));
+    }
+
+    private static class GcSnapshot {
+        final long count;
+        final long timeMillis;
+        final long allocatedBytes;
+
+        GcSnapshot() {
+            long count = 0;
+            long timeMillis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(gc.getCollectionCount(), 0);
+                timeMillis += Math.max(gc.getCollectionTime(), 0);
+            }
+            this.count = count;
+            this.timeMillis = timeMillis;
+            allocatedBytes = allocatedBytes();
+        }
+
+        /**
+         * 所有存活线程分配过的字节数，已结束的线程不计入，所以只是近似值
+         */
+        private static long allocatedBytes() {
+            java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+                return -1;
+            }
+            long sum = 0;
+            for (long allocated : ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+                sum += Math.max(allocated, 0);
+            }
+            return sum;
+        }
+    }
+
+    private void report(long elapsedNanos, GcSnapshot gcBefore, GcSnapshot gcAfter, long limit) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.printf("完成请求：%d，失败：%d%n", requests.get(), failures.get());
+        System.out.printf("总吞吐量：%s（上限约 %s）%n",
+                SpeedRecorder.prettySpeed((long) (clientBytes.get() / seconds)),
+                SpeedRecorder.prettySpeed(limit * (upstreamBytes.size() + 1)));
+
+        // Jain公平指数，1表示完全均衡，1/n表示全部集中在一个上游代理
+        double sum = 0;
+        double sumOfSquares = 0;
+        System.out.println("各上游代理：");
+        for (Map.Entry<InetSocketAddress, AtomicLong> entry : upstreamBytes.entrySet()) {
+            double speed = entry.getValue().get() / seconds;
+            sum += speed;
+            sumOfSquares += speed * speed;
+            System.out.println("    " + entry.getKey() + "：" + SpeedRecorder.prettySpeed((long) speed));
+        }
+        if (sumOfSquares > 0) {
+            System.out.printf("均衡程度（Jain指数）：%.3f%n", sum * sum / (upstreamBytes.size() * sumOfSquares));
+        }
+
+        long[] sorted = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        if (sorted.length > 0) {
+            System.out.printf("建立连接到收到响应头部（微秒）：p50=%d p99=%d p999=%d max=%d%n",
+                    percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    sorted[sorted.length - 1]);
+        }
+
+        System.out.printf("GC：%d次，共%dms%n", gcAfter.count - gcBefore.count, gcAfter.timeMillis - gcBefore.timeMillis);
+        if (gcBefore.allocatedBytes >= 0) {
+            System.out.printf("分配速率（整个进程，包括客户端和上游代理）：%s%n",
+                    SpeedRecorder.prettySpeed((long) ((gcAfter.allocatedBytes - gcBefore.allocatedBytes) / seconds)));
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
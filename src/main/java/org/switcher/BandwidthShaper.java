@@ -0,0 +1,262 @@
+package org.switcher;
+
+import io.netty.channel.ChannelHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 带宽整形，在全局、每个客户端主机、每个上游代理组（见 {@link UpstreamProxyGroup#setQuota}）和每个上游代理
+ * 这几个层级上限速，所有限制都可以在运行时修改，立即对已有的连接生效
+ * <p>
+ * 每条到服务端的连接上有一个 {@link ThrottleHandler}，同时消费它所属的各个层级的令牌桶，暂停时间取最大值；
+ * 拆分下载的worker不经过netty，由 {@link PieceThrottle} 消费同样的令牌桶。
+ * 令牌桶按消费的先后顺序分配时间片，连接读完一次后排到队尾，而限速时每次读取的量不超过 {@link ThrottleHandler#QUANTUM}，
+ * 所以共享同一个桶的连接大致平分带宽，一个大文件下载不会让同一个桶下的网页浏览饿死
+ */
+public class BandwidthShaper {
+    private final static Logger logger = LoggerFactory.getLogger(BandwidthShaper.class);
+
+    private final Switcher switcher;
+
+    private final TokenBucket globalReadBucket;
+    private final TokenBucket globalWriteBucket;
+
+    /**
+     * 每个客户端主机的令牌桶，在主机第一次建立连接时创建，没有单独设置过限制的主机在最后一个连接关闭时移除
+     */
+    private final Map<InetAddress, ClientHostBuckets> clientHostBuckets;
+
+    /**
+     * 没有单独设置过限制的客户端主机使用的限制
+     */
+    private volatile long defaultClientHostReadThrottle;
+    private volatile long defaultClientHostWriteThrottle;
+
+    private static class ClientHostBuckets {
+        final TokenBucket readBucket = new TokenBucket();
+        final TokenBucket writeBucket = new TokenBucket();
+
+        /**
+         * 是否单独设置过限制，单独设置过的不受默认限制的影响
+         */
+        volatile boolean explicit;
+
+        /**
+         * 使用这些令牌桶的连接数，只在 {@link #clientHostBuckets} 对这个主机的compute中访问
+         */
+        int connections;
+
+        /**
+         * @return 是否可以从 {@link #clientHostBuckets} 中移除
+         */
+        boolean isIdle() {
+            return connections == 0 && !explicit;
+        }
+    }
+
+    BandwidthShaper(Switcher switcher) {
+        this.switcher = switcher;
+        globalReadBucket = new TokenBucket();
+        globalWriteBucket = new TokenBucket();
+        clientHostBuckets = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 设置所有连接共享的速度限制
+     *
+     * @param readThrottleBytesPerSecond  下载速度限制（字节/秒），为0表示不限速
+     * @param writeThrottleBytesPerSecond 上传速度限制（字节/秒），为0表示不限速
+     */
+    public void setGlobalThrottle(long readThrottleBytesPerSecond, long writeThrottleBytesPerSecond) {
+        globalReadBucket.setRate(readThrottleBytesPerSecond);
+        globalWriteBucket.setRate(writeThrottleBytesPerSecond);
+        logger.info("全局限速设为 下载{} 上传{}", readThrottleBytesPerSecond, writeThrottleBytesPerSecond);
+    }
+
+    public long getGlobalReadThrottle() {
+        return globalReadBucket.getRate();
+    }
+
+    public long getGlobalWriteThrottle() {
+        return globalWriteBucket.getRate();
+    }
+
+    /**
+     * 设置某个客户端主机的所有连接共享的速度限制
+     *
+     * @param clientHost                  客户端主机
+     * @param readThrottleBytesPerSecond  下载速度限制（字节/秒），为0表示不限速
+     * @param writeThrottleBytesPerSecond 上传速度限制（字节/秒），为0表示不限速
+     */
+    public void setClientHostThrottle(InetAddress clientHost, long readThrottleBytesPerSecond,
+                                      long writeThrottleBytesPerSecond) {
+        clientHostBuckets.compute(clientHost, (__, existing) -> {
+            ClientHostBuckets buckets = existing == null ? new ClientHostBuckets() : existing;
+            buckets.explicit = true;
+            buckets.readBucket.setRate(readThrottleBytesPerSecond);
+            buckets.writeBucket.setRate(writeThrottleBytesPerSecond);
+            return buckets;
+        });
+        logger.info("客户端主机 {} 限速设为 下载{} 上传{}", clientHost, readThrottleBytesPerSecond,
+                writeThrottleBytesPerSecond);
+    }
+
+    /**
+     * 设置每个客户端主机的默认速度限制，对没有单独设置过限制的主机生效
+     *
+     * @param readThrottleBytesPerSecond  下载速度限制（字节/秒），为0表示不限速
+     * @param writeThrottleBytesPerSecond 上传速度限制（字节/秒），为0表示不限速
+     */
+    public void setDefaultClientHostThrottle(long readThrottleBytesPerSecond, long writeThrottleBytesPerSecond) {
+        defaultClientHostReadThrottle = readThrottleBytesPerSecond;
+        defaultClientHostWriteThrottle = writeThrottleBytesPerSecond;
+        clientHostBuckets.values().forEach(buckets -> {
+            if (!buckets.explicit) {
+                buckets.readBucket.setRate(readThrottleBytesPerSecond);
+                buckets.writeBucket.setRate(writeThrottleBytesPerSecond);
+            }
+        });
+        logger.info("客户端主机的默认限速设为 下载{} 上传{}", readThrottleBytesPerSecond, writeThrottleBytesPerSecond);
+    }
+
+    /**
+     * 清除某个客户端主机单独设置的限制，改为使用默认限制
+     *
+     * @param clientHost 客户端主机
+     */
+    public void resetClientHostThrottle(InetAddress clientHost) {
+        clientHostBuckets.computeIfPresent(clientHost, (__, buckets) -> {
+            buckets.explicit = false;
+            buckets.readBucket.setRate(defaultClientHostReadThrottle);
+            buckets.writeBucket.setRate(defaultClientHostWriteThrottle);
+            return buckets.isIdle() ? null : buckets;
+        });
+    }
+
+    /**
+     * 设置某个上游代理的速度限制，见 {@link UpstreamProxyDetail#setThrottle(long, long)}
+     *
+     * @param proxySocket                 上游代理的socket，直连为 {@link UpstreamProxyManager#DIRECT_CONNECTION}
+     * @param readThrottleBytesPerSecond  下载速度限制（字节/秒），为0表示不限速
+     * @param writeThrottleBytesPerSecond 上传速度限制（字节/秒），为0表示不限速
+     * @return 上游代理是否存在
+     */
+    public boolean setUpstreamThrottle(InetSocketAddress proxySocket, long readThrottleBytesPerSecond,
+                                       long writeThrottleBytesPerSecond) {
+        UpstreamProxyDetail upstreamProxyDetail = switcher.upstreamProxyManager.getDetail(proxySocket);
+        if (upstreamProxyDetail == null) {
+            logger.warn("上游代理 {} 不存在，无法限速", proxySocket);
+            return false;
+        }
+        upstreamProxyDetail.setThrottle(readThrottleBytesPerSecond, writeThrottleBytesPerSecond);
+        return true;
+    }
+
+    /**
+     * 设置某个上游代理组的配额，见 {@link UpstreamProxyGroup#setQuota(long, long)}
+     *
+     * @param groupName                   组名
+     * @param readThrottleBytesPerSecond  下载速度限制（字节/秒），为0表示不限速
+     * @param writeThrottleBytesPerSecond 上传速度限制（字节/秒），为0表示不限速
+     * @return 上游代理组是否存在
+     */
+    public boolean setGroupThrottle(String groupName, long readThrottleBytesPerSecond,
+                                    long writeThrottleBytesPerSecond) {
+        UpstreamProxyGroup group = switcher.upstreamProxyManager.getGroup(groupName);
+        if (group == null) {
+            logger.warn("上游代理组 {} 不存在，无法限速", groupName);
+            return false;
+        }
+        group.setQuota(readThrottleBytesPerSecond, writeThrottleBytesPerSecond);
+        return true;
+    }
+
+    /**
+     * 为一条到服务端的连接创建限速handler
+     *
+     * @param clientHost          客户端主机
+     * @param upstreamProxyDetail 连接所用的上游代理
+     * @param connectionDetail    连接的详细信息，读写的字节会记录到其中
+     * @return {@link ThrottleHandler}
+     */
+    ChannelHandler newHandler(InetAddress clientHost, UpstreamProxyDetail upstreamProxyDetail,
+                              ConnectionDetail connectionDetail) {
+        ClientHostBuckets buckets = acquire(clientHost);
+        return new ThrottleHandler(
+                readBuckets(buckets, upstreamProxyDetail),
+                writeBuckets(buckets, upstreamProxyDetail),
+                connectionDetail.speedRecorder,
+                connectionDetail.uploadSpeedRecorder,
+                new TrafficMetrics[]{upstreamProxyDetail.metrics, switcher.metrics},
+                () -> release(clientHost));
+    }
+
+    /**
+     * 为拆分下载中通过某个上游代理获取块的worker创建限速，和 {@link #newHandler} 消费同样的令牌桶，
+     * 用完后需要调用 {@link PieceThrottle#close()}
+     *
+     * @param clientHost          客户端主机
+     * @param upstreamProxyDetail worker所用的上游代理
+     * @return {@link PieceThrottle}
+     */
+    PieceThrottle newPieceThrottle(InetAddress clientHost, UpstreamProxyDetail upstreamProxyDetail) {
+        ClientHostBuckets buckets = acquire(clientHost);
+        return new PieceThrottle(
+                readBuckets(buckets, upstreamProxyDetail),
+                upstreamProxyDetail.speedRecorder,
+                new TrafficMetrics[]{upstreamProxyDetail.metrics, switcher.metrics},
+                () -> release(clientHost));
+    }
+
+    /**
+     * 客户端主机的一个连接开始使用它的令牌桶，第一个连接建立时创建
+     *
+     * @param clientHost 客户端主机
+     * @return 客户端主机的令牌桶
+     */
+    private ClientHostBuckets acquire(InetAddress clientHost) {
+        return clientHostBuckets.compute(clientHost, (__, existing) -> {
+            ClientHostBuckets newBuckets = existing;
+            if (newBuckets == null) {
+                newBuckets = new ClientHostBuckets();
+                newBuckets.readBucket.setRate(defaultClientHostReadThrottle);
+                newBuckets.writeBucket.setRate(defaultClientHostWriteThrottle);
+            }
+            newBuckets.connections++;
+            return newBuckets;
+        });
+    }
+
+    private TokenBucket[] readBuckets(ClientHostBuckets buckets, UpstreamProxyDetail upstreamProxyDetail) {
+        UpstreamProxyGroup group = upstreamProxyDetail.group;
+        return group == null ?
+                new TokenBucket[]{globalReadBucket, buckets.readBucket, upstreamProxyDetail.readBucket} :
+                new TokenBucket[]{globalReadBucket, buckets.readBucket, group.readBucket,
+                        upstreamProxyDetail.readBucket};
+    }
+
+    private TokenBucket[] writeBuckets(ClientHostBuckets buckets, UpstreamProxyDetail upstreamProxyDetail) {
+        UpstreamProxyGroup group = upstreamProxyDetail.group;
+        return group == null ?
+                new TokenBucket[]{globalWriteBucket, buckets.writeBucket, upstreamProxyDetail.writeBucket} :
+                new TokenBucket[]{globalWriteBucket, buckets.writeBucket, group.writeBucket,
+                        upstreamProxyDetail.writeBucket};
+    }
+
+    /**
+     * 客户端主机的一个连接关闭，最后一个连接关闭时移除没有单独设置过限制的令牌桶
+     *
+     * @param clientHost 客户端主机
+     */
+    private void release(InetAddress clientHost) {
+        clientHostBuckets.computeIfPresent(clientHost, (__, buckets) -> {
+            buckets.connections--;
+            return buckets.isIdle() ? null : buckets;
+        });
+    }
+}
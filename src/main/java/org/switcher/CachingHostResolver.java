@@ -0,0 +1,276 @@
+package org.switcher;
+
+import org.littleshoot.proxy.HostResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * 带缓存的域名解析，通过 {@link org.littleshoot.proxy.HttpProxyServerBootstrap#withServerResolver(HostResolver)} 使用
+ * <p>
+ * 解析在单独的线程池中进行，同一个主机的并发解析会合并为一次；成功的结果缓存 {@link #getTtl()}，
+ * 失败的结果缓存 {@link #getNegativeTtl()}；缓存的结果快过期时会在后台提前刷新，所以常用的主机不会阻塞调用者。
+ * {@link HostResolver} 是同步接口，只有缓存中没有结果时调用者（netty的线程）才需要等待
+ */
+public class CachingHostResolver implements HostResolver {
+    private final static Logger logger = LoggerFactory.getLogger(CachingHostResolver.class);
+
+    public final static long DEFAULT_TTL = 60 * 1000;
+    public final static long DEFAULT_NEGATIVE_TTL = 10 * 1000;
+    public final static int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * 等待解析结果的最长时间（毫秒）
+     */
+    private final static long RESOLVE_TIMEOUT = 10 * 1000;
+
+    /**
+     * 成功的结果经过ttl的这个比例后，下一次使用时在后台刷新
+     */
+    private final static double REFRESH_RATIO = 0.75;
+
+    /**
+     * 超出容量时淘汰到容量的这个比例，从而每次淘汰的开销可以分摊到之后的多次插入上
+     */
+    private final static double EVICT_RATIO = 0.875;
+
+    private final Map<String, Entry> entries;
+
+    private final ExecutorService executor;
+
+    private volatile long ttl;
+
+    private volatile long negativeTtl;
+
+    private volatile int capacity;
+
+    private static class Entry {
+        final CompletableFuture<InetAddress> future;
+
+        /**
+         * 创建时间，值为 {@link SpeedClock#millis()}，过期时间在结果出来后才能确定（成功和失败的ttl不同）
+         */
+        final long createdAt;
+
+        /**
+         * 是否正在后台刷新
+         */
+        volatile boolean refreshing;
+
+        Entry(CompletableFuture<InetAddress> future, long createdAt) {
+            this.future = future;
+            this.createdAt = createdAt;
+        }
+    }
+
+    CachingHostResolver() {
+        entries = new ConcurrentHashMap<>();
+        executor = Executors.newFixedThreadPool(8, runnable -> {
+            Thread thread = new Thread(runnable, "switcher-dns");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ttl = DEFAULT_TTL;
+        negativeTtl = DEFAULT_NEGATIVE_TTL;
+        capacity = DEFAULT_CAPACITY;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        if (ttl < 0) {
+            logger.warn("非法参数ttl={}(<0)，将修改为默认值{}", ttl, DEFAULT_TTL);
+            ttl = DEFAULT_TTL;
+        }
+        this.ttl = ttl;
+    }
+
+    public long getNegativeTtl() {
+        return negativeTtl;
+    }
+
+    public void setNegativeTtl(long negativeTtl) {
+        if (negativeTtl < 0) {
+            logger.warn("非法参数negativeTtl={}(<0)，将修改为默认值{}", negativeTtl, DEFAULT_NEGATIVE_TTL);
+            negativeTtl = DEFAULT_NEGATIVE_TTL;
+        }
+        this.negativeTtl = negativeTtl;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            logger.warn("非法参数capacity={}(<=0)，将修改为默认值{}", capacity, DEFAULT_CAPACITY);
+            capacity = DEFAULT_CAPACITY;
+        }
+        this.capacity = capacity;
+        evict(SpeedClock.millis());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public InetSocketAddress resolve(String host, int port) throws UnknownHostException {
+        return new InetSocketAddress(resolve(host), port);
+    }
+
+    /**
+     * 解析主机名
+     *
+     * @param host 主机名或ip
+     * @return 地址
+     * @throws UnknownHostException 解析失败、超时或在失败的缓存期内
+     */
+    public InetAddress resolve(String host) throws UnknownHostException {
+        return resolve(host, SpeedClock.millis());
+    }
+
+    /**
+     * 和 {@link #resolve(String)} 相同，但指定当前时间
+     *
+     * @param millis 当前的 {@link SpeedClock#millis()}
+     */
+    InetAddress resolve(String host, long millis) throws UnknownHostException {
+        Entry entry = entry(host, millis);
+        try {
+            return entry.future.get(RESOLVE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) e.getCause();
+            }
+            throw unknownHost(host, e.getCause());
+        } catch (TimeoutException e) {
+            throw unknownHost(host, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw unknownHost(host, e);
+        }
+    }
+
+    /**
+     * 在后台开始解析多个主机名，不等待结果，之后的 {@link #resolve(String)} 可以直接使用缓存；
+     * 用于一次添加大量上游代理时并行解析
+     *
+     * @param hosts 主机名或ip
+     */
+    public void prefetch(Collection<String> hosts) {
+        long millis = SpeedClock.millis();
+        hosts.forEach(host -> entry(host, millis));
+    }
+
+    /**
+     * 获取主机的缓存，没有或已过期时开始解析，快要过期时在后台刷新
+     */
+    private Entry entry(String host, long millis) {
+        Entry entry = entries.get(host);
+        if (entry == null || isExpired(entry, millis)) {
+            // 同一个主机只有一个线程会创建新的解析，其它线程等待同一个结果
+            entry = entries.compute(host, (__, oldEntry) ->
+                    oldEntry == null || isExpired(oldEntry, millis) ? lookup(host, millis) : oldEntry);
+            if (entries.size() > capacity) {
+                evict(millis);
+            }
+        } else if (!entry.refreshing && entry.future.isDone() && !entry.future.isCompletedExceptionally() &&
+                millis - entry.createdAt > ttl * REFRESH_RATIO) {
+            refresh(host, entry, millis);
+        }
+        return entry;
+    }
+
+    private static UnknownHostException unknownHost(String host, Throwable cause) {
+        UnknownHostException unknownHostException = new UnknownHostException(host);
+        unknownHostException.initCause(cause);
+        return unknownHostException;
+    }
+
+    private boolean isExpired(Entry entry, long millis) {
+        if (!entry.future.isDone()) {
+            return false;
+        }
+        long age = millis - entry.createdAt;
+        return entry.future.isCompletedExceptionally() ? age >= negativeTtl : age >= ttl;
+    }
+
+    private Entry lookup(String host, long millis) {
+        return new Entry(CompletableFuture.supplyAsync(() -> {
+            try {
+                return lookupAddress(host);
+            } catch (UnknownHostException e) {
+                logger.info("无法解析 {}", host);
+                throw new CompletionException(e);
+            }
+        }, executor), millis);
+    }
+
+    /**
+     * 实际的解析，在线程池中调用
+     *
+     * @param host 主机名或ip
+     * @return 地址
+     * @throws UnknownHostException 解析失败
+     */
+    InetAddress lookupAddress(String host) throws UnknownHostException {
+        return InetAddress.getByName(host);
+    }
+
+    /**
+     * 在后台解析，成功后替换旧的结果，失败时保留旧的结果直到过期
+     */
+    private void refresh(String host, Entry entry, long millis) {
+        entry.refreshing = true;
+        Entry newEntry = lookup(host, millis);
+        newEntry.future.whenComplete((address, throwable) -> {
+            if (throwable == null) {
+                entries.replace(host, entry, newEntry);
+            } else {
+                entry.refreshing = false;
+            }
+        });
+    }
+
+    /**
+     * 超出容量时淘汰记录，先淘汰过期的，再按创建时间淘汰到容量的 {@link #EVICT_RATIO}，至少保留一个
+     *
+     * @param millis 当前的 {@link SpeedClock#millis()}
+     */
+    private synchronized void evict(long millis) {
+        int capacity = this.capacity;
+        if (entries.size() <= capacity) {
+            // 其它线程已经淘汰过了
+            return;
+        }
+        entries.values().removeIf(entry -> isExpired(entry, millis));
+        int excess = entries.size() - Math.max(1, (int) (capacity * EVICT_RATIO));
+        if (excess <= 0) {
+            return;
+        }
+        List<Map.Entry<String, Entry>> eldest = new ArrayList<>(entries.entrySet());
+        eldest.sort(Comparator.comparingLong(mapEntry -> mapEntry.getValue().createdAt));
+        for (Map.Entry<String, Entry> mapEntry : eldest.subList(0, excess)) {
+            entries.remove(mapEntry.getKey(), mapEntry.getValue());
+        }
+    }
+}
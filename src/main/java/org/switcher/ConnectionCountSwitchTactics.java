@@ -0,0 +1,30 @@
+package org.switcher;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.ChainedProxy;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * 通过连接数来比较两个代理的拥挤程度
+ * <p>
+ * 建立连接时使用 {@link PowerOfTwoChoices}，不需要排序所有的代理
+ */
+public class ConnectionCountSwitchTactics implements SwitchTactics {
+    private final static Comparator<UpstreamProxyDetail> COMPARATOR =
+            Comparator.comparingInt(UpstreamProxyDetail::getRelevantConnectionSize);
+
+    @Override
+    public List<UpstreamProxyPair> getRank(String uri, List<UpstreamProxyPair> proxyPairs) {
+        proxyPairs.sort(Comparator.comparingInt(upstreamProxyPair ->
+                upstreamProxyPair.upstreamProxyDetail.getRelevantConnectionSize()));
+        return proxyPairs;
+    }
+
+    @Override
+    public void select(HttpRequest httpRequest, UpstreamProxyPair[] proxyPairs, Queue<ChainedProxy> chainedProxies) {
+        PowerOfTwoChoices.select(proxyPairs, COMPARATOR, chainedProxies);
+    }
+}
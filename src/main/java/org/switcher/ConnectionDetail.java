@@ -11,26 +11,62 @@ public class ConnectionDetail {
      */
     public final InetSocketAddress proxySocket;
 
+    /**
+     * 此连接所对应的上游代理，上游代理不存在时为null；上游代理被移除后仍然保留，用于续传后减去它的连接数
+     */
+    final UpstreamProxyDetail upstreamProxyDetail;
+
     /**
      * 服务端uri
      */
     public final String uri;
 
+    /**
+     * 下载和上传的速度，都在 {@link ThrottleHandler} 中按线路上的字节数记录
+     */
     public final SpeedRecorder speedRecorder;
+    public final SpeedRecorder uploadSpeedRecorder;
+
+    /**
+     * CONNECT请求建立到服务端的连接的时间，值为 {@link System#nanoTime()}，
+     * 用于计算之后中间人和客户端tls握手的耗时，记录后清零
+     */
+    volatile long tunnelEstablishedAt;
+
+    /**
+     * 连接上是否正在进行可以续传的下载，由netty的线程写入、{@link Rebalancer} 读取
+     */
+    volatile boolean resumable;
+
+    /**
+     * 是否需要迁移到其它上游代理，由 {@link Rebalancer} 设置，{@link SwitcherHttpFilter} 续传后清除
+     */
+    volatile boolean migrate;
+
+    /**
+     * 下载开始持续变慢的时间，值为 {@link SpeedClock#millis()}，为0表示不慢，只被 {@link Rebalancer} 访问
+     */
+    volatile long slowSince;
 
     /**
-     * 连接是否被中止
+     * 连接是否被中止，由管理线程写入、netty的线程读取
      */
-    boolean abort;
+    volatile boolean abort;
 
     /**
-     * @param proxySocket 上游代理的地址
-     * @param uri         目标uri
+     * @param proxySocket         上游代理的地址
+     * @param uri                 目标uri
+     * @param upstreamProxyDetail 上游代理，不存在时为null
      */
-    ConnectionDetail(InetSocketAddress proxySocket, String uri, SpeedRecorder parent) {
+    ConnectionDetail(InetSocketAddress proxySocket, String uri, UpstreamProxyDetail upstreamProxyDetail) {
         this.proxySocket = proxySocket;
         this.uri = uri;
-        speedRecorder = new SpeedRecorder(parent);
+        this.upstreamProxyDetail = upstreamProxyDetail;
+        SpeedRecorder parent = upstreamProxyDetail != null ? upstreamProxyDetail.speedRecorder : null;
+        SpeedRecorder uploadParent = upstreamProxyDetail != null ? upstreamProxyDetail.uploadSpeedRecorder : null;
+        // 单个连接只会被少数线程写入，不需要分段
+        speedRecorder = new SpeedRecorder(SpeedRecorder.inheritSpeedEstimator(parent), 1, parent);
+        uploadSpeedRecorder = new SpeedRecorder(SpeedRecorder.inheritSpeedEstimator(uploadParent), 1, uploadParent);
         abort = false;
     }
 
@@ -1,5 +1,6 @@
 package org.switcher;
 
+import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.switcher.exception.ConnectionAlreadySetupException;
@@ -21,7 +22,12 @@ public class ConnectionManager {
     private final static Logger logger = LoggerFactory.getLogger(ConnectionManager.class);
 
     /**
-     * 连接映射，方便通过 {@link InetSocketAddress} 来查找其详细信息
+     * 客户端channel上的连接详细信息，转发数据时直接从channel上取，不需要查找映射
+     */
+    final static AttributeKey<ConnectionDetail> CONNECTION_DETAIL = AttributeKey.valueOf("switcher.connectionDetail");
+
+    /**
+     * 连接映射，只用于枚举和管理，方便通过 {@link InetSocketAddress} 来查找其详细信息
      */
     final Map<InetSocketAddress, ConnectionDetail> connections;
 
@@ -56,16 +62,10 @@ public class ConnectionManager {
      * @param clientSocket 客户端的socket
      * @param proxySocket  上游代理的socket
      * @param uri          目标uri
+     * @return 连接的详细信息，客户端的socket已存在时为已有的连接
      */
-    void add(InetSocketAddress clientSocket, InetSocketAddress proxySocket, String uri) {
+    ConnectionDetail add(InetSocketAddress clientSocket, InetSocketAddress proxySocket, String uri) {
         UpstreamProxyDetail upstreamProxyDetail = switcher.upstreamProxyManager.sureGetDetail(proxySocket);
-        SpeedRecorder parent = null;
-        if (upstreamProxyDetail != null) {
-            // 由于upstreamProxy可能在被获取后又恰好被释放，因此需要获取状态锁
-            upstreamProxyDetail.stateLock.readLock().lock();
-            parent = upstreamProxyDetail.speedRecorder;
-        }
-        SpeedRecorder finalParent = parent;
 
         // 用AtomicBoolean并不是为了原子性，可以用new boolean[]{true}来代替
         AtomicBoolean contains = new AtomicBoolean(true);
@@ -74,20 +74,17 @@ public class ConnectionManager {
         ConnectionDetail connectionDetail = connections.computeIfAbsent(clientSocket, __ -> {
             // 此处如果修改boolean则会报错，所以才需要用引用的方式
             contains.set(false);
-            return new ConnectionDetail(proxySocket, uri, finalParent);
+            return new ConnectionDetail(proxySocket, uri, upstreamProxyDetail);
         });
 
-        if (upstreamProxyDetail != null) {
-            if (!contains.get()) {
-                upstreamProxyDetail.relevantConnections.add(clientSocket);
-            }
-            if (upstreamProxyDetail.removed) {
-                // 如果upstreamProxy恰好被移除了，那么需要中止这一个连接
+        // 如果upstreamProxy不存在或恰好被移除了，那么需要中止这一个连接
+        if (upstreamProxyDetail == null) {
+            connectionDetail.abort = true;
+        } else if (!contains.get()) {
+            if (!upstreamProxyDetail.addConnection(clientSocket)) {
                 connectionDetail.abort = true;
             }
-            // 释放锁
-            upstreamProxyDetail.stateLock.readLock().unlock();
-        } else {
+        } else if (upstreamProxyDetail.isRemoved()) {
             connectionDetail.abort = true;
         }
 
@@ -101,6 +98,7 @@ public class ConnectionManager {
         } else {
             logger.info("新增{}", connectionChain(clientSocket, proxySocket, uri));
         }
+        return connectionDetail;
     }
 
     public int size() {
@@ -152,10 +150,11 @@ public class ConnectionManager {
             logger.debug(UNEXPECTED_EXCEPTION, new ConnectionNotFoundException());
         } else {
             connectionDetail.speedRecorder.tearDown();
-            UpstreamProxyDetail upstreamProxyDetail = switcher.upstreamProxyManager
-                    .sureGetDetail(connectionDetail.proxySocket);
+            connectionDetail.uploadSpeedRecorder.tearDown();
+            // 上游代理可能已经被移除，仍然减去它的连接数
+            UpstreamProxyDetail upstreamProxyDetail = connectionDetail.upstreamProxyDetail;
             if (upstreamProxyDetail != null) {
-                upstreamProxyDetail.relevantConnections.remove(clientSocket);
+                upstreamProxyDetail.removeConnection(clientSocket);
             }
             logger.info("移除连接 {}", clientSocket);
         }
@@ -0,0 +1,50 @@
+package org.switcher;
+
+import java.util.Locale;
+
+/**
+ * 建立连接的各个阶段，每个阶段的耗时分别记录到全局和上游代理的 {@link TrafficMetrics} 中
+ */
+public enum ConnectionPhase {
+    /**
+     * 选择上游代理，即 {@link Switcher#lookupChainedProxies}，此时还不知道会使用哪个上游代理，只记录到全局
+     */
+    SELECT,
+
+    /**
+     * 解析服务端的地址
+     */
+    RESOLVE,
+
+    /**
+     * 失败的连接尝试所耗费的时间，即从第一次尝试到最后一次（成功的）尝试开始，只有发生过回退时才记录
+     */
+    FALLBACK,
+
+    /**
+     * 建立tcp连接，使用上游代理时还包括CONNECT请求，不包括和服务端的tls握手
+     */
+    CONNECT,
+
+    /**
+     * 和服务端的tls握手
+     */
+    SERVER_HANDSHAKE,
+
+    /**
+     * 中间人和客户端的tls握手，从到服务端的连接建立成功开始计算
+     */
+    CLIENT_HANDSHAKE,
+
+    /**
+     * 从收到请求到连接建立成功的总耗时
+     */
+    TOTAL;
+
+    /**
+     * 导出时使用的名称
+     */
+    String label() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
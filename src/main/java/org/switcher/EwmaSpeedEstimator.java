@@ -0,0 +1,68 @@
+package org.switcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 指数加权移动平均：每个桶的权重随其年龄按半衰期指数衰减，越新的数据影响越大，
+ * 能比固定窗口更快地反映速度的变化
+ */
+public class EwmaSpeedEstimator implements SpeedEstimator {
+    private final static Logger logger = LoggerFactory.getLogger(EwmaSpeedEstimator.class);
+
+    public final static int DEFAULT_HALF_LIFE = 1000;
+    public final static int DEFAULT_RESOLUTION = 100;
+
+    /**
+     * 保留的半衰期个数，更旧的桶的权重已经不足1/16，可以忽略
+     */
+    private final static int HALF_LIVES = 4;
+
+    private final int halfLifeMillis;
+    private final int resolution;
+
+    /**
+     * @param halfLifeMillis 半衰期（毫秒）
+     * @param resolution     每个桶的时长（毫秒）
+     */
+    public EwmaSpeedEstimator(int halfLifeMillis, int resolution) {
+        if (halfLifeMillis <= 0) {
+            logger.warn("非法参数halfLifeMillis={}(<=0)，将修改为默认值{}", halfLifeMillis, DEFAULT_HALF_LIFE);
+            halfLifeMillis = DEFAULT_HALF_LIFE;
+        }
+        if (resolution <= 0) {
+            logger.warn("非法参数resolution={}(<=0)，将修改为默认值{}", resolution, DEFAULT_RESOLUTION);
+            resolution = DEFAULT_RESOLUTION;
+        }
+        this.halfLifeMillis = halfLifeMillis;
+        this.resolution = resolution;
+    }
+
+    @Override
+    public int getResolution() {
+        return resolution;
+    }
+
+    @Override
+    public int getSize() {
+        return (HALF_LIVES * halfLifeMillis + resolution - 1) / resolution + 1;
+    }
+
+    @Override
+    public long estimate(SpeedWindow window) {
+        double weightedValue = 0;
+        double weightedDuration = 0;
+        // 当前桶的时长为已经经过的时间，为避免除0至少取1毫秒
+        double duration = Math.max(window.getElapsed(), 1);
+        double age = 0;
+        for (int i = 0; i < window.size(); i++) {
+            // 以桶的中点作为其年龄
+            double weight = Math.pow(0.5, (age + duration / 2) / halfLifeMillis);
+            weightedValue += window.get(i) * weight;
+            weightedDuration += duration * weight;
+            age += duration;
+            duration = resolution;
+        }
+        return (long) (weightedValue * 1000 / weightedDuration);
+    }
+}
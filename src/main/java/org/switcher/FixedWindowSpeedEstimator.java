@@ -0,0 +1,34 @@
+package org.switcher;
+
+/**
+ * 固定窗口：以秒为单位分桶，取最近size秒的平均值（包括尚未结束的当前秒）
+ */
+public class FixedWindowSpeedEstimator implements SpeedEstimator {
+    private final int size;
+
+    /**
+     * @param size 窗口的秒数
+     */
+    public FixedWindowSpeedEstimator(int size) {
+        this.size = size;
+    }
+
+    @Override
+    public int getResolution() {
+        return 1000;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public long estimate(SpeedWindow window) {
+        long totalValue = 0;
+        for (int age = 0; age < window.size(); age++) {
+            totalValue += window.get(age);
+        }
+        return totalValue / window.size();
+    }
+}
@@ -0,0 +1,196 @@
+package org.switcher;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.ChainedProxy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 先在上游代理组之间按权重选择，再由 {@link #inner} 在组内选择
+ * <p>
+ * 同一个组（见 {@link UpstreamProxyGroup}）的上游代理共享同一个物理瓶颈，如果把它们当作互相独立的容量，
+ * 连接会不断地超额分配给这个瓶颈。所以组被当作一个整体：随机选两个组，按加权的连接数比较，即组内连接数加一除以权重，
+ * 较小的作为首选；速度接近配额的组排在未饱和的组后面。和 {@link PowerOfTwoChoices} 一样只比较一次，
+ * 大量连接同时创建时也不会都选中同一个组。
+ * <p>
+ * 不属于任何组、也没有单独设置过权重的上游代理（包括直连）合在一起作为一个组，权重为它们的权重之和，
+ * 组内仍由 {@link #inner} 比较；单独设置过权重（见 {@link UpstreamProxyManager#setWeight}）的上游代理各自作为一个组。
+ * 首选组内选出的代理之后，加入另一个组选出的代理作为备选，这样首选组整体连接失败时可以换到另一个瓶颈上。
+ * <p>
+ * 组的划分在 {@link UpstreamProxyManager#rebuildSnapshot()} 时随快照一起计算，见 {@link Partition}，
+ * 选择时只读取组的连接数，不分配对象
+ */
+public class GroupSwitchTactics implements SwitchTactics {
+    /**
+     * 没有单独设置过权重的上游代理在 {@link Partition} 中的键
+     */
+    private final static Object UNGROUPED = new Object();
+
+    /**
+     * 在组内选择代理使用的策略
+     */
+    private final SwitchTactics inner;
+
+    /**
+     * 提供随快照一起计算的划分，为null时每次选择都临时划分
+     */
+    private final UpstreamProxyManager upstreamProxyManager;
+
+    /**
+     * @param inner 在组内选择代理使用的策略
+     */
+    public GroupSwitchTactics(SwitchTactics inner) {
+        this(inner, null);
+    }
+
+    /**
+     * @param inner                在组内选择代理使用的策略
+     * @param upstreamProxyManager 提供随快照一起计算的划分，见 {@link UpstreamProxyManager#partition()}
+     */
+    GroupSwitchTactics(SwitchTactics inner, UpstreamProxyManager upstreamProxyManager) {
+        this.inner = inner;
+        this.upstreamProxyManager = upstreamProxyManager;
+    }
+
+    /**
+     * 一个组可以使用的上游代理
+     */
+    private static class Bucket {
+        final UpstreamProxyGroup group;
+
+        final UpstreamProxyPair[] proxyPairs;
+
+        /**
+         * 不属于任何组的上游代理的权重之和，它们的权重修改时会重建快照
+         */
+        final int weight;
+
+        Bucket(List<UpstreamProxyPair> proxyPairs) {
+            this.proxyPairs = proxyPairs.toArray(new UpstreamProxyPair[0]);
+            group = this.proxyPairs[0].upstreamProxyDetail.group;
+            int weight = 0;
+            for (UpstreamProxyPair upstreamProxyPair : this.proxyPairs) {
+                weight += upstreamProxyPair.upstreamProxyDetail.getWeight();
+            }
+            this.weight = weight;
+        }
+
+        int weight() {
+            return group == null ? weight : group.getWeight();
+        }
+
+        /**
+         * @return 组的连接数，不属于任何组的上游代理很少，直接相加
+         */
+        int connections() {
+            if (group != null) {
+                return group.getRelevantConnectionSize();
+            }
+            int connections = 0;
+            for (UpstreamProxyPair upstreamProxyPair : proxyPairs) {
+                connections += upstreamProxyPair.upstreamProxyDetail.getRelevantConnectionSize();
+            }
+            return connections;
+        }
+
+        boolean isSaturated(TrafficDirection direction) {
+            return group != null && group.isSaturated(direction);
+        }
+    }
+
+    /**
+     * 按组划分的可以使用的上游代理，不可变
+     */
+    static final class Partition {
+        /**
+         * 被划分的上游代理，选择时按引用比较，确认传入的就是这个数组
+         */
+        final UpstreamProxyPair[] proxyPairs;
+
+        private final Bucket[] buckets;
+
+        /**
+         * @param proxyPairs 可以使用的上游代理，不能修改
+         */
+        Partition(UpstreamProxyPair[] proxyPairs) {
+            this.proxyPairs = proxyPairs;
+            // 不属于任何组的上游代理以自身或UNGROUPED为键
+            Map<Object, List<UpstreamProxyPair>> members = new LinkedHashMap<>();
+            for (UpstreamProxyPair upstreamProxyPair : proxyPairs) {
+                UpstreamProxyDetail upstreamProxyDetail = upstreamProxyPair.upstreamProxyDetail;
+                UpstreamProxyGroup group = upstreamProxyDetail.group;
+                Object key = group != null ? group : upstreamProxyDetail.getWeight() == UpstreamProxyGroup.DEFAULT_WEIGHT ?
+                        UNGROUPED : upstreamProxyDetail;
+                members.computeIfAbsent(key, __ -> new ArrayList<>()).add(upstreamProxyPair);
+            }
+            buckets = new Bucket[members.size()];
+            int i = 0;
+            for (List<UpstreamProxyPair> upstreamProxyPairs : members.values()) {
+                buckets[i++] = new Bucket(upstreamProxyPairs);
+            }
+        }
+    }
+
+    @Override
+    public List<UpstreamProxyPair> getRank(String uri, List<UpstreamProxyPair> proxyPairs) {
+        // 拆分下载需要同时使用多个代理，由inner排序
+        return inner.getRank(uri, proxyPairs);
+    }
+
+    /**
+     * @param proxyPairs 可以使用的上游代理
+     * @return 快照的划分，传入的不是快照（如过滤掉了禁忌的代理）或者快照已经重建时临时划分
+     */
+    private Partition partition(UpstreamProxyPair[] proxyPairs) {
+        if (upstreamProxyManager != null) {
+            Partition partition = upstreamProxyManager.partition();
+            if (partition.proxyPairs == proxyPairs) {
+                return partition;
+            }
+        }
+        return new Partition(proxyPairs);
+    }
+
+    /**
+     * 未饱和的在前，再比较加权的连接数，即 (connections + 1) / weight，交叉相乘避免除法
+     */
+    private static int compare(Bucket bucket, Bucket other, TrafficDirection direction) {
+        boolean saturated = bucket.isSaturated(direction);
+        if (saturated != other.isSaturated(direction)) {
+            return saturated ? 1 : -1;
+        }
+        return Long.compare((long) (bucket.connections() + 1) * other.weight(),
+                (long) (other.connections() + 1) * bucket.weight());
+    }
+
+    @Override
+    public void select(HttpRequest httpRequest, UpstreamProxyPair[] proxyPairs, Queue<ChainedProxy> chainedProxies) {
+        Bucket[] buckets = partition(proxyPairs).buckets;
+        int size = buckets.length;
+        if (size <= 1) {
+            inner.select(httpRequest, proxyPairs, chainedProxies);
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // 在size个组中选出两个不同的，相同时保持随机的顺序
+        int i = random.nextInt(size);
+        int j = random.nextInt(size - 1);
+        if (j >= i) {
+            ++j;
+        }
+        Bucket first = buckets[i];
+        Bucket second = buckets[j];
+        if (compare(second, first, TrafficDirection.of(httpRequest)) < 0) {
+            Bucket temp = first;
+            first = second;
+            second = temp;
+        }
+        inner.select(httpRequest, first.proxyPairs, chainedProxies);
+        inner.select(httpRequest, second.proxyPairs, chainedProxies);
+    }
+}
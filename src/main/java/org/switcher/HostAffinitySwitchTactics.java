@@ -0,0 +1,249 @@
+package org.switcher;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.ChainedProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 让同一个目标服务器的连接尽量使用同一个上游代理
+ * <p>
+ * 对每个目标服务器记住上一次选中的上游代理，只有当它不可用、被移除或者按 {@link SpeedRecorder} 已经饱和时，
+ * 才交给 {@link #fallback} 重新选择。这样上游代理到目标服务器的keep-alive连接和tcp慢启动的窗口可以被复用，
+ * 小请求的延迟更低；而大文件会使上游代理饱和，后续连接仍会被分散到其它代理上。
+ * 记录在一段时间没有使用后过期，表的大小有上限，超出时先淘汰过期的记录，再淘汰最久没有被使用的记录，
+ * 直到容量的 {@link #EVICT_RATIO}
+ */
+public class HostAffinitySwitchTactics implements SwitchTactics {
+    private final static Logger logger = LoggerFactory.getLogger(HostAffinitySwitchTactics.class);
+
+    public final static int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * 记录在这么久（毫秒）没有被使用后过期
+     */
+    public final static long DEFAULT_TTL = 60 * 1000;
+
+    /**
+     * 速度达到观测到的上限的这么多比例时，认为上游代理已经饱和
+     */
+    private final static double SATURATION = 0.9;
+
+    /**
+     * 超出容量时淘汰到容量的这个比例，从而每次淘汰的开销可以分摊到之后的多次选择上
+     */
+    final static double EVICT_RATIO = 0.875;
+
+    /**
+     * 没有记录或需要重新选择时使用的策略
+     */
+    private final SwitchTactics fallback;
+
+    private final Map<String, Affinity> affinities;
+
+    private volatile int capacity;
+
+    private volatile long ttl;
+
+    private static class Affinity {
+        final UpstreamProxyDetail upstreamProxyDetail;
+
+        /**
+         * 最近一次使用的时间，值为 {@link SpeedClock#millis()}
+         */
+        volatile long accessedAt;
+
+        Affinity(UpstreamProxyDetail upstreamProxyDetail, long accessedAt) {
+            this.upstreamProxyDetail = upstreamProxyDetail;
+            this.accessedAt = accessedAt;
+        }
+    }
+
+    public HostAffinitySwitchTactics() {
+        this(new ThroughputSwitchTactics());
+    }
+
+    /**
+     * @param fallback 没有记录或需要重新选择时使用的策略
+     */
+    public HostAffinitySwitchTactics(SwitchTactics fallback) {
+        this.fallback = fallback;
+        affinities = new ConcurrentHashMap<>();
+        capacity = DEFAULT_CAPACITY;
+        ttl = DEFAULT_TTL;
+    }
+
+    /**
+     * 创建一个参数相同、记录为空的实例，记录属于某个 {@link Switcher}，不能在多个Switcher之间共享
+     *
+     * @return 新的实例
+     */
+    HostAffinitySwitchTactics newInstance() {
+        HostAffinitySwitchTactics hostAffinitySwitchTactics = new HostAffinitySwitchTactics(fallback);
+        hostAffinitySwitchTactics.capacity = capacity;
+        hostAffinitySwitchTactics.ttl = ttl;
+        return hostAffinitySwitchTactics;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            logger.warn("非法参数capacity={}(<=0)，将修改为默认值{}", capacity, DEFAULT_CAPACITY);
+            capacity = DEFAULT_CAPACITY;
+        }
+        this.capacity = capacity;
+        evict(SpeedClock.millis());
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        if (ttl <= 0) {
+            logger.warn("非法参数ttl={}(<=0)，将修改为默认值{}", ttl, DEFAULT_TTL);
+            ttl = DEFAULT_TTL;
+        }
+        this.ttl = ttl;
+    }
+
+    public int size() {
+        return affinities.size();
+    }
+
+    /**
+     * @param upstreamProxyDetail 上游代理
+     * @param direction           请求的主要方向
+     * @return 对应方向的速度是否已经接近观测到的上限，还没有观测到流量或没有连接时认为没有饱和
+     */
+    private static boolean isSaturated(UpstreamProxyDetail upstreamProxyDetail, TrafficDirection direction) {
+        if (upstreamProxyDetail.getRelevantConnectionSize() == 0) {
+            return false;
+        }
+        UpstreamProxyDetail.Sample sample = upstreamProxyDetail.sample(direction);
+        return sample.ceiling != 0 && sample.speed >= sample.ceiling * SATURATION;
+    }
+
+    private static boolean contains(UpstreamProxyPair[] proxyPairs, UpstreamProxyDetail upstreamProxyDetail) {
+        for (UpstreamProxyPair upstreamProxyPair : proxyPairs) {
+            if (upstreamProxyPair.upstreamProxyDetail == upstreamProxyDetail) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static UpstreamProxyDetail find(UpstreamProxyPair[] proxyPairs, ChainedProxy chainedProxy) {
+        for (UpstreamProxyPair upstreamProxyPair : proxyPairs) {
+            if (upstreamProxyPair.upstreamProxyDetail.chainedProxy == chainedProxy) {
+                return upstreamProxyPair.upstreamProxyDetail;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<UpstreamProxyPair> getRank(String uri, List<UpstreamProxyPair> proxyPairs) {
+        // 拆分下载等需要同时使用多个代理的场景，不需要亲和
+        return fallback.getRank(uri, proxyPairs);
+    }
+
+    @Override
+    public void select(HttpRequest httpRequest, UpstreamProxyPair[] proxyPairs, Queue<ChainedProxy> chainedProxies) {
+        select(httpRequest, proxyPairs, chainedProxies, SpeedClock.millis());
+    }
+
+    /**
+     * 和 {@link #select(HttpRequest, UpstreamProxyPair[], Queue)} 相同，但可以指定当前时间
+     *
+     * @param millis 当前时间，值为 {@link SpeedClock#millis()}
+     */
+    void select(HttpRequest httpRequest, UpstreamProxyPair[] proxyPairs, Queue<ChainedProxy> chainedProxies,
+                long millis) {
+        String host = Tabu.hostOf(httpRequest);
+        if (host.equals(Tabu.ANY_HOST)) {
+            fallback.select(httpRequest, proxyPairs, chainedProxies);
+            return;
+        }
+        Affinity affinity = affinities.get(host);
+        if (affinity != null && millis - affinity.accessedAt < ttl && !affinity.upstreamProxyDetail.isRemoved() &&
+                contains(proxyPairs, affinity.upstreamProxyDetail) &&
+                !isSaturated(affinity.upstreamProxyDetail, TrafficDirection.of(httpRequest))) {
+            affinity.accessedAt = millis;
+            ChainedProxy chainedProxy = affinity.upstreamProxyDetail.chainedProxy;
+            chainedProxies.add(chainedProxy);
+            // 备选的代理仍然由fallback选择，跳过重复的
+            Queue<ChainedProxy> candidates = new ArrayDeque<>(PowerOfTwoChoices.MAX_SELECTED);
+            fallback.select(httpRequest, proxyPairs, candidates);
+            for (ChainedProxy candidate : candidates) {
+                if (candidate != chainedProxy) {
+                    chainedProxies.add(candidate);
+                }
+            }
+            return;
+        }
+
+        // 没有记录、记录过期、代理不可用或已饱和，重新选择并记住首选的代理
+        Queue<ChainedProxy> candidates = new ArrayDeque<>(PowerOfTwoChoices.MAX_SELECTED);
+        fallback.select(httpRequest, proxyPairs, candidates);
+        UpstreamProxyDetail upstreamProxyDetail = find(proxyPairs, candidates.peek());
+        chainedProxies.addAll(candidates);
+        if (upstreamProxyDetail != null) {
+            affinities.put(host, new Affinity(upstreamProxyDetail, millis));
+            if (affinities.size() > capacity) {
+                evict(millis);
+            }
+        }
+    }
+
+    /**
+     * 超出容量时淘汰记录，先淘汰过期的，再按最近一次使用的时间淘汰到容量的 {@link #EVICT_RATIO}
+     *
+     * @param millis 当前时间，值为 {@link SpeedClock#millis()}
+     */
+    private synchronized void evict(long millis) {
+        int capacity = this.capacity;
+        if (affinities.size() <= capacity) {
+            // 其它线程已经淘汰过了
+            return;
+        }
+        long ttl = this.ttl;
+        affinities.values().removeIf(affinity -> millis - affinity.accessedAt >= ttl ||
+                affinity.upstreamProxyDetail.isRemoved());
+        int excess = affinities.size() - (int) (capacity * EVICT_RATIO);
+        if (excess <= 0) {
+            return;
+        }
+        // accessedAt在排序时可能被修改，所以先取快照，再按快照找出第excess早的时间
+        List<Map.Entry<String, Affinity>> mapEntries = new ArrayList<>(affinities.entrySet());
+        excess = Math.min(excess, mapEntries.size());
+        if (excess <= 0) {
+            return;
+        }
+        long[] accessedAts = new long[mapEntries.size()];
+        for (int i = 0; i < accessedAts.length; i++) {
+            accessedAts[i] = mapEntries.get(i).getValue().accessedAt;
+        }
+        long[] sorted = accessedAts.clone();
+        Arrays.sort(sorted);
+        long threshold = sorted[excess - 1];
+        for (int i = 0; i < accessedAts.length && excess > 0; i++) {
+            if (accessedAts[i] <= threshold) {
+                Map.Entry<String, Affinity> mapEntry = mapEntries.get(i);
+                affinities.remove(mapEntry.getKey(), mapEntry.getValue());
+                --excess;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.switcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的延迟直方图，和HdrHistogram一样按对数-线性分桶：每个2的幂区间再等分为 {@link #SUB_BUCKETS} 个桶，
+ * 相对误差不超过1/{@link #SUB_BUCKETS}；只覆盖到2^{@link #MAX_BITS}（以微秒计约35分钟），更大的值记在最后一个桶，
+ * 这样每个直方图只有两百多个桶，每个上游代理的每个阶段各有一个也不会占用太多内存
+ * <p>
+ * 记录时只对一个桶和总和各做一次原子加，读取时直接遍历计数，不需要加锁；读取到的各项之间不保证是同一时刻的快照
+ */
+public class LatencyHistogram {
+    private final static int SUB_BUCKET_BITS = 3;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int MAX_BITS = 31;
+    private final static int BUCKETS = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+
+    private final AtomicLong sum;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        sum = new AtomicLong();
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int mantissa = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return Math.min((shift + 1) * SUB_BUCKETS + mantissa, BUCKETS - 1);
+    }
+
+    /**
+     * @param index 桶的下标
+     * @return 桶的上界（不包含）
+     */
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        if (index == BUCKETS - 1) {
+            // 最后一个桶还包含了所有超出范围的值
+            return Long.MAX_VALUE;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift;
+    }
+
+    /**
+     * 记录一个值，负数按0记录
+     *
+     * @param value 值，单位由使用者决定，本项目中均为微秒
+     */
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(value));
+        sum.addAndGet(Math.max(value, 0));
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * 统计上界不超过bound的桶中的记录数，用于导出固定边界的直方图
+     *
+     * @param bound 边界
+     * @return 记录数，由于桶的精度限制，可能略少于实际小于等于bound的记录数
+     */
+    public long getCountAtOrBelow(long bound) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS && upperBoundOf(i) - 1 <= bound; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * 获取分位数
+     *
+     * @param quantile 分位，如0.99
+     * @return 分位数所在桶的上界，没有记录时为0
+     */
+    public long getValueAtQuantile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return i == BUCKETS - 1 ? 1L << MAX_BITS : upperBoundOf(i) - 1;
+            }
+        }
+        return 1L << MAX_BITS;
+    }
+}
@@ -0,0 +1,35 @@
+package org.switcher;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.ChainedProxy;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * 通过 {@link UpstreamProxyProber} 探测到的往返时间来比较两个代理，往返时间相同时再比较连接数
+ * <p>
+ * 适合以小请求为主、更在意延迟而不是带宽的场景，还没有探测结果的代理排在最后
+ */
+public class LatencySwitchTactics implements SwitchTactics {
+    private final static Comparator<UpstreamProxyDetail> COMPARATOR = Comparator
+            .comparingLong((UpstreamProxyDetail upstreamProxyDetail) -> rtt(upstreamProxyDetail))
+            .thenComparingInt(UpstreamProxyDetail::getRelevantConnectionSize);
+
+    private static long rtt(UpstreamProxyDetail upstreamProxyDetail) {
+        long rtt = upstreamProxyDetail.health.getRtt();
+        return rtt == 0 ? Long.MAX_VALUE : rtt;
+    }
+
+    @Override
+    public List<UpstreamProxyPair> getRank(String uri, List<UpstreamProxyPair> proxyPairs) {
+        proxyPairs.sort((a, b) -> COMPARATOR.compare(a.upstreamProxyDetail, b.upstreamProxyDetail));
+        return proxyPairs;
+    }
+
+    @Override
+    public void select(HttpRequest httpRequest, UpstreamProxyPair[] proxyPairs, Queue<ChainedProxy> chainedProxies) {
+        PowerOfTwoChoices.select(proxyPairs, COMPARATOR, chainedProxies);
+    }
+}
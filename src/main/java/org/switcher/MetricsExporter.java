@@ -0,0 +1,408 @@
+package org.switcher;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * 导出指标，可以通过内嵌的http服务以Prometheus文本格式抓取，也可以注册为JMX的MBean
+ * <p>
+ * 所有指标都直接读取 {@link TrafficMetrics}、{@link SpeedRecorder} 等已经聚合好的数据，不会对记录的热点路径加锁
+ */
+public class MetricsExporter {
+    private final static Logger logger = LoggerFactory.getLogger(MetricsExporter.class);
+
+    private final static String DOMAIN = "org.switcher";
+
+    /**
+     * 导出建立连接延迟的直方图时使用的边界（秒）
+     */
+    private final static double[] LATENCY_BOUNDS =
+            {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private final Switcher switcher;
+
+    private HttpServer httpServer;
+
+    private MBeanServer mBeanServer;
+
+    MetricsExporter(Switcher switcher) {
+        this.switcher = switcher;
+    }
+
+    static String label(InetSocketAddress proxySocket) {
+        return proxySocket == UpstreamProxyManager.DIRECT_CONNECTION ?
+                "direct" : proxySocket.getHostString() + ":" + proxySocket.getPort();
+    }
+
+    /**
+     * 在address上启动http服务，路径为/metrics
+     *
+     * @param address 监听的地址
+     * @throws IOException 无法监听
+     */
+    public synchronized void startHttp(InetSocketAddress address) throws IOException {
+        if (httpServer != null) {
+            logger.warn("指标的http服务已经在 {} 上启动", httpServer.getAddress());
+            return;
+        }
+        httpServer = HttpServer.create(address, 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        httpServer.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "switcher-metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        httpServer.start();
+        logger.info("指标的http服务启动于 {}", httpServer.getAddress());
+    }
+
+    /**
+     * @return http服务监听的地址，没有启动时为null
+     */
+    public synchronized InetSocketAddress getHttpAddress() {
+        return httpServer == null ? null : httpServer.getAddress();
+    }
+
+    /**
+     * 注册全局和所有上游代理的MBean，之后增加或移除的上游代理也会自动注册或注销
+     */
+    public synchronized void registerMBeans() {
+        if (mBeanServer != null) {
+            return;
+        }
+        mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        register(globalName(), new SwitcherBean());
+        switcher.upstreamProxyManager.forEach((proxySocket, upstreamProxyDetail) ->
+                upstreamProxyAdded(upstreamProxyDetail));
+    }
+
+    public synchronized void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+        if (mBeanServer != null) {
+            unregister(globalName());
+            switcher.upstreamProxyManager.forEach((proxySocket, upstreamProxyDetail) ->
+                    upstreamProxyRemoved(upstreamProxyDetail));
+            mBeanServer = null;
+        }
+    }
+
+    synchronized void upstreamProxyAdded(UpstreamProxyDetail upstreamProxyDetail) {
+        if (mBeanServer != null) {
+            register(upstreamProxyName(upstreamProxyDetail.proxySocket), new UpstreamProxyBean(upstreamProxyDetail));
+        }
+    }
+
+    synchronized void upstreamProxyRemoved(UpstreamProxyDetail upstreamProxyDetail) {
+        if (mBeanServer != null) {
+            unregister(upstreamProxyName(upstreamProxyDetail.proxySocket));
+        }
+    }
+
+    private static ObjectName globalName() {
+        return objectName(DOMAIN + ":type=Switcher");
+    }
+
+    private static ObjectName upstreamProxyName(InetSocketAddress proxySocket) {
+        return objectName(DOMAIN + ":type=UpstreamProxy,name=" + ObjectName.quote(label(proxySocket)));
+    }
+
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (JMException e) {
+            throw new IllegalArgumentException(name, e);
+        }
+    }
+
+    private void register(ObjectName objectName, Object mBean) {
+        try {
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(mBean, objectName);
+        } catch (JMException e) {
+            logger.warn("注册MBean {} 失败", objectName, e);
+        }
+    }
+
+    private void unregister(ObjectName objectName) {
+        try {
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            logger.warn("注销MBean {} 失败", objectName, e);
+        }
+    }
+
+    /**
+     * 生成Prometheus文本格式的指标
+     *
+     * @return 指标文本
+     */
+    public String scrape() {
+        StringBuilder builder = new StringBuilder(4096);
+        TrafficMetrics metrics = switcher.metrics;
+        UpstreamProxyPair[] upstreamProxyPairs = switcher.upstreamProxyManager.snapshot();
+
+        header(builder, "switcher_speed_bytes_per_second", "gauge", "总下载速度");
+        sample(builder, "switcher_speed_bytes_per_second", null, switcher.speedRecorder.getSpeed());
+        header(builder, "switcher_upload_speed_bytes_per_second", "gauge", "总上传速度");
+        sample(builder, "switcher_upload_speed_bytes_per_second", null, switcher.uploadSpeedRecorder.getSpeed());
+        header(builder, "switcher_connections", "gauge", "当前的连接数");
+        sample(builder, "switcher_connections", null, switcher.connectionManager.size());
+        header(builder, "switcher_upstream_proxies", "gauge", "上游代理数");
+        sample(builder, "switcher_upstream_proxies", null, upstreamProxyPairs.length);
+        header(builder, "switcher_received_bytes_total", "counter", "从服务端（或上游代理）接收的字节数");
+        sample(builder, "switcher_received_bytes_total", null, metrics.getReceivedBytes());
+        header(builder, "switcher_sent_bytes_total", "counter", "发送给服务端（或上游代理）的字节数");
+        sample(builder, "switcher_sent_bytes_total", null, metrics.getSentBytes());
+        header(builder, "switcher_connect_failures_total", "counter", "连接上游代理失败的次数");
+        sample(builder, "switcher_connect_failures_total", null, metrics.getConnectFailures());
+
+        header(builder, "switcher_upstream_speed_bytes_per_second", "gauge", "上游代理的下载速度");
+        for (UpstreamProxyPair pair : upstreamProxyPairs) {
+            sample(builder, "switcher_upstream_speed_bytes_per_second", pair, pair.upstreamProxyDetail.speedRecorder.getSpeed());
+        }
+        header(builder, "switcher_upstream_upload_speed_bytes_per_second", "gauge", "上游代理的上传速度");
+        for (UpstreamProxyPair pair : upstreamProxyPairs) {
+            sample(builder, "switcher_upstream_upload_speed_bytes_per_second", pair,
+                    pair.upstreamProxyDetail.uploadSpeedRecorder.getSpeed());
+        }
+        header(builder, "switcher_upstream_connections", "gauge", "通过上游代理的连接数");
+        for (UpstreamProxyPair pair : upstreamProxyPairs) {
+            sample(builder, "switcher_upstream_connections", pair, pair.upstreamProxyDetail.getRelevantConnectionSize());
+        }
+        header(builder, "switcher_upstream_down", "gauge", "上游代理是否被探测为不可用");
+        for (UpstreamProxyPair pair : upstreamProxyPairs) {
+            sample(builder, "switcher_upstream_down", pair, pair.upstreamProxyDetail.health.isDown() ? 1 : 0);
+        }
+        header(builder, "switcher_upstream_draining", "gauge", "上游代理是否正在被排空");
+        for (UpstreamProxyPair pair : upstreamProxyPairs) {
+            sample(builder, "switcher_upstream_draining", pair, pair.upstreamProxyDetail.isDraining() ? 1 : 0);
+        }
+        header(builder, "switcher_upstream_received_bytes_total", "counter", "从上游代理接收的字节数");
+        for (UpstreamProxyPair pair : upstreamProxyPairs) {
+            sample(builder, "switcher_upstream_received_bytes_total", pair, pair.upstreamProxyDetail.metrics.getReceivedBytes());
+        }
+        header(builder, "switcher_upstream_sent_bytes_total", "counter", "发送给上游代理的字节数");
+        for (UpstreamProxyPair pair : upstreamProxyPairs) {
+            sample(builder, "switcher_upstream_sent_bytes_total", pair, pair.upstreamProxyDetail.metrics.getSentBytes());
+        }
+        header(builder, "switcher_upstream_connect_failures_total", "counter", "连接上游代理失败的次数");
+        for (UpstreamProxyPair pair : upstreamProxyPairs) {
+            sample(builder, "switcher_upstream_connect_failures_total", pair, pair.upstreamProxyDetail.metrics.getConnectFailures());
+        }
+        header(builder, "switcher_upstream_connect_seconds", "histogram", "通过上游代理建立连接的延迟");
+        for (UpstreamProxyPair pair : upstreamProxyPairs) {
+            histogram(builder, "switcher_upstream_connect_seconds", "upstream=\"" + escape(label(pair.proxySocket)) + "\"",
+                    pair.upstreamProxyDetail.metrics.connectLatency);
+        }
+        List<UpstreamProxyGroup> groups = switcher.upstreamProxyManager.getGroups();
+        header(builder, "switcher_group_speed_bytes_per_second", "gauge", "上游代理组的下载速度");
+        for (UpstreamProxyGroup group : groups) {
+            groupSample(builder, "switcher_group_speed_bytes_per_second", group, group.speedRecorder.getSpeed());
+        }
+        header(builder, "switcher_group_upload_speed_bytes_per_second", "gauge", "上游代理组的上传速度");
+        for (UpstreamProxyGroup group : groups) {
+            groupSample(builder, "switcher_group_upload_speed_bytes_per_second", group,
+                    group.uploadSpeedRecorder.getSpeed());
+        }
+        header(builder, "switcher_group_weight", "gauge", "上游代理组的权重");
+        for (UpstreamProxyGroup group : groups) {
+            groupSample(builder, "switcher_group_weight", group, group.getWeight());
+        }
+        header(builder, "switcher_connect_phase_seconds", "histogram", "建立连接的各个阶段的耗时");
+        for (ConnectionPhase phase : ConnectionPhase.values()) {
+            histogram(builder, "switcher_connect_phase_seconds", "phase=\"" + phase.label() + "\"",
+                    metrics.getPhaseLatency(phase));
+        }
+        header(builder, "switcher_upstream_connect_phase_seconds", "histogram", "通过上游代理建立连接的各个阶段的耗时");
+        for (UpstreamProxyPair pair : upstreamProxyPairs) {
+            for (ConnectionPhase phase : ConnectionPhase.values()) {
+                if (phase != ConnectionPhase.SELECT) {
+                    histogram(builder, "switcher_upstream_connect_phase_seconds",
+                            "upstream=\"" + escape(label(pair.proxySocket)) + "\",phase=\"" + phase.label() + "\"",
+                            pair.upstreamProxyDetail.metrics.getPhaseLatency(phase));
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void header(StringBuilder builder, String name, String type, String help) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder builder, String name, UpstreamProxyPair pair, long value) {
+        builder.append(name);
+        if (pair != null) {
+            builder.append("{upstream=\"").append(escape(label(pair.proxySocket))).append("\"}");
+        }
+        builder.append(' ').append(value).append('\n');
+    }
+
+    private static void groupSample(StringBuilder builder, String name, UpstreamProxyGroup group, long value) {
+        builder.append(name).append("{group=\"").append(escape(group.name)).append("\"} ").append(value).append('\n');
+    }
+
+    /**
+     * 以秒为单位导出微秒的直方图
+     *
+     * @param labels 不带花括号的标签，如 upstream="direct"
+     */
+    static void histogram(StringBuilder builder, String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        for (double bound : LATENCY_BOUNDS) {
+            builder.append(name).append("_bucket").append(prefix).append("le=\"").append(bound).append("\"} ")
+                    .append(histogram.getCountAtOrBelow((long) (bound * 1000_000))).append('\n');
+        }
+        long count = histogram.getCount();
+        builder.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(count).append('\n');
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        builder.append(name).append("_sum").append(suffix).append(histogram.getSum() / 1e6).append('\n');
+        builder.append(name).append("_count").append(suffix).append(count).append('\n');
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private class SwitcherBean implements SwitcherMXBean {
+        @Override
+        public long getSpeed() {
+            return switcher.speedRecorder.getSpeed();
+        }
+
+        @Override
+        public long getUploadSpeed() {
+            return switcher.uploadSpeedRecorder.getSpeed();
+        }
+
+        @Override
+        public int getConnectionCount() {
+            return switcher.connectionManager.size();
+        }
+
+        @Override
+        public int getUpstreamProxyCount() {
+            return switcher.upstreamProxyManager.size();
+        }
+
+        @Override
+        public long getReceivedBytes() {
+            return switcher.metrics.getReceivedBytes();
+        }
+
+        @Override
+        public long getSentBytes() {
+            return switcher.metrics.getSentBytes();
+        }
+
+        @Override
+        public long getConnects() {
+            return switcher.metrics.getConnects();
+        }
+
+        @Override
+        public long getConnectFailures() {
+            return switcher.metrics.getConnectFailures();
+        }
+    }
+
+    private static class UpstreamProxyBean implements UpstreamProxyMXBean {
+        private final UpstreamProxyDetail upstreamProxyDetail;
+
+        UpstreamProxyBean(UpstreamProxyDetail upstreamProxyDetail) {
+            this.upstreamProxyDetail = upstreamProxyDetail;
+        }
+
+        @Override
+        public long getSpeed() {
+            return upstreamProxyDetail.speedRecorder.getSpeed();
+        }
+
+        @Override
+        public long getUploadSpeed() {
+            return upstreamProxyDetail.uploadSpeedRecorder.getSpeed();
+        }
+
+        @Override
+        public long getUploadCeiling() {
+            return upstreamProxyDetail.getCeiling(TrafficDirection.UPLOAD);
+        }
+
+        @Override
+        public long getCeiling() {
+            return upstreamProxyDetail.getCeiling();
+        }
+
+        @Override
+        public int getActiveConnections() {
+            return upstreamProxyDetail.getRelevantConnectionSize();
+        }
+
+        @Override
+        public long getReceivedBytes() {
+            return upstreamProxyDetail.metrics.getReceivedBytes();
+        }
+
+        @Override
+        public long getSentBytes() {
+            return upstreamProxyDetail.metrics.getSentBytes();
+        }
+
+        @Override
+        public long getConnects() {
+            return upstreamProxyDetail.metrics.getConnects();
+        }
+
+        @Override
+        public long getConnectFailures() {
+            return upstreamProxyDetail.metrics.getConnectFailures();
+        }
+
+        @Override
+        public long getConnectLatencyP50Micros() {
+            return upstreamProxyDetail.metrics.connectLatency.getValueAtQuantile(0.5);
+        }
+
+        @Override
+        public long getConnectLatencyP99Micros() {
+            return upstreamProxyDetail.metrics.connectLatency.getValueAtQuantile(0.99);
+        }
+
+        @Override
+        public long getRttMicros() {
+            return upstreamProxyDetail.health.getRtt() / 1000;
+        }
+
+        @Override
+        public boolean isDown() {
+            return upstreamProxyDetail.health.isDown();
+        }
+    }
+}
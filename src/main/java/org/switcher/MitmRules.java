@@ -0,0 +1,90 @@
+package org.switcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 需要中间人解密的主机，只在选择性中间人模式下使用，见 {@link SwitcherHttpProxyServerBootstrap#withSelectiveMitm(String...)}
+ * <p>
+ * 规则是主机名，同时匹配它本身和它的所有子域名，例如example.com匹配example.com和dl.example.com；
+ * {@link #ANY_HOST} 匹配所有主机。不匹配的CONNECT请求直接转发原始字节，不解密
+ */
+public class MitmRules {
+    private final static Logger logger = LoggerFactory.getLogger(MitmRules.class);
+
+    public final static String ANY_HOST = "*";
+
+    private final Set<String> hosts;
+
+    MitmRules() {
+        hosts = ConcurrentHashMap.newKeySet();
+    }
+
+    private static String normalize(String host) {
+        String normalized = host.trim().toLowerCase(Locale.ROOT);
+        // 兼容*.example.com和.example.com的写法
+        if (normalized.startsWith("*.")) {
+            normalized = normalized.substring(2);
+        } else if (normalized.startsWith(".")) {
+            normalized = normalized.substring(1);
+        }
+        return normalized;
+    }
+
+    public void add(String host) {
+        String normalized = normalize(host);
+        if (normalized.isEmpty()) {
+            logger.warn("非法参数host={}，已忽略", host);
+            return;
+        }
+        hosts.add(normalized);
+    }
+
+    public void remove(String host) {
+        hosts.remove(normalize(host));
+    }
+
+    public void clear() {
+        hosts.clear();
+    }
+
+    public boolean isEmpty() {
+        return hosts.isEmpty();
+    }
+
+    public List<String> getAll() {
+        return new ArrayList<>(hosts);
+    }
+
+    /**
+     * 判断主机是否需要中间人解密，从完整的主机名开始逐级去掉最左边的标签查找
+     *
+     * @param host 主机名，见 {@link Tabu#hostOf(io.netty.handler.codec.http.HttpRequest)}
+     * @return 匹配任意一条规则时为true
+     */
+    public boolean matches(String host) {
+        if (hosts.isEmpty()) {
+            return false;
+        }
+        if (hosts.contains(ANY_HOST)) {
+            return true;
+        }
+        String suffix = host.toLowerCase(Locale.ROOT);
+        while (true) {
+            if (hosts.contains(suffix)) {
+                return true;
+            }
+            int dot = suffix.indexOf('.');
+            if (dot < 0) {
+                return false;
+            }
+            suffix = suffix.substring(dot + 1);
+        }
+    }
+}
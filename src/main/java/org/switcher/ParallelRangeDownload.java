@@ -0,0 +1,502 @@
+package org.switcher;
+
+import com.squareup.okhttp.Response;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次拆分下载，负责 [offset, offset + length) 范围内的响应体
+ * <p>
+ * 响应体被切成若干块（piece），每个上游代理对应一个worker，worker不断领取下一块并通过自己的上游代理获取；
+ * 已经获取完但前面还有块没有完成的块会被缓冲起来，缓冲的块数不超过分配到的窗口，见 {@link RangeDownloader#reserveWindow}；
+ * 块的缓冲在数据到达时才从池中分配，不会为还没有收到的部分占用内存。
+ * 没有新块可领时，空闲的worker会把正在获取的、最靠前的块的剩余部分分走一半，避免被最慢的上游代理拖住。
+ * 完成的块由一个写线程按顺序写给客户端，写完一块才会写下一块，所以客户端慢时缓冲区也不会无限增长。
+ * 原始的到服务端的连接在返回响应头部后就被关闭，不会再和worker重复下载响应体
+ * <p>
+ * worker读到的字节和普通连接一样经过 {@link BandwidthShaper} 的各层令牌桶（见 {@link PieceThrottle}），
+ * 正在获取的块也计入上游代理的连接数，见 {@link UpstreamProxyDetail#addPieceConnection()}
+ */
+class ParallelRangeDownload {
+    private final static Logger logger = LoggerFactory.getLogger(ParallelRangeDownload.class);
+
+    /**
+     * 每次从上游读取的字节数，和限速时netty每次读取的量相同
+     */
+    private final static int READ_SIZE = ThrottleHandler.QUANTUM;
+
+    /**
+     * 剩余部分小于这个值的块不再被分走
+     */
+    private final static int MIN_STEAL_SIZE = 64 * 1024;
+
+    /**
+     * worker连续失败这么多次后放弃它的上游代理
+     */
+    private final static int MAX_WORKER_FAILURES = 3;
+
+    /**
+     * 原始连接上的handler名
+     */
+    private final static String DISCARDER_NAME = "switcher.rangeDownloadDiscarder";
+
+    /**
+     * 加在原始连接最前面，丢弃关闭前还在路上的数据，不再交给littleproxy转发
+     */
+    private static class Discarder extends ChannelInboundHandlerAdapter {
+        /**
+         * 是否也拦截连接关闭的事件，见 {@link #keepAlive}
+         */
+        private final boolean detach;
+
+        Discarder(boolean detach) {
+            this.detach = detach;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (!detach) {
+                ctx.fireChannelInactive();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.debug("原始连接已丢弃：{}", cause.getMessage());
+        }
+    }
+
+    private static class Piece {
+        final long start;
+
+        /**
+         * 结束位置（不包含），被分走一半时会变小
+         */
+        volatile long end;
+
+        /**
+         * 已经获取的数据，收到第一段数据时才创建，只由领取了这一块的worker写入，完成后交给写线程
+         */
+        CompositeByteBuf buffer;
+
+        /**
+         * 已经获取的字节数，只由领取了这一块的worker写入
+         */
+        volatile int received;
+
+        /**
+         * 以下字段由 {@link ParallelRangeDownload} 的锁保护
+         */
+        boolean claimed;
+        boolean done;
+
+        Piece(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * 把读到的一段数据接在后面，空的数据直接释放
+         *
+         * @param alloc 分配 {@link #buffer} 的allocator
+         * @param chunk 读到的数据
+         */
+        void append(ByteBufAllocator alloc, ByteBuf chunk) {
+            if (!chunk.isReadable()) {
+                chunk.release();
+                return;
+            }
+            if (buffer == null) {
+                buffer = alloc.compositeBuffer(Integer.MAX_VALUE);
+            }
+            buffer.addComponent(true, chunk);
+        }
+
+        void releaseBuffer() {
+            if (buffer != null) {
+                buffer.release();
+                buffer = null;
+            }
+        }
+    }
+
+    private final RangeDownloader downloader;
+
+    private final ChannelHandlerContext ctx;
+
+    private final Channel serverChannel;
+
+    private final String url;
+
+    private final List<Map.Entry<String, String>> headers;
+
+    private final String ifRange;
+
+    /**
+     * 原始响应的ETag和响应体大小，每个范围的响应都必须与之相同，见 {@link RangeFetcher#fetch}
+     */
+    private final String etag;
+    private final long contentLength;
+
+    private final InetAddress clientHost;
+
+    private final long end;
+
+    /**
+     * 分配到的窗口（块数），见 {@link RangeDownloader#reserveWindow(int)}
+     */
+    private final int window;
+
+    /**
+     * 下载完成后是否保持客户端连接。中间人解密的连接上，littleproxy在到服务端的连接关闭时会关闭客户端连接，
+     * 所以原始连接关闭前要先和littleproxy脱离，客户端连接也只能在下载完成后关闭
+     */
+    private final boolean keepAlive;
+
+    /**
+     * 还没有写给客户端的块，按起始位置排序，以下字段都由this的锁保护
+     */
+    private final TreeMap<Long, Piece> pieces;
+
+    /**
+     * 下一个新块的起始位置
+     */
+    private long next;
+
+    /**
+     * 已经写给客户端的位置
+     */
+    private long written;
+
+    private boolean writing;
+
+    private boolean finished;
+
+    private int workers;
+
+    ParallelRangeDownload(RangeDownloader downloader, ChannelHandlerContext ctx, Channel serverChannel, String url,
+                          List<Map.Entry<String, String>> headers, HttpResponse httpResponse, long offset,
+                          long length, boolean keepAlive, int window) {
+        this.downloader = downloader;
+        this.ctx = ctx;
+        this.serverChannel = serverChannel;
+        this.url = url;
+        this.headers = headers;
+        ifRange = RangeDownloader.ifRange(httpResponse);
+        etag = httpResponse.headers().get(HttpHeaderNames.ETAG);
+        contentLength = HttpUtil.getContentLength(httpResponse, -1L);
+        clientHost = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress();
+        end = offset + length;
+        this.keepAlive = keepAlive;
+        this.window = window;
+        pieces = new TreeMap<>();
+        next = offset;
+        written = offset;
+    }
+
+    /**
+     * 为排在前面的n个上游代理各启动一个worker
+     *
+     * @param upstreamProxyPairs 按优先级排序的可用上游代理
+     * @param n                  已经通过 {@link RangeDownloader#reserveWorkers(int)} 分配到的worker数
+     */
+    void start(List<UpstreamProxyPair> upstreamProxyPairs, int n) {
+        // 原始连接只用来返回响应头部，响应体由worker获取。只暂停读取是不够的，客户端变为可写时littleproxy会恢复读取
+        detachServerChannel();
+        synchronized (this) {
+            workers = n;
+        }
+        for (int i = 0; i < n; i++) {
+            UpstreamProxyPair upstreamProxyPair = upstreamProxyPairs.get(i);
+            try {
+                downloader.executor.execute(() -> work(upstreamProxyPair));
+            } catch (RejectedExecutionException e) {
+                // 已经停止
+                downloader.releaseWorker();
+                workerExited();
+            }
+        }
+    }
+
+    private void detachServerChannel() {
+        if (serverChannel.pipeline().get(DISCARDER_NAME) == null) {
+            serverChannel.pipeline().addFirst(DISCARDER_NAME, new Discarder(!keepAlive));
+        }
+        serverChannel.close();
+    }
+
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    private void work(UpstreamProxyPair upstreamProxyPair) {
+        UpstreamProxyDetail upstreamProxyDetail = upstreamProxyPair.upstreamProxyDetail;
+        PieceThrottle throttle = downloader.switcher.shaper.newPieceThrottle(clientHost, upstreamProxyDetail);
+        int failures = 0;
+        try {
+            Piece piece;
+            while ((piece = claim()) != null) {
+                try {
+                    fetch(upstreamProxyPair, throttle, piece);
+                    failures = 0;
+                    complete(piece);
+                } catch (IOException e) {
+                    release(piece);
+                    if (isFinished() || upstreamProxyDetail.isRemoved()) {
+                        return;
+                    }
+                    logger.info("通过 {} 获取 {} 的范围失败：{}", upstreamProxyPair.proxySocket, url, e.getMessage());
+                    if (++failures >= MAX_WORKER_FAILURES) {
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            fail("下载被中断");
+        } finally {
+            throttle.close();
+            downloader.releaseWorker();
+            workerExited();
+        }
+    }
+
+    /**
+     * 领取一块，依次尝试：之前失败被释放的块、窗口内的新块、分走最靠前的块的一半
+     *
+     * @return 领取的块，所有块都已完成或下载已结束时为null
+     * @throws InterruptedException 等待时被中断
+     */
+    private synchronized Piece claim() throws InterruptedException {
+        while (!finished) {
+            for (Piece piece : pieces.values()) {
+                if (!piece.claimed && !piece.done) {
+                    piece.claimed = true;
+                    return piece;
+                }
+            }
+            if (next < end && next < written + (long) window * downloader.pieceSize) {
+                Piece piece = new Piece(next, Math.min(next + downloader.pieceSize, end));
+                piece.claimed = true;
+                pieces.put(piece.start, piece);
+                next = piece.end;
+                return piece;
+            }
+            Piece stolen = steal();
+            if (stolen != null) {
+                return stolen;
+            }
+            if (next >= end && pieces.isEmpty()) {
+                return null;
+            }
+            // 等待其它worker完成、失败或写线程腾出窗口
+            wait();
+        }
+        return null;
+    }
+
+    /**
+     * 把正在获取的、最靠前的块的后一半分出来。被分走的部分还没有收到，原来的块不会为它分配缓冲，
+     * 所以分走后两块的缓冲之和仍然不超过原来的块的大小
+     *
+     * @return 分出来的块，没有足够大的块时为null
+     */
+    private Piece steal() {
+        for (Piece victim : pieces.values()) {
+            if (!victim.claimed || victim.done) {
+                continue;
+            }
+            long from = victim.start + victim.received;
+            long remaining = victim.end - from;
+            if (remaining >= 2L * MIN_STEAL_SIZE) {
+                long middle = from + remaining / 2;
+                Piece piece = new Piece(middle, victim.end);
+                piece.claimed = true;
+                victim.end = middle;
+                pieces.put(piece.start, piece);
+                return piece;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 获取块中剩余的字节，块被分走一半时提前结束，获取期间计入上游代理的连接数
+     *
+     * @throws IOException          获取失败、上游代理已被移除或下载已结束
+     * @throws InterruptedException 限速暂停时被中断
+     */
+    private void fetch(UpstreamProxyPair upstreamProxyPair, PieceThrottle throttle, Piece piece)
+            throws IOException, InterruptedException {
+        UpstreamProxyDetail upstreamProxyDetail = upstreamProxyPair.upstreamProxyDetail;
+        try {
+            if (!upstreamProxyDetail.addPieceConnection()) {
+                throw new IOException("上游代理已被移除");
+            }
+            long from = piece.start + piece.received;
+            Response response = downloader.fetcher.fetch(upstreamProxyPair.proxySocket, url, headers,
+                    from, piece.end - 1, ifRange, contentLength, etag);
+            ByteBufAllocator alloc = ctx.alloc();
+            // 正在填充的一段，填满后才接到块的后面，短读时不会分配很多小段
+            ByteBuf chunk = null;
+            try (InputStream inputStream = response.body().byteStream()) {
+                while (true) {
+                    int limit = (int) (piece.end - piece.start);
+                    int received = piece.received;
+                    if (received >= limit) {
+                        return;
+                    }
+                    if (isFinished()) {
+                        throw new IOException("下载已结束");
+                    }
+                    if (upstreamProxyDetail.isRemoved()) {
+                        throw new IOException("上游代理已被移除");
+                    }
+                    if (chunk != null && !chunk.isWritable()) {
+                        piece.append(alloc, chunk);
+                        chunk = null;
+                    }
+                    if (chunk == null) {
+                        chunk = alloc.buffer(Math.min(READ_SIZE, limit - received));
+                    }
+                    int n = chunk.writeBytes(inputStream, Math.min(chunk.writableBytes(), limit - received));
+                    if (n < 0) {
+                        throw new EOFException("上游提前关闭了连接");
+                    }
+                    piece.received = received + n;
+                    long pause = throttle.record(n);
+                    if (pause > 0) {
+                        TimeUnit.NANOSECONDS.sleep(pause);
+                    }
+                }
+            } finally {
+                // 已经计入received的数据要保留，下一个领取这一块的worker从received处接着获取
+                if (chunk != null) {
+                    piece.append(alloc, chunk);
+                }
+            }
+        } finally {
+            upstreamProxyDetail.removePieceConnection();
+        }
+    }
+
+    private synchronized void release(Piece piece) {
+        piece.claimed = false;
+        notifyAll();
+    }
+
+    private void complete(Piece piece) {
+        synchronized (this) {
+            piece.done = true;
+            notifyAll();
+            if (writing) {
+                // 由正在写的线程接着写
+                return;
+            }
+            writing = true;
+        }
+        drain();
+    }
+
+    /**
+     * 按顺序把已完成的块写给客户端，直到遇到未完成的块
+     */
+    private void drain() {
+        while (true) {
+            Piece head;
+            synchronized (this) {
+                Map.Entry<Long, Piece> first = pieces.firstEntry();
+                head = first == null ? null : first.getValue();
+                if (finished || head == null || !head.done || head.start != written) {
+                    writing = false;
+                    if (!finished && written >= end) {
+                        finish();
+                    }
+                    return;
+                }
+                pieces.remove(head.start);
+            }
+            // 缓冲交给netty，写完后由netty释放
+            ByteBuf content = head.buffer;
+            head.buffer = null;
+            ChannelFuture future = ctx.writeAndFlush(new DefaultHttpContent(content)).awaitUninterruptibly();
+            if (!future.isSuccess()) {
+                fail("写给客户端失败");
+                return;
+            }
+            synchronized (this) {
+                written = head.end;
+                notifyAll();
+            }
+        }
+    }
+
+    private void finish() {
+        finished = true;
+        notifyAll();
+        logger.info("拆分下载 {} 完成", url);
+        ChannelFuture future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * 放弃下载，已经写出的响应头部无法撤回，只能关闭客户端连接
+     *
+     * @param reason 原因
+     */
+    synchronized void fail(String reason) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        notifyAll();
+        logger.info("拆分下载 {} 失败：{}", url, reason);
+        ctx.close();
+    }
+
+    /**
+     * 最后一个worker退出时，没有线程再写入块的缓冲，释放还没有写给客户端的块并归还缓冲的额度
+     */
+    private synchronized void workerExited() {
+        if (--workers > 0) {
+            return;
+        }
+        if (!finished) {
+            fail("所有上游代理都失败了");
+        }
+        pieces.values().forEach(Piece::releaseBuffer);
+        pieces.clear();
+        downloader.releaseWindow(window);
+    }
+}
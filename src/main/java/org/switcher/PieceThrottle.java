@@ -0,0 +1,52 @@
+package org.switcher;
+
+/**
+ * 拆分下载的worker通过自己的http客户端读取，不经过 {@link ThrottleHandler}，
+ * 所以由这里按同样的层级消费令牌桶（见 {@link BandwidthShaper#newPieceThrottle}），
+ * 读到的字节同样计入上游代理的 {@link SpeedRecorder} 和 {@link TrafficMetrics}
+ * <p>
+ * 已经读到的字节无法退回，超速时由worker的线程自己暂停，见 {@link #record(int)}
+ */
+class PieceThrottle {
+    private final TokenBucket[] readBuckets;
+
+    private final SpeedRecorder speedRecorder;
+
+    /**
+     * 上游代理和全局的统计
+     */
+    private final TrafficMetrics[] metrics;
+
+    /**
+     * worker退出时调用
+     */
+    private final Runnable onClosed;
+
+    PieceThrottle(TokenBucket[] readBuckets, SpeedRecorder speedRecorder, TrafficMetrics[] metrics,
+                  Runnable onClosed) {
+        this.readBuckets = readBuckets;
+        this.speedRecorder = speedRecorder;
+        this.metrics = metrics;
+        this.onClosed = onClosed;
+    }
+
+    /**
+     * 记录读到的字节并消费令牌
+     *
+     * @param bytes 字节数
+     * @return 下一次读取前需要暂停的纳秒数，为0表示不需要暂停
+     */
+    long record(int bytes) {
+        long nanos = System.nanoTime();
+        speedRecorder.record(bytes);
+        for (TrafficMetrics trafficMetrics : metrics) {
+            trafficMetrics.receivedBytes.add(bytes);
+        }
+        long pause = ThrottleHandler.consume(readBuckets, bytes, nanos);
+        return pause >= ThrottleHandler.MIN_PAUSE ? pause : 0;
+    }
+
+    void close() {
+        onClosed.run();
+    }
+}
@@ -0,0 +1,76 @@
+package org.switcher;
+
+import org.littleshoot.proxy.ChainedProxy;
+
+import java.util.Comparator;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 随机选两个代理，较优的一个作为首选，另一个作为备选，再从随机的位置开始取最多 {@link #EXTRA_FALLBACKS} 个代理排在后面。
+ * 备选的数量是固定的，代理链（littleproxy使用 {@link java.util.concurrent.ConcurrentLinkedQueue}）每加入一个代理都要分配一个节点，
+ * 所以不把所有代理都加入；不可用和被降级的代理不在快照中，选中的代理再检查禁忌表，见 {@link Switcher#lookupChainedProxies}
+ * <p>
+ * 只比较一次、加入的代理数是常数；因为每次只比较随机的两个代理，大量连接同时创建时也不会都选中同一个代理。
+ * 比较的代价取决于comparator，例如 {@link ThroughputSwitchTactics} 读取速度时需要合并上游代理下所有连接的记录，
+ * 与连接数成正比
+ */
+final class PowerOfTwoChoices {
+    /**
+     * 比较的两个代理之后再加入的备选代理数
+     */
+    final static int EXTRA_FALLBACKS = 3;
+
+    /**
+     * 每次最多加入代理链的代理数
+     */
+    final static int MAX_SELECTED = 2 + EXTRA_FALLBACKS;
+
+    private PowerOfTwoChoices() {
+    }
+
+    /**
+     * @param proxyPairs     可使用的代理
+     * @param comparator     比较两个代理，较小的更优
+     * @param chainedProxies 代理链
+     */
+    static void select(UpstreamProxyPair[] proxyPairs, Comparator<UpstreamProxyDetail> comparator,
+                       Queue<ChainedProxy> chainedProxies) {
+        int size = proxyPairs.length;
+        if (size == 0) {
+            return;
+        }
+        if (size == 1) {
+            chainedProxies.add(proxyPairs[0].upstreamProxyDetail.chainedProxy);
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // 在size个中选出两个不同的下标i和j
+        int i = random.nextInt(size);
+        int j = random.nextInt(size - 1);
+        if (j >= i) {
+            ++j;
+        }
+        UpstreamProxyDetail first = proxyPairs[i].upstreamProxyDetail;
+        UpstreamProxyDetail second = proxyPairs[j].upstreamProxyDetail;
+        if (comparator.compare(second, first) < 0) {
+            UpstreamProxyDetail temp = first;
+            first = second;
+            second = temp;
+        }
+        chainedProxies.add(first.chainedProxy);
+        chainedProxies.add(second.chainedProxy);
+        // 其余的代理从随机的位置开始依次取，跳过已经加入的两个，不需要打乱数组
+        int extra = Math.min(EXTRA_FALLBACKS, size - 2);
+        int k = random.nextInt(size);
+        while (extra > 0) {
+            if (k != i && k != j) {
+                chainedProxies.add(proxyPairs[k].upstreamProxyDetail.chainedProxy);
+                --extra;
+            }
+            if (++k == size) {
+                k = 0;
+            }
+        }
+    }
+}
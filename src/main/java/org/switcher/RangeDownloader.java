@@ -0,0 +1,389 @@
+package org.switcher;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.ssl.SslHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把大文件的下载拆分为多个范围，通过多个上游代理并发获取，再按顺序返回给同一个客户端连接
+ * <p>
+ * 这样即使客户端（如浏览器、curl）只建立了一个连接，也能同时利用多个被限速的上游代理；
+ * 同样的机制也用于在上游代理被移除或停滞时从断点续传，见 {@link #resume}
+ */
+public class RangeDownloader {
+    private final static Logger logger = LoggerFactory.getLogger(RangeDownloader.class);
+
+    public final static long DEFAULT_MIN_CONTENT_LENGTH = 8 * 1024 * 1024;
+    public final static int DEFAULT_PIECE_SIZE = 1024 * 1024;
+    public final static int DEFAULT_PARALLELISM = 4;
+    public final static int DEFAULT_WINDOW = 16;
+    public final static int DEFAULT_TIMEOUT_MILLIS = 30000;
+    public final static long DEFAULT_MAX_BUFFERED_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * worker线程数的上限，没有空闲的worker时不拆分也不续传，原始响应照常转发，见 {@link #reserveWorkers(int)}
+     */
+    private final static int MAX_THREADS = 64;
+
+    /**
+     * 空闲的worker线程存活的时间（秒）
+     */
+    private final static long THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * 转发范围请求时不需要的头部，包括逐跳头部和会被重新设置的头部
+     */
+    private final static Set<String> EXCLUDED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "proxy-connection", "keep-alive", "proxy-authorization", "te", "trailer",
+            "transfer-encoding", "upgrade", "host", "range", "if-range", "content-length"));
+
+    final Switcher switcher;
+
+    /**
+     * 响应体至少这么大时才拆分
+     */
+    final long minContentLength;
+
+    /**
+     * 每个范围的大小
+     */
+    final int pieceSize;
+
+    /**
+     * 同时获取的范围数，即使用的上游代理数
+     */
+    final int parallelism;
+
+    /**
+     * 最多缓冲这么多个还不能返回给客户端的范围，限制乱序到达时占用的内存
+     */
+    final int window;
+
+    /**
+     * 所有下载最多共缓冲这么多字节，见 {@link #reserveWindow(int)}
+     */
+    final long maxBufferedBytes;
+
+    final RangeFetcher fetcher;
+
+    final ExecutorService executor;
+
+    /**
+     * 已经分配出去的worker数，不超过 {@link #MAX_THREADS}，所以worker不会在executor中排队
+     */
+    private final AtomicInteger reservedWorkers;
+
+    /**
+     * 已经分配给各个下载的缓冲字节数，不超过 {@link #maxBufferedBytes}
+     */
+    private final AtomicLong reservedBytes;
+
+    /**
+     * 响应体这么久（毫秒）没有进展时从断点续传，为0表示不续传，见 {@link #resume}
+     */
+    volatile long resumeStallMillis;
+
+    RangeDownloader(Switcher switcher, long minContentLength, int pieceSize, int parallelism, int window,
+                    int timeoutMillis) {
+        this(switcher, minContentLength, pieceSize, parallelism, window, timeoutMillis, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    RangeDownloader(Switcher switcher, long minContentLength, int pieceSize, int parallelism, int window,
+                    int timeoutMillis, long maxBufferedBytes) {
+        this.switcher = switcher;
+        if (minContentLength <= 0) {
+            logger.warn("非法参数minContentLength={}(<=0)，将修改为默认值{}", minContentLength,
+                    DEFAULT_MIN_CONTENT_LENGTH);
+            minContentLength = DEFAULT_MIN_CONTENT_LENGTH;
+        }
+        this.minContentLength = minContentLength;
+        if (pieceSize <= 0) {
+            logger.warn("非法参数pieceSize={}(<=0)，将修改为默认值{}", pieceSize, DEFAULT_PIECE_SIZE);
+            pieceSize = DEFAULT_PIECE_SIZE;
+        }
+        this.pieceSize = pieceSize;
+        if (parallelism <= 0) {
+            logger.warn("非法参数parallelism={}(<=0)，将修改为默认值{}", parallelism, DEFAULT_PARALLELISM);
+            parallelism = DEFAULT_PARALLELISM;
+        }
+        this.parallelism = parallelism;
+        if (window <= 0) {
+            logger.warn("非法参数window={}(<=0)，将修改为默认值{}", window, DEFAULT_WINDOW);
+            window = DEFAULT_WINDOW;
+        }
+        this.window = window;
+        if (timeoutMillis < 0) {
+            logger.warn("非法参数timeoutMillis={}(<0)，将修改为默认值{}", timeoutMillis, DEFAULT_TIMEOUT_MILLIS);
+            timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        }
+        if (maxBufferedBytes <= 0) {
+            logger.warn("非法参数maxBufferedBytes={}(<=0)，将修改为默认值{}", maxBufferedBytes,
+                    DEFAULT_MAX_BUFFERED_BYTES);
+            maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+        }
+        this.maxBufferedBytes = maxBufferedBytes;
+        fetcher = new RangeFetcher(timeoutMillis);
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "switcher-range-download");
+            thread.setDaemon(true);
+            return thread;
+        });
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        executor = threadPoolExecutor;
+        reservedWorkers = new AtomicInteger();
+        reservedBytes = new AtomicLong();
+    }
+
+    /**
+     * 停止所有正在进行的下载，worker被中断后会关闭各自的客户端连接
+     */
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 分配worker，必须在关闭原始连接之前调用，否则没有空闲的worker时客户端只能等待其它下载结束
+     *
+     * @param wanted 需要的worker数
+     * @return 分配到的worker数，不超过wanted，为0表示没有空闲的worker
+     */
+    int reserveWorkers(int wanted) {
+        while (true) {
+            int reserved = reservedWorkers.get();
+            int granted = Math.min(wanted, MAX_THREADS - reserved);
+            if (granted <= 0) {
+                return 0;
+            }
+            if (reservedWorkers.compareAndSet(reserved, reserved + granted)) {
+                return granted;
+            }
+        }
+    }
+
+    /**
+     * worker退出，见 {@link #reserveWorkers(int)}
+     */
+    void releaseWorker() {
+        reservedWorkers.decrementAndGet();
+    }
+
+    private void releaseWorkers(int workers) {
+        reservedWorkers.addAndGet(-workers);
+    }
+
+    /**
+     * 为一个下载分配缓冲的额度，一个下载缓冲的字节数不会超过窗口内的块的大小之和，见 {@link ParallelRangeDownload}。
+     * 剩余的额度不足 {@link #window} 块时缩小窗口，但至少要让每个worker都能领到一块
+     *
+     * @param workers 下载的worker数
+     * @return 分配到的窗口（块数），为0表示额度已经用完
+     */
+    int reserveWindow(int workers) {
+        while (true) {
+            long reserved = reservedBytes.get();
+            long pieces = Math.min(window, (maxBufferedBytes - reserved) / pieceSize);
+            if (pieces < workers) {
+                return 0;
+            }
+            if (reservedBytes.compareAndSet(reserved, reserved + pieces * pieceSize)) {
+                return (int) pieces;
+            }
+        }
+    }
+
+    /**
+     * 下载结束，所有块的缓冲都已经释放，见 {@link #reserveWindow(int)}
+     *
+     * @param window 分配到的窗口
+     */
+    void releaseWindow(int window) {
+        reservedBytes.addAndGet(-(long) window * pieceSize);
+    }
+
+    /**
+     * 获取请求的完整url，中间人解密后的请求只有路径，需要根据Host头部和客户端是否加密来补全
+     *
+     * @param httpRequest 请求
+     * @param ctx         客户端的 {@link ChannelHandlerContext}
+     * @return 完整的url，无法补全时为null
+     */
+    static String absoluteUrl(HttpRequest httpRequest, ChannelHandlerContext ctx) {
+        String uri = httpRequest.uri();
+        if (uri.contains("://")) {
+            return uri;
+        }
+        String host = httpRequest.headers().get(HttpHeaderNames.HOST);
+        if (host == null || !uri.startsWith("/")) {
+            return null;
+        }
+        String scheme = ctx.pipeline().get(SslHandler.class) != null ? "https" : "http";
+        return scheme + "://" + host + uri;
+    }
+
+    /**
+     * 生成保证资源版本一致的If-Range，优先使用强ETag，其次使用Last-Modified
+     *
+     * @param httpResponse 原始响应
+     * @return If-Range的值，没有可用的校验值时为null
+     */
+    static String ifRange(HttpResponse httpResponse) {
+        String etag = httpResponse.headers().get(HttpHeaderNames.ETAG);
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return httpResponse.headers().get(HttpHeaderNames.LAST_MODIFIED);
+    }
+
+    /**
+     * 需要转发给上游的请求头部
+     *
+     * @param httpRequest 原始请求
+     * @return 头部列表
+     */
+    static List<Map.Entry<String, String>> forwardHeaders(HttpRequest httpRequest) {
+        List<Map.Entry<String, String>> headers = new ArrayList<>();
+        for (Map.Entry<String, String> header : httpRequest.headers()) {
+            if (!EXCLUDED_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                headers.add(header);
+            }
+        }
+        if (!httpRequest.headers().contains(HttpHeaderNames.ACCEPT_ENCODING)) {
+            // 否则okhttp会自动请求gzip并解压，范围就和原始响应对不上了
+            headers.add(new AbstractMap.SimpleEntry<>("Accept-Encoding", "identity"));
+        }
+        return headers;
+    }
+
+    /**
+     * 判断响应是否可以拆分，和 {@link #isResumable} 一样必须有校验值，否则资源在获取各个范围之间改变时，
+     * 不同版本的范围会被拼成损坏的响应体
+     *
+     * @param httpRequest  原始请求
+     * @param httpResponse 原始响应
+     * @return 是否可以拆分
+     */
+    boolean isEligible(HttpRequest httpRequest, HttpResponse httpResponse) {
+        return httpRequest.method().equals(HttpMethod.GET) &&
+                !httpRequest.headers().contains(HttpHeaderNames.RANGE) &&
+                !(httpResponse instanceof FullHttpResponse) &&
+                httpResponse.status().code() == HttpResponseStatus.OK.code() &&
+                httpResponse.headers().containsValue(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES, true) &&
+                !HttpUtil.isTransferEncodingChunked(httpResponse) &&
+                HttpUtil.getContentLength(httpResponse, -1L) >= minContentLength &&
+                ifRange(httpResponse) != null;
+    }
+
+    /**
+     * 判断响应在中断后是否可以从断点续传，和 {@link #isEligible} 相比不限制大小，同样必须有校验值，保证续传的是同一个版本
+     *
+     * @param httpRequest  原始请求
+     * @param httpResponse 原始响应
+     * @return 是否可以续传
+     */
+    boolean isResumable(HttpRequest httpRequest, HttpResponse httpResponse) {
+        return resumeStallMillis > 0 &&
+                httpRequest.method().equals(HttpMethod.GET) &&
+                !httpRequest.headers().contains(HttpHeaderNames.RANGE) &&
+                !(httpResponse instanceof FullHttpResponse) &&
+                httpResponse.status().code() == HttpResponseStatus.OK.code() &&
+                httpResponse.headers().containsValue(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES, true) &&
+                !HttpUtil.isTransferEncodingChunked(httpResponse) &&
+                HttpUtil.getContentLength(httpResponse, -1L) > 0 &&
+                ifRange(httpResponse) != null;
+    }
+
+    /**
+     * 从断点续传，通过其它上游代理获取剩余的响应体，接在已经返回给客户端的部分后面
+     *
+     * @param ctx           客户端的 {@link ChannelHandlerContext}
+     * @param serverChannel 原始的到服务端（或上游代理）的连接，返回响应头部后被关闭
+     * @param httpRequest   原始请求
+     * @param httpResponse  原始响应
+     * @param keepAlive     下载完成后是否保持客户端连接
+     * @param offset        已经返回给客户端的响应体字节数
+     * @param failed        出问题的上游代理，不会再使用，为null时不排除
+     * @return 下载任务，没有可用的上游代理或空闲的worker时为null
+     */
+    ParallelRangeDownload resume(ChannelHandlerContext ctx, Channel serverChannel, HttpRequest httpRequest,
+                                 HttpResponse httpResponse, boolean keepAlive, long offset,
+                                 UpstreamProxyDetail failed) {
+        String url = absoluteUrl(httpRequest, ctx);
+        if (url == null) {
+            return null;
+        }
+        List<UpstreamProxyPair> upstreamProxyPairs = switcher.rankAvailable(httpRequest);
+        upstreamProxyPairs.removeIf(upstreamProxyPair -> upstreamProxyPair.upstreamProxyDetail == failed);
+        if (upstreamProxyPairs.isEmpty()) {
+            return null;
+        }
+        int workers = reserveWorkers(Math.min(parallelism, upstreamProxyPairs.size()));
+        if (workers == 0) {
+            logger.info("没有空闲的worker，不续传 {}", url);
+            return null;
+        }
+        int window = reserveWindow(workers);
+        if (window == 0) {
+            logger.info("缓冲的额度已经用完，不续传 {}", url);
+            releaseWorkers(workers);
+            return null;
+        }
+        long contentLength = HttpUtil.getContentLength(httpResponse, -1L);
+        logger.info("从 {} 处续传 {}，大小{}", offset, url, contentLength);
+        ParallelRangeDownload parallelRangeDownload = new ParallelRangeDownload(this, ctx, serverChannel, url,
+                forwardHeaders(httpRequest), httpResponse, offset, contentLength - offset, keepAlive, window);
+        parallelRangeDownload.start(upstreamProxyPairs, workers);
+        return parallelRangeDownload;
+    }
+
+    /**
+     * 开始拆分下载，原始响应的头部照常返回给客户端，之后的响应体由各个范围拼接而成
+     *
+     * @param ctx           客户端的 {@link ChannelHandlerContext}
+     * @param serverChannel 原始的到服务端（或上游代理）的连接，返回响应头部后被关闭
+     * @param httpRequest   原始请求
+     * @param httpResponse  原始响应
+     * @param keepAlive     下载完成后是否保持客户端连接
+     * @return 下载任务，无法拆分或没有空闲的worker时为null
+     */
+    ParallelRangeDownload start(ChannelHandlerContext ctx, Channel serverChannel, HttpRequest httpRequest,
+                                HttpResponse httpResponse, boolean keepAlive) {
+        String url = absoluteUrl(httpRequest, ctx);
+        if (url == null) {
+            return null;
+        }
+        List<UpstreamProxyPair> upstreamProxyPairs = switcher.rankAvailable(httpRequest);
+        if (upstreamProxyPairs.isEmpty()) {
+            return null;
+        }
+        int workers = reserveWorkers(Math.min(parallelism, upstreamProxyPairs.size()));
+        if (workers == 0) {
+            logger.info("没有空闲的worker，不拆分 {}", url);
+            return null;
+        }
+        int window = reserveWindow(workers);
+        if (window == 0) {
+            // 原始连接还没有被关闭，照常转发即可
+            logger.info("缓冲的额度已经用完，不拆分 {}", url);
+            releaseWorkers(workers);
+            return null;
+        }
+        long contentLength = HttpUtil.getContentLength(httpResponse, -1L);
+        logger.info("拆分下载 {}，大小{}，使用{}个上游代理", url, contentLength, workers);
+        ParallelRangeDownload parallelRangeDownload = new ParallelRangeDownload(this, ctx, serverChannel, url,
+                forwardHeaders(httpRequest), httpResponse, 0, contentLength, keepAlive, window);
+        parallelRangeDownload.start(upstreamProxyPairs, workers);
+        return parallelRangeDownload;
+    }
+}
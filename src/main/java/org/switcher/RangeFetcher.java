@@ -0,0 +1,93 @@
+package org.switcher;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过指定的上游代理获取资源的一个范围
+ * <p>
+ * 每个上游代理只创建一个 {@link OkHttpClient}，从而能复用到上游代理的连接
+ */
+class RangeFetcher {
+    private final Map<InetSocketAddress, OkHttpClient> clients;
+
+    private final int timeoutMillis;
+
+    /**
+     * @param timeoutMillis 连接和读取的超时时间（毫秒）
+     */
+    RangeFetcher(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        clients = new ConcurrentHashMap<>();
+    }
+
+    private OkHttpClient client(InetSocketAddress proxySocket) {
+        return clients.computeIfAbsent(proxySocket, __ -> {
+            OkHttpClient client = new OkHttpClient();
+            client.setProxy(proxySocket == UpstreamProxyManager.DIRECT_CONNECTION ?
+                    Proxy.NO_PROXY : new Proxy(Proxy.Type.HTTP, proxySocket));
+            client.setConnectTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+            client.setReadTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+            client.setFollowRedirects(false);
+            // 失败时由调用者换一个上游代理重试
+            client.setRetryOnConnectionFailure(false);
+            return client;
+        });
+    }
+
+    /**
+     * 上游代理被移除后，不再需要对应的client
+     *
+     * @param proxySocket 上游代理的socket
+     */
+    void remove(InetSocketAddress proxySocket) {
+        clients.remove(proxySocket);
+    }
+
+    /**
+     * 获取[from, to]范围内的字节
+     *
+     * @param proxySocket 上游代理的socket
+     * @param url         资源的url
+     * @param headers     原始请求中需要转发的头部
+     * @param from        起始位置
+     * @param to          结束位置（包含）
+     * @param ifRange     If-Range的值，保证各个范围来自同一个版本的资源，为null时不设置
+     * @param length      原始响应的响应体大小，Content-Range中的总大小必须与之相同
+     * @param etag        原始响应的ETag，范围响应带有不同的ETag时拒绝，为null时不检查
+     * @return 状态码为206且范围正确、来自同一个版本的响应，调用者负责关闭
+     * @throws IOException 请求失败、服务端没有按要求返回范围或资源已经改变
+     */
+    Response fetch(InetSocketAddress proxySocket, String url, List<Map.Entry<String, String>> headers,
+                   long from, long to, String ifRange, long length, String etag) throws IOException {
+        Request.Builder builder = new Request.Builder().url(url).get();
+        headers.forEach(header -> builder.addHeader(header.getKey(), header.getValue()));
+        builder.header("Range", "bytes=" + from + "-" + to);
+        if (ifRange != null) {
+            builder.header("If-Range", ifRange);
+        }
+        Response response = client(proxySocket).newCall(builder.build()).execute();
+        String contentRange = response.header("Content-Range");
+        if (response.code() != 206 || contentRange == null || !contentRange.startsWith("bytes " + from + "-")) {
+            response.body().close();
+            throw new IOException("服务端没有返回请求的范围，状态码" + response.code() + "，Content-Range: " + contentRange);
+        }
+        // 没有If-Range或者服务端忽略了它时，不同版本的范围拼在一起会得到损坏的响应体
+        String responseEtag = response.header("ETag");
+        if (!contentRange.endsWith("/" + length) ||
+                (etag != null && responseEtag != null && !etag.equals(responseEtag))) {
+            response.body().close();
+            throw new IOException("资源已经改变，Content-Range: " + contentRange + "，ETag: " + responseEtag);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,266 @@
+package org.switcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在连接建立之后继续根据速度调整上游代理
+ * <p>
+ * 定期比较正在进行的可续传下载（见 {@link RangeDownloader#isResumable}）的速度，速度低于所有这些下载的某个分位数、
+ * 且其它上游代理的剩余空间（观测到的上限减去当前速度）明显更大的下载，持续一段时间后会被标记为需要迁移，
+ * 由 {@link SwitcherHttpFilter} 从断点通过其它上游代理续传；
+ * 一半以上的下载都需要迁移的上游代理会被标记为降级，在一段时间内不再分配新的连接
+ */
+public class Rebalancer {
+    private final static Logger logger = LoggerFactory.getLogger(Rebalancer.class);
+
+    public final static long DEFAULT_INTERVAL = 1000;
+    public final static double DEFAULT_PERCENTILE = 0.2;
+    public final static long DEFAULT_SLOW_MILLIS = 10 * 1000;
+
+    /**
+     * 其它上游代理的剩余空间至少是连接速度的这么多倍时，迁移才有意义
+     */
+    private final static double HEADROOM_RATIO = 2;
+
+    private final Switcher switcher;
+
+    private ScheduledExecutorService scheduler;
+
+    private volatile double percentile;
+
+    private volatile long slowMillis;
+
+    /**
+     * 是否有上游代理被标记为降级，选择代理时据此决定是否需要过滤
+     */
+    private volatile boolean anyDegraded;
+
+    Rebalancer(Switcher switcher) {
+        this.switcher = switcher;
+    }
+
+    /**
+     * 开始定期检查
+     *
+     * @param intervalMillis 检查间隔（毫秒）
+     * @param percentile     速度低于这个分位数（0到1之间）的下载被认为是慢的
+     * @param slowMillis     持续慢这么久（毫秒）后迁移，上游代理被降级的时间也是这么久
+     */
+    public synchronized void start(long intervalMillis, double percentile, long slowMillis) {
+        stop();
+        if (intervalMillis <= 0) {
+            logger.warn("非法参数intervalMillis={}(<=0)，将修改为默认值{}", intervalMillis, DEFAULT_INTERVAL);
+            intervalMillis = DEFAULT_INTERVAL;
+        }
+        if (percentile <= 0 || percentile >= 1) {
+            logger.warn("非法参数percentile={}(不在0到1之间)，将修改为默认值{}", percentile, DEFAULT_PERCENTILE);
+            percentile = DEFAULT_PERCENTILE;
+        }
+        this.percentile = percentile;
+        if (slowMillis <= 0) {
+            logger.warn("非法参数slowMillis={}(<=0)，将修改为默认值{}", slowMillis, DEFAULT_SLOW_MILLIS);
+            slowMillis = DEFAULT_SLOW_MILLIS;
+        }
+        this.slowMillis = slowMillis;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "switcher-rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::rebalance, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("开始定期调整上游代理，间隔{}ms", intervalMillis);
+    }
+
+    public long getSlowMillis() {
+        return slowMillis;
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            // 停止后不会再有检查来结束降级，所以立即结束
+            boolean changed = false;
+            for (UpstreamProxyPair upstreamProxyPair : switcher.upstreamProxyManager.snapshot()) {
+                if (upstreamProxyPair.upstreamProxyDetail.degradedUntil != 0) {
+                    upstreamProxyPair.upstreamProxyDetail.degradedUntil = 0;
+                    changed = true;
+                }
+            }
+            anyDegraded = false;
+            if (changed) {
+                switcher.upstreamProxyManager.rebuildSnapshot();
+            }
+        }
+    }
+
+    /**
+     * @return 是否有上游代理被标记为降级
+     */
+    public boolean isAnyDegraded() {
+        return anyDegraded;
+    }
+
+    private void rebalance() {
+        try {
+            rebalance0();
+        } catch (RuntimeException e) {
+            // 异常会使定期任务停止
+            logger.warn("调整上游代理失败", e);
+        }
+    }
+
+    private void rebalance0() {
+        long millis = SpeedClock.millis();
+        UpstreamProxyPair[] upstreamProxyPairs = switcher.upstreamProxyManager.snapshot();
+
+        // 每个上游代理的剩余空间
+        long[] headrooms = new long[upstreamProxyPairs.length];
+        for (int i = 0; i < upstreamProxyPairs.length; i++) {
+            UpstreamProxyDetail upstreamProxyDetail = upstreamProxyPairs[i].upstreamProxyDetail;
+            // 正在被排空的代理不再分配新的连接，同样不作为迁移的目标
+            if (upstreamProxyDetail.health.isDown() || upstreamProxyDetail.isDegraded() ||
+                    upstreamProxyDetail.draining) {
+                continue;
+            }
+            UpstreamProxyDetail.Sample sample = upstreamProxyDetail.sample(TrafficDirection.DOWNLOAD);
+            // 还没有观测到流量的代理不知道上限，不作为迁移的目标
+            headrooms[i] = Math.max(sample.ceiling - sample.speed, 0);
+        }
+
+        // 正在进行可续传下载的连接及其速度
+        List<ConnectionDetail> transfers = new ArrayList<>();
+        switcher.connectionManager.forEach((clientSocket, connectionDetail) -> {
+            if (connectionDetail.resumable && !connectionDetail.migrate) {
+                transfers.add(connectionDetail);
+            }
+        });
+        if (transfers.isEmpty()) {
+            updateDegraded(upstreamProxyPairs, millis, false);
+            return;
+        }
+        long[] speeds = new long[transfers.size()];
+        for (int i = 0; i < speeds.length; i++) {
+            speeds[i] = transfers.get(i).speedRecorder.getSpeed();
+        }
+        long[] sorted = speeds.clone();
+        Arrays.sort(sorted);
+        long threshold = sorted[(int) (percentile * (sorted.length - 1))];
+
+        // 每次检查只建立一次socket到下标的映射，不需要对每个连接遍历所有上游代理
+        Map<InetSocketAddress, Integer> indexes = new HashMap<>(upstreamProxyPairs.length * 2);
+        for (int i = 0; i < upstreamProxyPairs.length; i++) {
+            indexes.put(upstreamProxyPairs[i].proxySocket, i);
+        }
+
+        // 同一个组的上游代理共享同一个瓶颈，迁移到组内其它代理没有意义，所以每个组只取组内最大的剩余空间，
+        // 没有组的上游代理各自算一个；记下最大和第二大的，迁移的目标就是其中不属于连接所在组的那个
+        Map<UpstreamProxyGroup, Long> groupHeadrooms = new HashMap<>();
+        Object bestOwner = null;
+        long bestHeadroom = 0;
+        long secondHeadroom = 0;
+        for (int i = 0; i < upstreamProxyPairs.length; i++) {
+            UpstreamProxyGroup group = upstreamProxyPairs[i].upstreamProxyDetail.group;
+            if (group != null) {
+                groupHeadrooms.merge(group, headrooms[i], Math::max);
+            } else if (headrooms[i] > bestHeadroom) {
+                secondHeadroom = bestHeadroom;
+                bestHeadroom = headrooms[i];
+                bestOwner = upstreamProxyPairs[i];
+            } else {
+                secondHeadroom = Math.max(secondHeadroom, headrooms[i]);
+            }
+        }
+        for (Map.Entry<UpstreamProxyGroup, Long> entry : groupHeadrooms.entrySet()) {
+            long headroom = entry.getValue();
+            if (headroom > bestHeadroom) {
+                secondHeadroom = bestHeadroom;
+                bestHeadroom = headroom;
+                bestOwner = entry.getKey();
+            } else {
+                secondHeadroom = Math.max(secondHeadroom, headroom);
+            }
+        }
+
+        int[] slowConnections = new int[upstreamProxyPairs.length];
+        int[] migrations = new int[upstreamProxyPairs.length];
+        for (int i = 0; i < speeds.length; i++) {
+            ConnectionDetail connectionDetail = transfers.get(i);
+            Integer index = indexes.get(connectionDetail.proxySocket);
+            if (index == null) {
+                // 上游代理已被移除，由续传处理
+                continue;
+            }
+            UpstreamProxyGroup group = upstreamProxyPairs[index].upstreamProxyDetail.group;
+            Object owner = group != null ? group : upstreamProxyPairs[index];
+            long targetHeadroom = owner == bestOwner ? secondHeadroom : bestHeadroom;
+            if (speeds[i] >= threshold || targetHeadroom < speeds[i] * HEADROOM_RATIO || targetHeadroom == 0) {
+                connectionDetail.slowSince = 0;
+                continue;
+            }
+            ++slowConnections[index];
+            if (connectionDetail.slowSince == 0) {
+                connectionDetail.slowSince = millis;
+            } else if (millis - connectionDetail.slowSince >= slowMillis) {
+                ++migrations[index];
+                connectionDetail.migrate = true;
+                logger.info("{} 通过 {} 的速度{}持续低于{}，迁移到其它上游代理", connectionDetail.uri,
+                        connectionDetail.proxySocket, SpeedRecorder.prettySpeed(speeds[i]),
+                        SpeedRecorder.prettySpeed(threshold));
+            }
+        }
+
+        boolean changed = false;
+        for (int i = 0; i < upstreamProxyPairs.length; i++) {
+            UpstreamProxyDetail upstreamProxyDetail = upstreamProxyPairs[i].upstreamProxyDetail;
+            if (migrations[i] > 0 && 2 * slowConnections[i] > upstreamProxyDetail.getRelevantConnectionSize()) {
+                if (!upstreamProxyDetail.isDegraded()) {
+                    logger.warn("上游代理 {} 上的大部分下载都很慢，{}ms内不再分配新的连接",
+                            upstreamProxyPairs[i].proxySocket, slowMillis);
+                    changed = true;
+                }
+                upstreamProxyDetail.degradedUntil = millis + slowMillis;
+            }
+        }
+        updateDegraded(upstreamProxyPairs, millis, changed);
+    }
+
+    /**
+     * 结束已经到期的降级，有上游代理开始或结束降级时重建可选择的快照，见 {@link UpstreamProxyManager#selectable()}。
+     * 只在检查线程中进行，所以降级到期后最多要再等一个检查间隔才会重新分配连接
+     *
+     * @param upstreamProxyPairs 所有上游代理
+     * @param millis             当前的 {@link SpeedClock#millis()}
+     * @param changed            本次检查是否有上游代理开始降级
+     */
+    private void updateDegraded(UpstreamProxyPair[] upstreamProxyPairs, long millis, boolean changed) {
+        boolean anyDegraded = false;
+        for (UpstreamProxyPair upstreamProxyPair : upstreamProxyPairs) {
+            UpstreamProxyDetail upstreamProxyDetail = upstreamProxyPair.upstreamProxyDetail;
+            if (upstreamProxyDetail.degradedUntil == 0) {
+                continue;
+            }
+            if (millis < upstreamProxyDetail.degradedUntil) {
+                anyDegraded = true;
+            } else {
+                upstreamProxyDetail.degradedUntil = 0;
+                changed = true;
+            }
+        }
+        this.anyDegraded = anyDegraded;
+        if (changed) {
+            switcher.upstreamProxyManager.rebuildSnapshot();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.switcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 毫秒级滑动窗口：统计截止到当前时刻、长度为windowMillis的窗口内的字节数，
+ * 最旧的桶只按其落在窗口内的比例计入
+ */
+public class SlidingWindowSpeedEstimator implements SpeedEstimator {
+    private final static Logger logger = LoggerFactory.getLogger(SlidingWindowSpeedEstimator.class);
+
+    public final static int DEFAULT_WINDOW = 1000;
+    public final static int DEFAULT_RESOLUTION = 100;
+
+    private final int windowMillis;
+    private final int resolution;
+
+    /**
+     * @param windowMillis 窗口长度（毫秒）
+     * @param resolution   每个桶的时长（毫秒），越小越精确，但需要更多的桶
+     */
+    public SlidingWindowSpeedEstimator(int windowMillis, int resolution) {
+        if (windowMillis <= 0) {
+            logger.warn("非法参数windowMillis={}(<=0)，将修改为默认值{}", windowMillis, DEFAULT_WINDOW);
+            windowMillis = DEFAULT_WINDOW;
+        }
+        if (resolution <= 0) {
+            logger.warn("非法参数resolution={}(<=0)，将修改为默认值{}", resolution, DEFAULT_RESOLUTION);
+            resolution = DEFAULT_RESOLUTION;
+        }
+        this.windowMillis = windowMillis;
+        this.resolution = resolution;
+    }
+
+    @Override
+    public int getResolution() {
+        return resolution;
+    }
+
+    @Override
+    public int getSize() {
+        // 当前桶只经过了一部分，所以要多保留一个桶
+        return (windowMillis + resolution - 1) / resolution + 1;
+    }
+
+    @Override
+    public long estimate(SpeedWindow window) {
+        long remaining = windowMillis;
+        long totalValue = 0;
+        for (int age = 0; age < window.size() && remaining > 0; age++) {
+            long duration = age == 0 ? window.getElapsed() : resolution;
+            if (duration <= remaining) {
+                totalValue += window.get(age);
+            } else {
+                totalValue += window.get(age) * remaining / duration;
+            }
+            remaining -= duration;
+        }
+        return totalValue * 1000 / windowMillis;
+    }
+}
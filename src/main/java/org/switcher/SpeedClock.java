@@ -0,0 +1,76 @@
+package org.switcher;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 所有recorder共享的粗粒度时钟
+ * <p>
+ * 由一个守护线程定期更新，读取时只是一次volatile读，比每记录一次就调用 {@link System#nanoTime()} 便宜。
+ * 更新间隔由最细的桶精度决定（见 {@link #requireResolution(int)}），每个桶内更新 {@link #TICKS_PER_RESOLUTION} 次，
+ * 默认1秒的精度下每 {@link #MAX_TICK_MILLIS} 毫秒才唤醒一次
+ */
+final class SpeedClock {
+    final static int MILLI = 1000000;
+
+    /**
+     * 没有recorder需要更细的精度时的更新间隔
+     */
+    final static int MAX_TICK_MILLIS = 100;
+
+    private final static int TICKS_PER_RESOLUTION = 10;
+
+    /**
+     * 时钟的起点，使读数从0开始，不会出现负数
+     */
+    private final static long ORIGIN = System.nanoTime();
+
+    private static volatile long millis = 0;
+
+    /**
+     * 当前的更新间隔，只会变小
+     */
+    private static volatile int tickMillis = MAX_TICK_MILLIS;
+
+    private final static Thread ticker;
+
+    static {
+        ticker = new Thread(SpeedClock::tick, "switcher-speed-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private SpeedClock() {
+    }
+
+    private static void tick() {
+        while (true) {
+            LockSupport.parkNanos(tickMillis * (long) MILLI);
+            millis = (System.nanoTime() - ORIGIN) / MILLI;
+        }
+    }
+
+    /**
+     * 声明需要的精度，必要时缩短更新间隔，在创建 {@link SpeedCounter} 时调用
+     *
+     * @param resolution 桶的时长（毫秒）
+     */
+    static void requireResolution(int resolution) {
+        int tick = Math.max(1, Math.min(MAX_TICK_MILLIS, resolution / TICKS_PER_RESOLUTION));
+        if (tick < tickMillis) {
+            synchronized (SpeedClock.class) {
+                if (tick < tickMillis) {
+                    tickMillis = tick;
+                    // 立即按新的间隔更新，不必等完上一个较长的间隔
+                    LockSupport.unpark(ticker);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 从0开始单调递增的毫秒数，精度为当前的更新间隔
+     */
+    static long millis() {
+        return millis;
+    }
+}
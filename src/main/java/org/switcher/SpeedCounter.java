@@ -0,0 +1,124 @@
+package org.switcher;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的分段计数器，按时间分桶记录字节数
+ * <p>
+ * 每个线程按其id映射到一个分段（stripe），写入时只对自己分段中的一个桶做CAS，读取时再合并所有分段。
+ * 每个桶是一个long：高 {@link #timestampBits} 位为时间戳的低位，低 {@link #valueBits} 位为字节数，
+ * 这样时间戳和字节数可以一次CAS同时更新，记录时不需要分配任何对象。
+ * 时间戳的位数随精度增加，使时间戳回绕的周期总是约2^24秒（194天），
+ * 否则长时间空闲的recorder中过期的桶会在回绕后被当作当前的数据读出
+ */
+class SpeedCounter {
+    /**
+     * 精度为1秒时时间戳的位数
+     */
+    private final static int SECOND_TIMESTAMP_BITS = 24;
+
+    /**
+     * 字节数至少保留的位数，1毫秒的桶也能记录1GB
+     */
+    private final static int MIN_VALUE_BITS = 30;
+
+    final int timestampBits;
+    final int valueBits;
+    final long timestampMask;
+    final long valueMask;
+
+    /**
+     * 分段之间的填充（以long计，共128字节），防止不同分段落在同一缓存行上产生伪共享
+     */
+    private final static int PADDING = 16;
+
+    /**
+     * 默认分段数，取不小于cpu数的2的幂
+     */
+    final static int STRIPES = Math.max(1, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    /**
+     * 每个分段的桶数
+     */
+    final int size;
+
+    /**
+     * 每个桶的时长（毫秒）
+     */
+    final int resolution;
+
+    private final int stripeMask;
+
+    /**
+     * 相邻分段起始位置的间隔
+     */
+    private final int stride;
+
+    private final AtomicLongArray cells;
+
+    /**
+     * @param size       每个分段的桶数
+     * @param resolution 每个桶的时长（毫秒）
+     * @param stripes    分段数，必须是2的幂
+     */
+    SpeedCounter(int size, int resolution, int stripes) {
+        this.size = size;
+        this.resolution = resolution;
+        // 每个桶的时长缩短到1/2^k，时间戳就多用k位
+        int extraBits = 0;
+        while (extraBits < Long.SIZE - SECOND_TIMESTAMP_BITS - MIN_VALUE_BITS &&
+                (long) resolution << extraBits < 1000) {
+            ++extraBits;
+        }
+        timestampBits = SECOND_TIMESTAMP_BITS + extraBits;
+        valueBits = Long.SIZE - timestampBits;
+        timestampMask = (1L << timestampBits) - 1;
+        valueMask = (1L << valueBits) - 1;
+        SpeedClock.requireResolution(resolution);
+        stripeMask = stripes - 1;
+        // 只有一个分段时没有伪共享的问题，不需要填充
+        stride = stripes == 1 ? size : size + PADDING;
+        cells = new AtomicLongArray(stride * stripes);
+    }
+
+    /**
+     * 在millis对应的桶中增加numberOfBytes，如果桶中是旧的时间戳则覆盖
+     *
+     * @param millis        {@link SpeedClock#millis()}
+     * @param numberOfBytes 字节数
+     */
+    void record(long millis, int numberOfBytes) {
+        long timestamp = millis / resolution;
+        int i = (int) (Thread.currentThread().getId() & stripeMask) * stride +
+                (int) Math.floorMod(timestamp, (long) size);
+        long stamp = timestamp & timestampMask;
+        while (true) {
+            long cell = cells.get(i);
+            long next = cell >>> valueBits == stamp ? cell + numberOfBytes : stamp << valueBits | numberOfBytes;
+            if (cells.compareAndSet(i, cell, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 把所有分段的桶累加到window中，如果window的精度和自身不同，则按桶的起始时间换算
+     *
+     * @param window 读取时使用的临时窗口
+     * @param millis 当前的 {@link SpeedClock#millis()}，用于还原桶中被截断的时间戳
+     */
+    void collect(SpeedUnsafeRecorder window, long millis) {
+        long timestamp = millis / resolution;
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            int base = stripe * stride;
+            for (int i = base; i < base + size; i++) {
+                long cell = cells.get(i);
+                long value = cell & valueMask;
+                if (value != 0) {
+                    long age = (timestamp - (cell >>> valueBits)) & timestampMask;
+                    window.record((timestamp - age) * resolution / window.getResolution(), value);
+                }
+            }
+        }
+    }
+}
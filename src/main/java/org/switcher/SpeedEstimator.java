@@ -0,0 +1,24 @@
+package org.switcher;
+
+/**
+ * 速度估计方法，决定 {@link SpeedRecorder} 按什么精度记录多长时间，以及如何由记录估计出速度
+ */
+public interface SpeedEstimator {
+    /**
+     * @return 每个桶的时长（毫秒）
+     */
+    int getResolution();
+
+    /**
+     * @return 需要保留的桶的数量
+     */
+    int getSize();
+
+    /**
+     * 估计速度
+     *
+     * @param window 合并后的窗口，其精度和大小与 {@link #getResolution()}、{@link #getSize()} 一致
+     * @return 速度（字节/秒）
+     */
+    long estimate(SpeedWindow window);
+}
@@ -4,9 +4,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.text.MessageFormat;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SpeedRecorder {
     private final static Logger logger = LoggerFactory.getLogger(SpeedRecorder.class);
@@ -14,15 +13,41 @@ public class SpeedRecorder {
     private final static String[] UNIT = new String[]{"B", "KB", "MB", "GB", "TB"};
 
     /**
-     * 记录最近n秒的速度
+     * 每个读取线程重用自己的窗口，读取时不需要分配对象
      */
-    private final AtomicReference<SpeedUnsafeRecorder> speedRecordsReference;
+    private final static ThreadLocal<SpeedUnsafeRecorder> WINDOW =
+            ThreadLocal.withInitial(() -> new SpeedUnsafeRecorder(DEFAULT_SIZE));
 
     /**
-     * 父recorder，自身的操作会影响到父节点
+     * 记录最近n秒的速度，写入时不会再向上传递给parent
+     */
+    private volatile SpeedCounter speedCounter;
+
+    /**
+     * 速度估计方法
+     */
+    private volatile SpeedEstimator speedEstimator;
+
+    /**
+     * 分段数
+     */
+    private final int stripes;
+
+    /**
+     * 父recorder，读取父节点的速度时会合并自身
      */
     final SpeedRecorder parent;
 
+    /**
+     * 子recorder，读取速度时再合并，从而把连接→上游代理→全局的层级聚合放到读取时进行
+     */
+    private final Set<SpeedRecorder> children;
+
+    /**
+     * 是否已经停止
+     */
+    private volatile boolean stopped;
+
     public static String prettySpeed(long speed) {
         int unit = 0;
         long remainder = 0;
@@ -49,18 +74,45 @@ public class SpeedRecorder {
         this(size, null);
     }
 
+    /**
+     * @param parent 父recorder，会沿用其速度估计方法
+     */
     SpeedRecorder(SpeedRecorder parent) {
-        this(DEFAULT_SIZE, parent);
+        this(inheritSpeedEstimator(parent), SpeedCounter.STRIPES, parent);
     }
 
     SpeedRecorder(int size, SpeedRecorder parent) {
-        speedRecordsReference = new AtomicReference<>();
-        setSize(size);
+        this(new FixedWindowSpeedEstimator(size), SpeedCounter.STRIPES, parent);
+    }
+
+    /**
+     * @param speedEstimator 速度估计方法
+     * @param stripes        分段数，必须是2的幂，只被少数线程写入的recorder（如单个连接）可以设为1来节省内存
+     * @param parent         父recorder
+     */
+    SpeedRecorder(SpeedEstimator speedEstimator, int stripes, SpeedRecorder parent) {
+        this.stripes = stripes;
         this.parent = parent;
+        children = ConcurrentHashMap.newKeySet();
+        stopped = false;
+        setSpeedEstimator(speedEstimator);
+        if (parent != null) {
+            parent.children.add(this);
+        }
+    }
+
+    /**
+     * 子recorder的记录会在父recorder读取时合并，精度一致时才能准确合并，因此默认沿用父recorder的估计方法
+     *
+     * @param parent 父recorder
+     * @return 父recorder的速度估计方法，没有父recorder时为默认的固定窗口
+     */
+    static SpeedEstimator inheritSpeedEstimator(SpeedRecorder parent) {
+        return parent == null ? new FixedWindowSpeedEstimator(DEFAULT_SIZE) : parent.speedEstimator;
     }
 
     public int getSize() {
-        return speedRecordsReference.get().speedRecords.size();
+        return speedCounter.size;
     }
 
     public void setSize(int size) {
@@ -69,75 +121,73 @@ public class SpeedRecorder {
             logger.warn("非法参数size={}(<=1)，将修改为默认值{}", size, DEFAULT_SIZE);
             size = DEFAULT_SIZE;
         }
-        speedRecordsReference.set(new SpeedUnsafeRecorder(size));
+        setSpeedEstimator(new FixedWindowSpeedEstimator(size));
+    }
+
+    public SpeedEstimator getSpeedEstimator() {
+        return speedEstimator;
     }
 
+    /**
+     * 设置速度估计方法，会清空已有的记录
+     *
+     * @param speedEstimator 速度估计方法
+     */
+    public void setSpeedEstimator(SpeedEstimator speedEstimator) {
+        if (speedEstimator == null || speedEstimator.getSize() <= 0 || speedEstimator.getResolution() <= 0) {
+            logger.warn("非法参数speedEstimator={}，将修改为默认值", speedEstimator);
+            speedEstimator = new FixedWindowSpeedEstimator(DEFAULT_SIZE);
+        }
+        // 先替换计数器，保证读取时计数器的精度不低于估计方法的精度
+        speedCounter = new SpeedCounter(speedEstimator.getSize(), speedEstimator.getResolution(), stripes);
+        this.speedEstimator = speedEstimator;
+    }
+
+    /**
+     * 记录接收到的字节数，只写入自身的计数器，不会分配对象
+     *
+     * @param numberOfBytes 字节数
+     */
     public void record(int numberOfBytes) {
-        speedRecordsReference.updateAndGet(speedUnsafeRecorder -> {
-            speedUnsafeRecorder.record(numberOfBytes);
-            // 同时更新parent
-            if (parent != null && !speedUnsafeRecorder.stopped) {
-                parent.record(numberOfBytes);
-            }
-            return speedUnsafeRecorder;
-        });
+        if (!stopped) {
+            speedCounter.record(SpeedClock.millis(), numberOfBytes);
+        }
     }
 
     public long getSpeed() {
-        // 使用AtomicLong是为了能在updateAndGet设置speed的值，也可用new long[1]代替
-        AtomicLong speed = new AtomicLong();
-        speedRecordsReference.updateAndGet(speedUnsafeRecorder -> {
-            speed.set(speedUnsafeRecorder.getSpeed());
-            return speedUnsafeRecorder;
-        });
-        return speed.get();
+        SpeedEstimator speedEstimator = this.speedEstimator;
+        long millis = SpeedClock.millis();
+        SpeedUnsafeRecorder window = WINDOW.get();
+        window.reset(speedEstimator.getSize(), speedEstimator.getResolution(), millis);
+        collect(window, millis);
+        return speedEstimator.estimate(window);
     }
 
     public String getPrettySpeed() {
         return prettySpeed(getSpeed());
     }
 
-    // 停止这个计速器
-    void tearDown() {
-        if (parent != null) {
-            speedRecordsReference.updateAndGet(speedUnsafeRecorder -> {
-                speedUnsafeRecorder.stopped = true;
-                parent.reduce(speedUnsafeRecorder);
-                return speedUnsafeRecorder;
-            });
-        }
-    }
-
     /**
-     * {@link SpeedUnsafeRecorder#get(int)}
+     * 把自身以及所有子recorder的记录合并到window中
      *
-     * @param toReduce 每个对应时间需要减少的值
+     * @param window 临时窗口
+     * @param millis 当前的 {@link SpeedClock#millis()}
      */
-    void reduce(SpeedUnsafeRecorder toReduce) {
-        speedRecordsReference.updateAndGet(speedUnsafeRecorder -> {
-            // 用speedUnsafeRecorder.get(int)方法顺序获取的speedRecorder的timestamp也是顺序的
-            List<SpeedRecord> iSpeedRecords = speedUnsafeRecorder.speedRecords;
-            List<SpeedRecord> jSpeedRecords = toReduce.speedRecords;
-            for (int i = 0, j = 0; i < iSpeedRecords.size() && j < jSpeedRecords.size(); ) {
-                SpeedRecord iSpeedRecord = iSpeedRecords.get(i);
-                SpeedRecord jSpeedRecord = jSpeedRecords.get(j);
-                if (iSpeedRecord.timestamp < jSpeedRecord.timestamp) {
-                    ++i;
-                } else if (iSpeedRecord.timestamp > jSpeedRecord.timestamp) {
-                    ++j;
-                } else {
-                    // 如果iSpeedRecord.timestamp==jSpeedRecord.timestamp
-                    // 那么需要减去对应值
-                    iSpeedRecord.value -= jSpeedRecord.value;
-                    ++i;
-                    ++j;
-                }
-            }
-            // 同时更新parent
-            if (parent != null) {
-                parent.reduce(toReduce);
-            }
-            return speedUnsafeRecorder;
-        });
+    private void collect(SpeedUnsafeRecorder window, long millis) {
+        if (stopped) {
+            return;
+        }
+        speedCounter.collect(window, millis);
+        for (SpeedRecorder child : children) {
+            child.collect(window, millis);
+        }
+    }
+
+    // 停止这个计速器，停止后其记录不再计入parent
+    void tearDown() {
+        stopped = true;
+        if (parent != null) {
+            parent.children.remove(this);
+        }
     }
 }
@@ -1,75 +1,102 @@
 package org.switcher;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
- * 非线程安全的recorder
+ * 非线程安全的recorder，读取速度时作为临时窗口，合并 {@link SpeedCounter} 的各个分段以及子recorder
+ * <p>
+ * 用原始类型的数组做环形缓冲，时间戳t的记录存放在t%size的位置，可以反复 {@link #reset(int, int, long)} 重用，
+ * 不会为每个时间戳分配对象
  */
-class SpeedUnsafeRecorder {
-    public final static int NANO = 1000000000;
+class SpeedUnsafeRecorder implements SpeedWindow {
+    private long[] timestamps;
+    private long[] values;
+
+    /**
+     * 窗口大小
+     */
+    private int size;
 
-    final List<SpeedRecord> speedRecords;
+    /**
+     * 每个桶的时长（毫秒）
+     */
+    private int resolution;
 
     /**
-     * 是否已经停止
+     * 窗口的最新时间戳，值为毫秒数/resolution
      */
-    boolean stopped;
+    private long timestamp;
 
     /**
-     * 最近更新的位置
+     * 当前桶已经经过的毫秒数
      */
-    private int latest;
+    private long elapsed;
 
     SpeedUnsafeRecorder(int size) {
-        speedRecords = new ArrayList<>(size);
-        latest = size - 1;
-        stopped = false;
-        for (int i = 0; i < size; i++) {
-            speedRecords.add(new SpeedRecord(-1, 0));
-        }
+        timestamps = new long[size];
+        values = new long[size];
+        reset(size, 1000, 0);
     }
 
     /**
-     * 按时间从小到大排列，获取第i个位置的SpeedRecord
+     * 清空窗口
      *
-     * @param i 位置i
-     * @return {@link SpeedRecord}
+     * @param size       窗口大小
+     * @param resolution 每个桶的时长（毫秒）
+     * @param millis     当前的毫秒数
      */
-    SpeedRecord get(int i) {
-        int realI = latest + 1 + i;
-        if (realI > speedRecords.size()) {
-            realI -= speedRecords.size();
+    void reset(int size, int resolution, long millis) {
+        if (size > timestamps.length) {
+            timestamps = new long[size];
+            values = new long[size];
+        }
+        this.size = size;
+        this.resolution = resolution;
+        timestamp = millis / resolution;
+        elapsed = millis % resolution;
+        for (int i = 0; i < size; i++) {
+            timestamps[i] = -1;
+            values[i] = 0;
         }
-        return speedRecords.get(realI);
     }
 
-    void record(int numberOfBytes) {
-        if (stopped)
+    /**
+     * 累加某个时间戳的字节数，超出窗口的时间戳会被忽略
+     *
+     * @param timestamp     时间戳，值为毫秒数/{@link #getResolution()}
+     * @param numberOfBytes 字节数
+     */
+    void record(long timestamp, long numberOfBytes) {
+        long age = this.timestamp - timestamp;
+        if (age < 0 || age >= size) {
             return;
-        long timestamp = System.nanoTime() / NANO;
-        if (timestamp != speedRecords.get(latest).timestamp) {
-            latest += 1;
-            if (latest >= speedRecords.size()) {
-                latest -= speedRecords.size();
-            }
-            speedRecords.set(latest, new SpeedRecord(timestamp, numberOfBytes));
+        }
+        int i = (int) Math.floorMod(timestamp, (long) size);
+        if (timestamps[i] != timestamp) {
+            timestamps[i] = timestamp;
+            values[i] = numberOfBytes;
         } else {
-            speedRecords.get(latest).value += numberOfBytes;
+            values[i] += numberOfBytes;
         }
     }
 
-    long getSpeed() {
-        if (stopped)
-            return 0;
-        long timestamp = System.nanoTime() / NANO;
-        long totalValue = 0;
-        for (int i = 0; i < speedRecords.size(); i++) {
-            SpeedRecord speedRecord = speedRecords.get(i);
-            if (timestamp - speedRecord.timestamp < speedRecords.size()) {
-                totalValue += speedRecord.value;
-            }
-        }
-        return totalValue / speedRecords.size();
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getResolution() {
+        return resolution;
+    }
+
+    @Override
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    @Override
+    public long get(int age) {
+        long timestamp = this.timestamp - age;
+        int i = (int) Math.floorMod(timestamp, (long) size);
+        return timestamps[i] == timestamp ? values[i] : 0;
     }
 }
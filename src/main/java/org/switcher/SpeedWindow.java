@@ -0,0 +1,27 @@
+package org.switcher;
+
+/**
+ * 读取速度时合并得到的只读窗口，供 {@link SpeedEstimator} 估计速度
+ */
+public interface SpeedWindow {
+    /**
+     * @return 桶的数量
+     */
+    int size();
+
+    /**
+     * @return 每个桶的时长（毫秒）
+     */
+    int getResolution();
+
+    /**
+     * @return 当前桶已经经过的毫秒数
+     */
+    long getElapsed();
+
+    /**
+     * @param age 桶的年龄，0为当前桶，1为上一个桶，以此类推
+     * @return 该桶记录的字节数
+     */
+    long get(int age);
+}
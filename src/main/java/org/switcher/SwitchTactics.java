@@ -1,6 +1,13 @@
 package org.switcher;
 
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.ChainedProxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
 
 public interface SwitchTactics {
     /**
@@ -11,4 +18,22 @@ public interface SwitchTactics {
      * @return 排序后的代理
      */
     List<UpstreamProxyPair> getRank(String uri, List<UpstreamProxyPair> proxyPairs);
+
+    /**
+     * 给定请求和可以使用的代理，把选中的代理按优先顺序加入代理链，排在后面的代理会在前面的代理连接失败时使用
+     * <p>
+     * 默认实现会复制代理列表、打乱顺序后调用 {@link #getRank(String, List)}，每次都需要分配对象和排序，
+     * 需要在建立连接的热点路径上避免分配和排序时应覆盖此方法
+     *
+     * @param httpRequest    {@link HttpRequest}
+     * @param proxyPairs     可使用的代理，不能修改
+     * @param chainedProxies 代理链
+     */
+    default void select(HttpRequest httpRequest, UpstreamProxyPair[] proxyPairs, Queue<ChainedProxy> chainedProxies) {
+        List<UpstreamProxyPair> upstreamProxyPairs = new ArrayList<>(Arrays.asList(proxyPairs));
+        // 为了防止短时间内大量连接创建（如IDM）时导致多个连接同时选中同一个代理，所以打乱顺序
+        Collections.shuffle(upstreamProxyPairs);
+        getRank(httpRequest.uri(), upstreamProxyPairs).forEach(upstreamProxyPair ->
+                chainedProxies.add(upstreamProxyPair.upstreamProxyDetail.chainedProxy));
+    }
 }
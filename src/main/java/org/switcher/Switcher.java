@@ -1,16 +1,21 @@
 package org.switcher;
 
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import org.littleshoot.proxy.*;
-import org.littleshoot.proxy.extras.SelfSignedMitmManager;
 import org.littleshoot.proxy.impl.ClientDetails;
 import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLSession;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.*;
 
 /**
@@ -20,19 +25,46 @@ public class Switcher extends ActivityTrackerAdapter implements ChainedProxyMana
     private final static Logger logger = LoggerFactory.getLogger(Switcher.class);
 
     /**
-     * 通过连接数来比较两个代理的拥挤程度
+     * 通过连接数来比较两个代理的拥挤程度，详见 {@link ConnectionCountSwitchTactics}
      */
-    public final static SwitchTactics CONNECTION_COUNT = (uri, proxyPairs) -> {
-        proxyPairs.sort(Comparator.comparingInt(upstreamProxyPair ->
-                upstreamProxyPair.upstreamProxyDetail.getRelevantConnectionSize()));
-        return proxyPairs;
-    };
+    public final static SwitchTactics CONNECTION_COUNT = new ConnectionCountSwitchTactics();
+
+    /**
+     * 通过实测带宽的剩余空间来比较两个代理，详见 {@link ThroughputSwitchTactics}
+     */
+    public final static SwitchTactics THROUGHPUT = new ThroughputSwitchTactics();
+
+    /**
+     * 通过主动探测的往返时间来比较两个代理，详见 {@link LatencySwitchTactics}
+     */
+    public final static SwitchTactics LATENCY = new LatencySwitchTactics();
+
+    /**
+     * 同一个目标服务器尽量使用同一个上游代理，饱和时再按 {@link #THROUGHPUT} 重新选择，详见 {@link HostAffinitySwitchTactics}；
+     * 记录不在Switcher之间共享，传给 {@link #setSwitchTactics} 时每个Switcher会创建自己的实例
+     */
+    public final static SwitchTactics HOST_AFFINITY = new HostAffinitySwitchTactics(THROUGHPUT);
+
+    /**
+     * 选中的代理都被禁忌时最多重新选择的次数
+     */
+    private final static int MAX_REDRAWS = 2;
+
+    /**
+     * 选中的代理先放在这里，检查禁忌后再加入代理链，每个线程重用自己的队列
+     */
+    private final static ThreadLocal<Queue<ChainedProxy>> PICKS = ThreadLocal.withInitial(ArrayDeque::new);
 
     /**
      * 上游代理
      */
     public final UpstreamProxyManager upstreamProxyManager;
 
+    /**
+     * 从文件中批量加载上游代理，见 {@link UpstreamProxyRegistry}
+     */
+    public final UpstreamProxyRegistry registry;
+
     /**
      * 连接
      */
@@ -40,27 +72,99 @@ public class Switcher extends ActivityTrackerAdapter implements ChainedProxyMana
 
     public final Tabu tabu;
 
+    /**
+     * 主动探测上游代理，需要调用 {@link UpstreamProxyProber#start} 才会开始
+     */
+    public final UpstreamProxyProber prober;
+
+    /**
+     * 把慢的下载迁移到其它上游代理，需要调用 {@link Rebalancer#start} 才会开始
+     */
+    public final Rebalancer rebalancer;
+
+    /**
+     * 全局的下载和上传速度
+     */
     public final SpeedRecorder speedRecorder;
+    public final SpeedRecorder uploadSpeedRecorder;
+
+    /**
+     * 全局的流量和建立连接的统计
+     */
+    public final TrafficMetrics metrics;
+
+    public final MetricsExporter metricsExporter;
+
+    /**
+     * 全局、每个客户端主机和每个上游代理的限速
+     */
+    public final BandwidthShaper shaper;
+
+    /**
+     * 上游代理和目标服务器的域名解析，带缓存
+     */
+    public final CachingHostResolver resolver;
+
+    /**
+     * 选择性中间人模式下需要解密的主机
+     */
+    public final MitmRules mitmRules;
+
+    /**
+     * 中间人解密，缓存每个主机的证书
+     */
+    public final SwitcherMitmManager mitmManager;
 
     /**
      * 给来自局域网其它主机的连接提供服务的socket
      */
     InetSocketAddress serverSocket;
 
+    /**
+     * 拆分下载，为null时不拆分，见 {@link #setRangeDownloader(RangeDownloader)}
+     */
+    volatile RangeDownloader rangeDownloader;
+
+    /**
+     * 选择性中间人模式下，内部负责解密的代理服务器，为null时不是选择性中间人模式，见 {@link #setMitmServer}
+     */
+    private volatile ChainedProxy mitmChainedProxy;
+
+    /**
+     * 转发给内部中间人代理服务器时附带的Proxy-Authorization，为null时不附带，见 {@link #newMitmAuthenticator()}
+     */
+    private volatile String mitmAuthorization;
+
     /**
      * 选择策略
      */
     private SwitchTactics switchTactics;
 
+    /**
+     * 有上游代理组或权重时使用，先在组之间选择，再由switchTactics在组内选择
+     */
+    private SwitchTactics groupSwitchTactics;
+
     Switcher() {
         this(CONNECTION_COUNT);
     }
 
     Switcher(SwitchTactics switchTactics) {
+        // 上游代理的recorder以全局recorder为父节点，所以必须先创建
+        speedRecorder = new SpeedRecorder();
+        uploadSpeedRecorder = new SpeedRecorder();
+        resolver = new CachingHostResolver();
+        mitmRules = new MitmRules();
+        mitmManager = new SwitcherMitmManager();
+        metrics = new TrafficMetrics();
+        metricsExporter = new MetricsExporter(this);
         upstreamProxyManager = new UpstreamProxyManager(this);
+        registry = new UpstreamProxyRegistry(this);
         connectionManager = new ConnectionManager(this);
         tabu = new Tabu(this);
-        speedRecorder = new SpeedRecorder();
+        prober = new UpstreamProxyProber(this);
+        rebalancer = new Rebalancer(this);
+        shaper = new BandwidthShaper(this);
         setSwitchTactics(switchTactics);
     }
 
@@ -69,10 +173,108 @@ public class Switcher extends ActivityTrackerAdapter implements ChainedProxyMana
             logger.warn("非法参数switchTactics为空，将设为默认值CONNECTION_COUNT");
             switchTactics = CONNECTION_COUNT;
         }
+        if (switchTactics == HOST_AFFINITY) {
+            switchTactics = ((HostAffinitySwitchTactics) HOST_AFFINITY).newInstance();
+        }
         this.switchTactics = switchTactics;
+        groupSwitchTactics = new GroupSwitchTactics(switchTactics, upstreamProxyManager);
         serverSocket = UpstreamProxyManager.DIRECT_CONNECTION;
     }
 
+    /**
+     * @return 正在使用的策略，设置为 {@link #HOST_AFFINITY} 时返回的是属于此Switcher的实例
+     */
+    public SwitchTactics getSwitchTactics() {
+        return switchTactics;
+    }
+
+    /**
+     * 开启或关闭拆分下载
+     *
+     * @param rangeDownloader {@link RangeDownloader}，为null时关闭
+     */
+    void setRangeDownloader(RangeDownloader rangeDownloader) {
+        this.rangeDownloader = rangeDownloader;
+    }
+
+    /**
+     * 设置选择性中间人模式下内部负责解密的代理服务器，匹配 {@link #mitmRules} 的CONNECT请求会被转发给它
+     *
+     * @param mitmSocket 内部代理服务器监听的socket，为null时关闭选择性中间人模式
+     */
+    void setMitmServer(InetSocketAddress mitmSocket) {
+        mitmChainedProxy = mitmSocket == null ? null : new ChainedProxyAdapter() {
+            @Override
+            public InetSocketAddress getChainedProxyAddress() {
+                return mitmSocket;
+            }
+
+            @Override
+            public void filterRequest(HttpObject httpObject) {
+                String mitmAuthorization = Switcher.this.mitmAuthorization;
+                if (mitmAuthorization != null && httpObject instanceof HttpRequest) {
+                    ((HttpRequest) httpObject).headers().set(HttpHeaderNames.PROXY_AUTHORIZATION, mitmAuthorization);
+                }
+            }
+        };
+    }
+
+    /**
+     * 外部的代理服务器设置了 {@link ProxyAuthenticator} 时，内部中间人代理服务器也需要认证，否则本机的其它程序可以绕过认证；
+     * 但littleproxy认证后会删掉Proxy-Authorization，所以内部代理服务器使用一个随机生成的密码，由外部代理服务器转发时附带
+     *
+     * @return 内部中间人代理服务器使用的 {@link ProxyAuthenticator}
+     */
+    ProxyAuthenticator newMitmAuthenticator() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        String secret = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        mitmAuthorization = "Basic " + Base64.getEncoder().encodeToString(
+                ("switcher:" + secret).getBytes(StandardCharsets.UTF_8));
+        return new ProxyAuthenticator() {
+            @Override
+            public boolean authenticate(String userName, String password) {
+                return "switcher".equals(userName) && secret.equals(password);
+            }
+
+            @Override
+            public String getRealm() {
+                return "switcher-mitm";
+            }
+        };
+    }
+
+    /**
+     * 判断到服务端的连接是否是转发给内部中间人代理服务器的，这样的连接由内部代理服务器统计和限速
+     *
+     * @param socket 到服务端的连接的对端socket
+     * @return 是否是内部中间人代理服务器
+     */
+    boolean isMitmServer(InetSocketAddress socket) {
+        ChainedProxy mitmChainedProxy = this.mitmChainedProxy;
+        return mitmChainedProxy != null && mitmChainedProxy.getChainedProxyAddress().equals(socket);
+    }
+
+    /**
+     * 设置全局、所有上游代理和所有连接的速度估计方法，之后新建的上游代理和连接也会沿用，会清空已有的记录
+     * <p>
+     * 例如选择策略需要更快地对拥塞作出反应时，可以使用 {@link EwmaSpeedEstimator}
+     *
+     * @param speedEstimator 速度估计方法
+     */
+    public void setSpeedEstimator(SpeedEstimator speedEstimator) {
+        speedRecorder.setSpeedEstimator(speedEstimator);
+        uploadSpeedRecorder.setSpeedEstimator(speedEstimator);
+        upstreamProxyManager.forEach((proxySocket, upstreamProxyDetail) -> {
+            upstreamProxyDetail.speedRecorder.setSpeedEstimator(speedEstimator);
+            upstreamProxyDetail.uploadSpeedRecorder.setSpeedEstimator(speedEstimator);
+        });
+        connectionManager.forEach((clientSocket, connectionDetail) -> {
+            connectionDetail.speedRecorder.setSpeedEstimator(speedEstimator);
+            connectionDetail.uploadSpeedRecorder.setSpeedEstimator(speedEstimator);
+        });
+    }
+
     /**
      * @return 部分配置后的 {@link DefaultHttpProxyServer#bootstrap()}
      */
@@ -82,7 +284,8 @@ public class Switcher extends ActivityTrackerAdapter implements ChainedProxyMana
                 .withPort(12234)
                 .plusActivityTracker(this)
                 .withChainProxyManager(this)
-                .withManInTheMiddle(new SelfSignedMitmManager())
+                .withServerResolver(resolver)
+                .withManInTheMiddle(mitmManager)
                 .withFiltersSource(new HttpFiltersSourceAdapter() {
                     @Override
                     public HttpFilters filterRequest(HttpRequest originalRequest) {
@@ -97,16 +300,32 @@ public class Switcher extends ActivityTrackerAdapter implements ChainedProxyMana
     }
 
     /**
-     * 在接收到数据后计算下载速度
+     * 选择性中间人模式下，内部负责解密的代理服务器，只监听环回地址，直接选择上游代理，不会再转发给自己
      *
-     * @param flowContext   {@link FullFlowContext}
-     * @param numberOfBytes {@link Integer}
+     * @return 部分配置后的 {@link DefaultHttpProxyServer#bootstrap()}
+     */
+    HttpProxyServerBootstrap mitmBootstrap() {
+        return bootstrap()
+                .withName("switcher-mitm")
+                .withAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+                .withChainProxyManager(this::selectUpstreamProxies);
+    }
+
+    /**
+     * 记录中间人和客户端tls握手的耗时，见 {@link ConnectionPhase#CLIENT_HANDSHAKE}
      */
     @Override
-    public void bytesReceivedFromServer(FullFlowContext flowContext, int numberOfBytes) {
-        ConnectionDetail connectionDetail = connectionManager.sureGetDetail(flowContext.getClientAddress());
-        if (connectionDetail != null) {
-            connectionDetail.speedRecorder.record(numberOfBytes);
+    public void clientSSLHandshakeSucceeded(InetSocketAddress clientAddress, SSLSession sslSession) {
+        ConnectionDetail connectionDetail = connectionManager.getDetail(clientAddress);
+        if (connectionDetail == null || connectionDetail.tunnelEstablishedAt == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - connectionDetail.tunnelEstablishedAt;
+        connectionDetail.tunnelEstablishedAt = 0;
+        metrics.recordPhase(ConnectionPhase.CLIENT_HANDSHAKE, nanos);
+        UpstreamProxyDetail upstreamProxyDetail = upstreamProxyManager.getDetail(connectionDetail.proxySocket);
+        if (upstreamProxyDetail != null) {
+            upstreamProxyDetail.metrics.recordPhase(ConnectionPhase.CLIENT_HANDSHAKE, nanos);
         }
     }
 
@@ -119,27 +338,95 @@ public class Switcher extends ActivityTrackerAdapter implements ChainedProxyMana
     /**
      * 根据proxySocket创建 {@link ChainedProxy}，如果proxySocket是 {@link UpstreamProxyManager#DIRECT_CONNECTION}
      * 那么会返回 {@link ChainedProxyAdapter#FALLBACK_TO_DIRECT_CONNECTION}
+     * 每个上游代理只需创建一次，见 {@link UpstreamProxyDetail#chainedProxy}
      *
      * @param proxySocket 上游代理的socket
      * @return {@link ChainedProxy}
      */
-    private ChainedProxy makeChainedProxy(InetSocketAddress proxySocket) {
+    ChainedProxy makeChainedProxy(InetSocketAddress proxySocket) {
         if (proxySocket == UpstreamProxyManager.DIRECT_CONNECTION) {
             return ChainedProxyAdapter.FALLBACK_TO_DIRECT_CONNECTION;
         } else {
-            return new ChainedProxyAdapter() {
-                @Override
-                public InetSocketAddress getChainedProxyAddress() {
-                    return proxySocket;
+            return new SwitcherChainedProxy(this, proxySocket);
+        }
+    }
+
+    /**
+     * 过滤掉正在被禁忌的上游代理，如果所有代理都被禁忌，则不过滤
+     * <p>
+     * 被探测为不可用或被降级的上游代理已经不在 {@link UpstreamProxyManager#selectable()} 中，只需要检查禁忌表
+     *
+     * @param httpRequest {@link HttpRequest}
+     * @param proxyPairs  所有上游代理
+     * @return 可以使用的上游代理
+     */
+    private UpstreamProxyPair[] filterTabu(HttpRequest httpRequest, UpstreamProxyPair[] proxyPairs) {
+        // 没有正在被禁忌的记录时直接使用快照，不需要分配对象
+        if (!tabu.isActive()) {
+            return proxyPairs;
+        }
+        String host = Tabu.hostOf(httpRequest);
+        List<UpstreamProxyPair> available = new ArrayList<>(proxyPairs.length);
+        for (UpstreamProxyPair upstreamProxyPair : proxyPairs) {
+            if (!tabu.isTabu(upstreamProxyPair.proxySocket, host)) {
+                available.add(upstreamProxyPair);
+            }
+        }
+        return available.isEmpty() ? proxyPairs : available.toArray(new UpstreamProxyPair[0]);
+    }
+
+    /**
+     * 由选择策略选出代理，只检查选中的代理是否正在被禁忌，跳过被禁忌的；
+     * 选中的都被禁忌时重新选择，仍然都被禁忌才逐个过滤所有代理，见 {@link #filterTabu}
+     *
+     * @param tactics        选择策略
+     * @param httpRequest    {@link HttpRequest}
+     * @param chainedProxies 代理链
+     */
+    private void selectAvailable(SwitchTactics tactics, HttpRequest httpRequest, Queue<ChainedProxy> chainedProxies) {
+        UpstreamProxyPair[] proxyPairs = upstreamProxyManager.selectable();
+        if (!tabu.isActive()) {
+            tactics.select(httpRequest, proxyPairs, chainedProxies);
+            return;
+        }
+        String host = Tabu.hostOf(httpRequest);
+        Queue<ChainedProxy> picks = PICKS.get();
+        for (int draw = 0; draw <= MAX_REDRAWS; draw++) {
+            picks.clear();
+            tactics.select(httpRequest, proxyPairs, picks);
+            boolean selected = false;
+            for (ChainedProxy chainedProxy : picks) {
+                // 直连的getChainedProxyAddress()为null，不会被禁忌
+                InetSocketAddress proxySocket = chainedProxy.getChainedProxyAddress();
+                if (proxySocket == null || !tabu.isTabu(proxySocket, host)) {
+                    chainedProxies.add(chainedProxy);
+                    selected = true;
                 }
-            };
+            }
+            picks.clear();
+            if (selected) {
+                return;
+            }
         }
+        tactics.select(httpRequest, filterTabu(httpRequest, proxyPairs), chainedProxies);
     }
 
     /**
-     * 根据不同的地址，允许使用不同的上游代理
-     * 环回地址是本机连接，能够使用所有的上游代理
-     * 来自局域网其它主机的连接，则只能使用直连
+     * 按选择策略给可以使用的上游代理排序，供拆分下载时同时使用多个上游代理
+     *
+     * @param httpRequest {@link HttpRequest}
+     * @return 按优先级排序的上游代理
+     */
+    List<UpstreamProxyPair> rankAvailable(HttpRequest httpRequest) {
+        List<UpstreamProxyPair> upstreamProxyPairs =
+                new ArrayList<>(Arrays.asList(filterTabu(httpRequest, upstreamProxyManager.selectable())));
+        Collections.shuffle(upstreamProxyPairs);
+        return switchTactics.getRank(httpRequest.uri(), upstreamProxyPairs);
+    }
+
+    /**
+     * 选择性中间人模式下，本机发起的、匹配 {@link #mitmRules} 的CONNECT请求转发给内部中间人代理服务器，
+     * 其它请求见 {@link #selectUpstreamProxies}
      *
      * @param httpRequest    {@link HttpRequest}
      * @param chainedProxies {@link ChainedProxy}
@@ -148,16 +435,38 @@ public class Switcher extends ActivityTrackerAdapter implements ChainedProxyMana
     @Override
     public void lookupChainedProxies(HttpRequest httpRequest, Queue<ChainedProxy> chainedProxies,
                                      ClientDetails clientDetails) {
+        ChainedProxy mitmChainedProxy = this.mitmChainedProxy;
+        if (mitmChainedProxy != null && httpRequest.method().equals(HttpMethod.CONNECT) &&
+                clientDetails.getClientAddress().getAddress().isLoopbackAddress() &&
+                mitmRules.matches(Tabu.hostOf(httpRequest))) {
+            // 需要解密的CONNECT请求交给内部代理服务器，其它的直接转发原始字节
+            chainedProxies.add(mitmChainedProxy);
+            return;
+        }
+        selectUpstreamProxies(httpRequest, chainedProxies, clientDetails);
+    }
+
+    /**
+     * 根据不同的地址，允许使用不同的上游代理
+     * 环回地址是本机连接，能够使用所有的上游代理，但会跳过不可用或正在被禁忌的代理，有上游代理组或权重时先在组之间选择
+     * 来自局域网其它主机的连接，则只能使用直连
+     *
+     * @param httpRequest    {@link HttpRequest}
+     * @param chainedProxies {@link ChainedProxy}
+     * @param clientDetails  {@link ClientDetails}
+     */
+    private void selectUpstreamProxies(HttpRequest httpRequest, Queue<ChainedProxy> chainedProxies,
+                                       ClientDetails clientDetails) {
+        long startedAt = System.nanoTime();
         if (clientDetails.getClientAddress().getAddress().isLoopbackAddress()) {
-            List<UpstreamProxyPair> upstreamProxyPairs = upstreamProxyManager.getAll();
-            // 为了防止短时间内大量连接创建（如IDM）时导致多个连接同时选中同一个代理，所以打乱顺序
-            Collections.shuffle(upstreamProxyPairs);
-            upstreamProxyPairs = switchTactics.getRank(httpRequest.uri(), upstreamProxyPairs);
-            // 排序后，把代理地址按顺序加入代理链
-            upstreamProxyPairs.forEach(pair -> chainedProxies.add(makeChainedProxy(pair.proxySocket)));
+            SwitchTactics tactics = upstreamProxyManager.isWeighted() ? groupSwitchTactics : switchTactics;
+            selectAvailable(tactics, httpRequest, chainedProxies);
         } else {
             // 来自局域网其它主机的连接，只能使用特定的serverSocket
-            chainedProxies.add(makeChainedProxy(serverSocket));
+            UpstreamProxyDetail upstreamProxyDetail = upstreamProxyManager.getDetail(serverSocket);
+            chainedProxies.add(upstreamProxyDetail != null ?
+                    upstreamProxyDetail.chainedProxy : makeChainedProxy(serverSocket));
         }
+        metrics.recordPhase(ConnectionPhase.SELECT, System.nanoTime() - startedAt);
     }
 }
@@ -0,0 +1,39 @@
+package org.switcher;
+
+import org.littleshoot.proxy.ChainedProxyAdapter;
+
+import java.net.InetSocketAddress;
+
+/**
+ * 每个上游代理对应的 {@link org.littleshoot.proxy.ChainedProxy}，把连接上游代理的成功和失败记录到禁忌表中
+ */
+class SwitcherChainedProxy extends ChainedProxyAdapter {
+    private final Switcher switcher;
+    private final InetSocketAddress proxySocket;
+
+    SwitcherChainedProxy(Switcher switcher, InetSocketAddress proxySocket) {
+        this.switcher = switcher;
+        this.proxySocket = proxySocket;
+    }
+
+    @Override
+    public InetSocketAddress getChainedProxyAddress() {
+        return proxySocket;
+    }
+
+    @Override
+    public void connectionSucceeded() {
+        switcher.tabu.succeed(proxySocket, Tabu.ANY_HOST);
+    }
+
+    @Override
+    public void connectionFailed(Throwable cause) {
+        // 连接的是上游代理本身，失败和目标服务器无关
+        switcher.tabu.fail(proxySocket, Tabu.ANY_HOST);
+        switcher.metrics.connectFailures.increment();
+        UpstreamProxyDetail upstreamProxyDetail = switcher.upstreamProxyManager.getDetail(proxySocket);
+        if (upstreamProxyDetail != null) {
+            upstreamProxyDetail.metrics.connectFailures.increment();
+        }
+    }
+}
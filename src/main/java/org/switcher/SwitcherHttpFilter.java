@@ -1,76 +1,427 @@
 package org.switcher;
 
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.HttpObject;
-import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AttributeKey;
 import org.littleshoot.proxy.HttpFiltersAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_GATEWAY;
+import static io.netty.handler.codec.http.HttpResponseStatus.GATEWAY_TIMEOUT;
 
 class SwitcherHttpFilter extends HttpFiltersAdapter {
     private final static Logger logger = LoggerFactory.getLogger(SwitcherHttpFilter.class);
 
+    /**
+     * CONNECT请求建立的到服务端的连接，中间人解密后的请求都复用这个连接，但不会再触发
+     * {@link #proxyToServerConnectionSucceeded(ChannelHandlerContext)}，所以记在客户端的channel上
+     */
+    private final static AttributeKey<Channel> TUNNEL_CHANNEL = AttributeKey.valueOf("switcher.tunnelChannel");
+
+    /**
+     * 检查是否需要续传的间隔（毫秒）
+     */
+    private final static long RESUME_CHECK_INTERVAL = 1000;
+
     private final Switcher switcher;
 
-    private static InetSocketAddress toSocket(String socketString) {
-        String[] result = socketString.split(":");
-        if (result.length == 1) {
-            return new InetSocketAddress(result[0], 80);
-        } else if (result.length == 2) {
-            return new InetSocketAddress(result[0], Integer.parseInt(result[1]));
-        } else {
-            logger.debug("非法的socket字符串 {}", socketString);
-            return null;
-        }
-    }
+    /**
+     * 此请求所使用的上游代理的socket，连接建立后才会设置
+     */
+    private InetSocketAddress proxySocket;
+
+    private ConnectionDetail connectionDetail;
+
+    /**
+     * 是否转发给了内部中间人代理服务器，此时连接由内部代理服务器管理，见 {@link Switcher#isMitmServer}
+     */
+    private boolean mitmHandedOff;
+
+    /**
+     * 以下为建立连接的各个阶段的时间，值为 {@link System#nanoTime()}，为0表示没有发生，见 {@link ConnectionPhase}
+     */
+    private final long receivedAt;
+    private long resolveStartedAt;
+    private long resolveNanos;
+    private long firstConnectStartedAt;
+    private long connectStartedAt;
+    private long handshakeStartedAt;
+
+    /**
+     * littleproxy只在直接连接时解析目标服务器，连接建立后对端和它相同时说明是直接连接，
+     * 见 {@link #proxyToServerResolutionSucceeded}
+     */
+    private InetSocketAddress resolvedRemoteAddress;
+
+    /**
+     * 此请求所使用的到服务端的连接，连接建立后才会设置
+     */
+    private Channel serverChannel;
+
+    /**
+     * 正在进行的拆分下载，原始连接关闭前已经解码出的响应体都会被丢弃
+     */
+    private ParallelRangeDownload rangeDownload;
+
+    /**
+     * 可以从断点续传的响应，响应体传完或者开始续传后清空，见 {@link RangeDownloader#isResumable}；
+     * 以下和续传有关的字段都只在到服务端的连接的eventLoop中访问
+     */
+    private HttpResponse resumableResponse;
+
+    /**
+     * 已经交给客户端的响应体字节数，即续传的起始位置
+     */
+    private long delivered;
+
+    /**
+     * 定期检查上游代理是否被移除或停滞
+     */
+    private ScheduledFuture<?> resumeWatchdog;
+
+    /**
+     * 是否已经开始续传，此时即使连接被中止也继续转发给客户端
+     */
+    private boolean resumed;
 
     SwitcherHttpFilter(Switcher switcher, HttpRequest originalRequest, ChannelHandlerContext ctx) {
         super(originalRequest, ctx);
         this.switcher = switcher;
+        receivedAt = System.nanoTime();
     }
 
+    /**
+     * 返回null，由 {@link Switcher#resolver} 解析。缓存命中时不会阻塞，缓存中没有结果时netty的线程仍要等待解析完成，
+     * 见 {@link CachingHostResolver}
+     */
     @Override
     public InetSocketAddress proxyToServerResolutionStarted(String resolvingServerHostAndPort) {
-        return toSocket(resolvingServerHostAndPort);
+        resolveStartedAt = System.nanoTime();
+        return null;
+    }
+
+    @Override
+    public void proxyToServerResolutionSucceeded(String serverHostAndPort, InetSocketAddress resolvedRemoteAddress) {
+        this.resolvedRemoteAddress = resolvedRemoteAddress;
+        if (resolveStartedAt != 0) {
+            resolveNanos = System.nanoTime() - resolveStartedAt;
+        }
     }
 
     public SwitcherHttpFilter(Switcher switcher, HttpRequest originalRequest) {
         super(originalRequest);
         this.switcher = switcher;
+        receivedAt = System.nanoTime();
     }
 
+    /**
+     * 连接的详细信息，连接建立时设置到客户端的channel上（见 {@link ConnectionManager#CONNECTION_DETAIL}），
+     * 同一个客户端连接上的后续请求直接从channel上取
+     *
+     * @return 连接的详细信息，还没有建立连接时为null
+     */
     private ConnectionDetail getConnectionDetail() {
-        InetSocketAddress clientSocket = (InetSocketAddress) ctx.channel().remoteAddress();
-        return switcher.connectionManager.sureGetDetail(clientSocket);
+        if (connectionDetail == null && ctx != null) {
+            connectionDetail = ctx.channel().attr(ConnectionManager.CONNECTION_DETAIL).get();
+        }
+        return connectionDetail;
     }
 
     private boolean isAbort() {
+        if (mitmHandedOff || resumed) {
+            return false;
+        }
         ConnectionDetail connectionDetail = getConnectionDetail();
         return connectionDetail == null || connectionDetail.abort;
     }
 
     @Override
     public HttpObject serverToProxyResponse(HttpObject httpObject) {
+        if (rangeDownload != null) {
+            // 原始连接关闭前已经解码出的响应体，由拆分下载负责，返回null会断开连接，所以换成空的内容
+            return new DefaultHttpContent(Unpooled.EMPTY_BUFFER);
+        }
+        if (httpObject instanceof HttpResponse) {
+            recordTabu(((HttpResponse) httpObject).status().code());
+            if (isAbort()) {
+                return null;
+            }
+            startRangeDownload((HttpResponse) httpObject);
+            if (rangeDownload == null) {
+                watchResumable((HttpResponse) httpObject);
+            }
+            return httpObject;
+        }
+        if (resumableResponse != null) {
+            if (isAbort() && resume(true, "已被移除")) {
+                return new DefaultHttpContent(Unpooled.EMPTY_BUFFER);
+            }
+            if (httpObject instanceof HttpContent) {
+                delivered += ((HttpContent) httpObject).content().readableBytes();
+            }
+            if (httpObject instanceof LastHttpContent) {
+                stopResumeWatchdog();
+            }
+        }
         return isAbort() ? null : httpObject;
     }
 
+    /**
+     * 连接所用的上游代理被移除时、响应体停滞时或者 {@link Rebalancer} 要求迁移时，
+     * 从已经交给客户端的位置续传，见 {@link RangeDownloader#resume}
+     *
+     * @param httpResponse 原始响应
+     */
+    private void watchResumable(HttpResponse httpResponse) {
+        RangeDownloader rangeDownloader = switcher.rangeDownloader;
+        if (rangeDownloader == null || ctx == null || !rangeDownloader.isResumable(originalRequest, httpResponse)) {
+            return;
+        }
+        Channel serverChannel = this.serverChannel != null ? this.serverChannel : ctx.channel().attr(TUNNEL_CHANNEL).get();
+        if (serverChannel == null || !serverChannel.isActive()) {
+            return;
+        }
+        resumableResponse = httpResponse;
+        delivered = 0;
+        ConnectionDetail connectionDetail = getConnectionDetail();
+        if (connectionDetail != null) {
+            connectionDetail.resumable = true;
+        }
+        long interval = Math.min(RESUME_CHECK_INTERVAL, rangeDownloader.resumeStallMillis);
+        resumeWatchdog = serverChannel.eventLoop().scheduleAtFixedRate(new Runnable() {
+            private long lastDelivered = -1;
+            private long progressAt;
+
+            @Override
+            public void run() {
+                if (resumableResponse == null || !serverChannel.isActive() || !ctx.channel().isActive()) {
+                    stopResumeWatchdog();
+                    return;
+                }
+                long millis = SpeedClock.millis();
+                // 客户端不可写时littleproxy会暂停读取服务端，这不是上游的问题
+                if (delivered != lastDelivered || !ctx.channel().isWritable()) {
+                    lastDelivered = delivered;
+                    progressAt = millis;
+                } else if (millis - progressAt >= rangeDownloader.resumeStallMillis) {
+                    if (!resume(false, "停滞")) {
+                        // 没有其它可用的上游代理，过一段时间再试
+                        progressAt = millis;
+                    }
+                    return;
+                }
+                if (isAbort()) {
+                    resume(true, "已被移除");
+                } else if (connectionDetail != null && connectionDetail.migrate && !resume(false, "太慢")) {
+                    // 没有其它可用的上游代理，等待下一次迁移
+                    connectionDetail.migrate = false;
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 开始续传，之后原始连接收到的响应体都会被丢弃
+     *
+     * @param aborted 是否因为连接被中止，只有所用的上游代理已经被移除时才续传，手动中止的连接不续传
+     * @param reason  续传的原因，用于日志
+     * @return 是否开始了续传
+     */
+    private boolean resume(boolean aborted, String reason) {
+        ConnectionDetail connectionDetail = getConnectionDetail();
+        UpstreamProxyDetail upstreamProxyDetail = connectionDetail == null ? null : connectionDetail.upstreamProxyDetail;
+        if (aborted && upstreamProxyDetail != null && !upstreamProxyDetail.isRemoved()) {
+            stopResumeWatchdog();
+            return false;
+        }
+        RangeDownloader rangeDownloader = switcher.rangeDownloader;
+        Channel serverChannel = this.serverChannel != null ? this.serverChannel : ctx.channel().attr(TUNNEL_CHANNEL).get();
+        if (rangeDownloader == null || serverChannel == null) {
+            stopResumeWatchdog();
+            return false;
+        }
+        logger.info("{} 的上游代理{}，从断点续传", originalRequest.uri(), reason);
+        rangeDownload = rangeDownloader.resume(ctx, serverChannel, originalRequest, resumableResponse,
+                isKeepAlive(resumableResponse), delivered, upstreamProxyDetail);
+        if (rangeDownload == null) {
+            // 没有其它可用的上游代理，停滞时继续等待原来的连接
+            if (aborted) {
+                stopResumeWatchdog();
+            }
+            return false;
+        }
+        resumed = true;
+        stopResumeWatchdog();
+        if (upstreamProxyDetail != null) {
+            // 剩余的响应体由拆分下载的worker获取，计入它们各自的上游代理，原来的上游代理不再有这个连接，
+            // 否则排空和按连接数选择时会一直把它算在原来的上游代理上
+            upstreamProxyDetail.removeConnection((InetSocketAddress) ctx.channel().remoteAddress());
+        }
+        return true;
+    }
+
+    private void stopResumeWatchdog() {
+        resumableResponse = null;
+        ConnectionDetail connectionDetail = getConnectionDetail();
+        if (connectionDetail != null) {
+            connectionDetail.resumable = false;
+            connectionDetail.migrate = false;
+            connectionDetail.slowSince = 0;
+        }
+        if (resumeWatchdog != null) {
+            resumeWatchdog.cancel(false);
+            resumeWatchdog = null;
+        }
+    }
+
+    /**
+     * 拆分下载或续传完成后是否可以保持客户端连接。中间人解密的请求复用CONNECT建立的连接（见 {@link #TUNNEL_CHANNEL}），
+     * 原始连接被关闭后这条客户端连接上已经不能再转发请求
+     *
+     * @param httpResponse 原始响应
+     * @return 是否保持客户端连接
+     */
+    private boolean isKeepAlive(HttpResponse httpResponse) {
+        return serverChannel != null && HttpUtil.isKeepAlive(originalRequest) && HttpUtil.isKeepAlive(httpResponse);
+    }
+
+    /**
+     * 如果响应足够大且支持范围请求，则开始拆分下载，见 {@link RangeDownloader}
+     *
+     * @param httpResponse 原始响应
+     */
+    private void startRangeDownload(HttpResponse httpResponse) {
+        RangeDownloader rangeDownloader = switcher.rangeDownloader;
+        if (rangeDownloader == null || ctx == null || !rangeDownloader.isEligible(originalRequest, httpResponse)) {
+            return;
+        }
+        Channel serverChannel = this.serverChannel != null ? this.serverChannel : ctx.channel().attr(TUNNEL_CHANNEL).get();
+        if (serverChannel == null || !serverChannel.isActive()) {
+            return;
+        }
+        rangeDownload = rangeDownloader.start(ctx, serverChannel, originalRequest, httpResponse,
+                isKeepAlive(httpResponse));
+    }
+
+    /**
+     * 上游代理返回网关错误时，说明它无法访问目标服务器，记录到禁忌表中
+     *
+     * @param code 响应的状态码
+     */
+    private void recordTabu(int code) {
+        if (proxySocket == null || proxySocket == UpstreamProxyManager.DIRECT_CONNECTION) {
+            return;
+        }
+        if (code == BAD_GATEWAY.code() || code == GATEWAY_TIMEOUT.code()) {
+            switcher.tabu.fail(proxySocket, Tabu.hostOf(originalRequest));
+        } else if (!switcher.tabu.isEmpty()) {
+            switcher.tabu.succeed(proxySocket, Tabu.hostOf(originalRequest));
+        }
+    }
+
     @Override
     public HttpObject proxyToClientResponse(HttpObject httpObject) {
         return isAbort() ? null : httpObject;
     }
 
+    @Override
+    public void proxyToServerConnectionStarted() {
+        connectStartedAt = System.nanoTime();
+        if (firstConnectStartedAt == 0) {
+            firstConnectStartedAt = connectStartedAt;
+        }
+        // 回退到下一个上游代理时重新开始
+        handshakeStartedAt = 0;
+    }
+
+    @Override
+    public void proxyToServerConnectionSSLHandshakeStarted() {
+        handshakeStartedAt = System.nanoTime();
+    }
+
     @Override
     public void proxyToServerConnectionSucceeded(ChannelHandlerContext serverCtx) {
         InetSocketAddress clientSocket = (InetSocketAddress) ctx.channel().remoteAddress();
         InetSocketAddress proxySocket = (InetSocketAddress) serverCtx.channel().remoteAddress();
+        if (switcher.isMitmServer(proxySocket)) {
+            // 由内部代理服务器记录连接、限速和统计，这里只转发原始字节
+            mitmHandedOff = true;
+            return;
+        }
         String uri = originalRequest.uri();
-        if (proxySocket.equals(toSocket(uri))) {
-            // 如果上游代理的socket和目标服务器的socket一致，说明是直接连接
+        if (proxySocket.equals(resolvedRemoteAddress)) {
+            // 对端就是解析出的目标服务器，说明是直接连接，不需要再解析一次。
+            // 其它未知的对端是刚被移除的上游代理，由ConnectionManager#add中止
             proxySocket = UpstreamProxyManager.DIRECT_CONNECTION;
         }
-        switcher.connectionManager.add(clientSocket, proxySocket, uri);
+        this.proxySocket = proxySocket;
+        serverChannel = serverCtx.channel();
+        if (originalRequest.method().equals(HttpMethod.CONNECT)) {
+            ctx.channel().attr(TUNNEL_CHANNEL).set(serverChannel);
+        }
+        connectionDetail = switcher.connectionManager.add(clientSocket, proxySocket, uri);
+        ctx.channel().attr(ConnectionManager.CONNECTION_DETAIL).set(connectionDetail);
+        addThrottleHandler(proxySocket);
+        recordConnectPhases(proxySocket);
+    }
+
+    private void recordConnectPhases(TrafficMetrics metrics, long nanos) {
+        metrics.connectSucceeded((nanos - connectStartedAt) / 1000);
+        if (resolveNanos != 0) {
+            metrics.recordPhase(ConnectionPhase.RESOLVE, resolveNanos);
+        }
+        if (connectStartedAt != firstConnectStartedAt) {
+            metrics.recordPhase(ConnectionPhase.FALLBACK, connectStartedAt - firstConnectStartedAt);
+        }
+        if (handshakeStartedAt != 0) {
+            metrics.recordPhase(ConnectionPhase.CONNECT, handshakeStartedAt - connectStartedAt);
+            metrics.recordPhase(ConnectionPhase.SERVER_HANDSHAKE, nanos - handshakeStartedAt);
+        } else {
+            metrics.recordPhase(ConnectionPhase.CONNECT, nanos - connectStartedAt);
+        }
+        metrics.recordPhase(ConnectionPhase.TOTAL, nanos - receivedAt);
+    }
+
+    /**
+     * 给到服务端的连接加上全局、客户端主机和所用上游代理的限速，连接被后续请求复用时不会重复添加
+     *
+     * @param proxySocket 上游代理的socket
+     */
+    private void addThrottleHandler(InetSocketAddress proxySocket) {
+        UpstreamProxyDetail upstreamProxyDetail = switcher.upstreamProxyManager.getDetail(proxySocket);
+        if (upstreamProxyDetail != null && serverChannel.pipeline().get(ThrottleHandler.NAME) == null) {
+            InetAddress clientHost = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress();
+            serverChannel.pipeline().addFirst(ThrottleHandler.NAME,
+                    switcher.shaper.newHandler(clientHost, upstreamProxyDetail, connectionDetail));
+        }
+    }
+
+    /**
+     * 连接建立成功后，把各个阶段的耗时记录到全局和上游代理的统计中
+     *
+     * @param proxySocket 上游代理的socket
+     */
+    private void recordConnectPhases(InetSocketAddress proxySocket) {
+        if (connectStartedAt == 0) {
+            return;
+        }
+        long nanos = System.nanoTime();
+        recordConnectPhases(switcher.metrics, nanos);
+        UpstreamProxyDetail upstreamProxyDetail = switcher.upstreamProxyManager.getDetail(proxySocket);
+        if (upstreamProxyDetail != null) {
+            recordConnectPhases(upstreamProxyDetail.metrics, nanos);
+        }
+        if (originalRequest.method().equals(HttpMethod.CONNECT) && connectionDetail != null) {
+            connectionDetail.tunnelEstablishedAt = nanos;
+        }
     }
 
     @Override
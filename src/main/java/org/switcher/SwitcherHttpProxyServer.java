@@ -1,7 +1,6 @@
 package org.switcher;
 
 import org.littleshoot.proxy.HttpProxyServer;
-import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
 
 import java.net.InetSocketAddress;
 
@@ -10,28 +9,18 @@ public class SwitcherHttpProxyServer {
     private final HttpProxyServer httpProxyServer;
 
     /**
-     * 有时可能需要设置直连的下载速度
-     * littleproxy暂时没有相应的接口，因此只能再新建一个代理
+     * 选择性中间人模式下内部负责解密的代理服务器，不是选择性中间人模式时为null
      */
-    private final HttpProxyServer directHttpProxyServer;
+    private final HttpProxyServer mitmHttpProxyServer;
 
     public static SwitcherHttpProxyServerBootstrap bootstrap() {
         return new SwitcherHttpProxyServerBootstrap();
     }
 
-    SwitcherHttpProxyServer(Switcher switcher, HttpProxyServer httpProxyServer,
-                            long directProxyReadThrottleBytesPerSecond, long directProxyWriteThrottleBytesPerSecond) {
+    SwitcherHttpProxyServer(Switcher switcher, HttpProxyServer httpProxyServer, HttpProxyServer mitmHttpProxyServer) {
         this.switcher = switcher;
         this.httpProxyServer = httpProxyServer;
-        directHttpProxyServer = DefaultHttpProxyServer.bootstrap()
-                .withName("switcher-direct")
-                .withPort(0)
-                .withAllowLocalOnly(true)
-                .withThrottling(directProxyReadThrottleBytesPerSecond, directProxyWriteThrottleBytesPerSecond)
-                .start();
-        this.switcher.upstreamProxyManager.remove(UpstreamProxyManager.DIRECT_CONNECTION);
-        this.switcher.upstreamProxyManager.add(directHttpProxyServer.getListenAddress());
-        this.switcher.serverSocket = directHttpProxyServer.getListenAddress();
+        this.mitmHttpProxyServer = mitmHttpProxyServer;
     }
 
     public int getIdleConnectionTimeout() {
@@ -40,6 +29,9 @@ public class SwitcherHttpProxyServer {
 
     public void setIdleConnectionTimeout(int idleConnectionTimeout) {
         httpProxyServer.setIdleConnectionTimeout(idleConnectionTimeout);
+        if (mitmHttpProxyServer != null) {
+            mitmHttpProxyServer.setIdleConnectionTimeout(idleConnectionTimeout);
+        }
     }
 
     public int getConnectTimeout() {
@@ -48,6 +40,9 @@ public class SwitcherHttpProxyServer {
 
     public void setConnectTimeout(int connectTimeoutMs) {
         httpProxyServer.setConnectTimeout(connectTimeoutMs);
+        if (mitmHttpProxyServer != null) {
+            mitmHttpProxyServer.setConnectTimeout(connectTimeoutMs);
+        }
     }
 
     public void stopAllConnections() {
@@ -55,11 +50,35 @@ public class SwitcherHttpProxyServer {
     }
 
     public void stop() {
+        switcher.prober.stop();
+        switcher.rebalancer.stop();
+        switcher.registry.stop();
+        switcher.metricsExporter.stop();
+        RangeDownloader rangeDownloader = switcher.rangeDownloader;
+        if (rangeDownloader != null) {
+            rangeDownloader.stop();
+        }
         httpProxyServer.stop();
+        if (mitmHttpProxyServer != null) {
+            switcher.setMitmServer(null);
+            mitmHttpProxyServer.stop();
+        }
     }
 
     public void abort() {
+        switcher.prober.stop();
+        switcher.rebalancer.stop();
+        switcher.registry.stop();
+        switcher.metricsExporter.stop();
+        RangeDownloader rangeDownloader = switcher.rangeDownloader;
+        if (rangeDownloader != null) {
+            rangeDownloader.stop();
+        }
         httpProxyServer.abort();
+        if (mitmHttpProxyServer != null) {
+            switcher.setMitmServer(null);
+            mitmHttpProxyServer.abort();
+        }
     }
 
     public InetSocketAddress getListenAddress() {
@@ -70,7 +89,17 @@ public class SwitcherHttpProxyServer {
         httpProxyServer.setThrottle(readThrottleBytesPerSecond, writeThrottleBytesPerSecond);
     }
 
+    /**
+     * 设置直连的速度限制，见 {@link UpstreamProxyDetail#setThrottle(long, long)}
+     *
+     * @param readThrottleBytesPerSecond  下载速度限制（字节/秒），为0表示不限速
+     * @param writeThrottleBytesPerSecond 上传速度限制（字节/秒），为0表示不限速
+     */
     public void setDirectHttpProxyServerThrottle(long readThrottleBytesPerSecond, long writeThrottleBytesPerSecond) {
-        directHttpProxyServer.setThrottle(readThrottleBytesPerSecond, writeThrottleBytesPerSecond);
+        UpstreamProxyDetail upstreamProxyDetail =
+                switcher.upstreamProxyManager.getDetail(UpstreamProxyManager.DIRECT_CONNECTION);
+        if (upstreamProxyDetail != null) {
+            upstreamProxyDetail.setThrottle(readThrottleBytesPerSecond, writeThrottleBytesPerSecond);
+        }
     }
 }
@@ -3,20 +3,41 @@ package org.switcher;
 import org.littleshoot.proxy.*;
 import org.littleshoot.proxy.impl.ServerGroup;
 import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 
 public class SwitcherHttpProxyServerBootstrap {
+    private final static Logger logger = LoggerFactory.getLogger(SwitcherHttpProxyServerBootstrap.class);
+
     private final Switcher switcher;
     private final HttpProxyServerBootstrap httpProxyServerBootstrap;
-    private long directProxyReadThrottleBytesPerSecond;
-    private long directProxyWriteThrottleBytesPerSecond;
+
+    /**
+     * 选择性中间人模式下内部代理服务器的bootstrap，和连接服务端有关的设置同时应用到两个bootstrap上，见 {@link #withSelectiveMitm}
+     */
+    private final HttpProxyServerBootstrap mitmHttpProxyServerBootstrap;
+    private InetSocketAddress healthCheckTarget;
+    private long healthCheckIntervalMillis;
+    private int healthCheckTimeoutMillis;
+    private InetSocketAddress metricsAddress;
+    private boolean metricsJmx;
+    private boolean selectiveMitm;
+    private long resumeStallMillis;
+    private long rebalanceIntervalMillis;
+    private double rebalancePercentile;
+    private long rebalanceSlowMillis;
+    private Path registryPath;
+    private boolean registryWatch;
 
     SwitcherHttpProxyServerBootstrap() {
         this.switcher = new Switcher();
         this.httpProxyServerBootstrap = switcher.bootstrap();
-        this.directProxyReadThrottleBytesPerSecond = 0;
-        this.directProxyWriteThrottleBytesPerSecond = 0;
+        this.mitmHttpProxyServerBootstrap = switcher.mitmBootstrap();
     }
 
     public SwitcherHttpProxyServerBootstrap withName(String name) {
@@ -54,14 +75,21 @@ public class SwitcherHttpProxyServerBootstrap {
         return this;
     }
 
+    /**
+     * 内部中间人代理服务器使用单独的认证，见 {@link Switcher#newMitmAuthenticator()}
+     */
     public SwitcherHttpProxyServerBootstrap withProxyAuthenticator(ProxyAuthenticator proxyAuthenticator) {
         httpProxyServerBootstrap.withProxyAuthenticator(proxyAuthenticator);
+        if (proxyAuthenticator != null) {
+            mitmHttpProxyServerBootstrap.withProxyAuthenticator(switcher.newMitmAuthenticator());
+        }
         return this;
     }
 
 
     public SwitcherHttpProxyServerBootstrap withUseDnsSec(boolean useDnsSec) {
         httpProxyServerBootstrap.withUseDnsSec(useDnsSec);
+        mitmHttpProxyServerBootstrap.withUseDnsSec(useDnsSec);
         return this;
     }
 
@@ -72,21 +100,42 @@ public class SwitcherHttpProxyServerBootstrap {
 
     public SwitcherHttpProxyServerBootstrap withIdleConnectionTimeout(int idleConnectionTimeout) {
         httpProxyServerBootstrap.withIdleConnectionTimeout(idleConnectionTimeout);
+        mitmHttpProxyServerBootstrap.withIdleConnectionTimeout(idleConnectionTimeout);
         return this;
     }
 
     public SwitcherHttpProxyServerBootstrap withConnectTimeout(int connectTimeout) {
         httpProxyServerBootstrap.withConnectTimeout(connectTimeout);
+        mitmHttpProxyServerBootstrap.withConnectTimeout(connectTimeout);
         return this;
     }
 
+    /**
+     * 替换默认的 {@link CachingHostResolver}
+     */
     public SwitcherHttpProxyServerBootstrap withServerResolver(HostResolver serverResolver) {
         httpProxyServerBootstrap.withServerResolver(serverResolver);
+        mitmHttpProxyServerBootstrap.withServerResolver(serverResolver);
+        return this;
+    }
+
+    /**
+     * 设置域名解析的缓存，见 {@link CachingHostResolver}
+     *
+     * @param ttl         成功的结果缓存的时间（毫秒）
+     * @param negativeTtl 失败的结果缓存的时间（毫秒）
+     * @param capacity    最多缓存的主机数
+     */
+    public SwitcherHttpProxyServerBootstrap withDnsCache(long ttl, long negativeTtl, int capacity) {
+        switcher.resolver.setTtl(ttl);
+        switcher.resolver.setNegativeTtl(negativeTtl);
+        switcher.resolver.setCapacity(capacity);
         return this;
     }
 
     public SwitcherHttpProxyServerBootstrap withServerGroup(ServerGroup group) {
         httpProxyServerBootstrap.withServerGroup(group);
+        mitmHttpProxyServerBootstrap.withServerGroup(group);
         return this;
     }
 
@@ -100,30 +149,223 @@ public class SwitcherHttpProxyServerBootstrap {
         return this;
     }
 
+    /**
+     * 设置直连的速度限制，直连和上游代理一样在switcher内部限速，不需要额外的代理
+     *
+     * @param readThrottleBytesPerSecond  下载速度限制（字节/秒），为0表示不限速
+     * @param writeThrottleBytesPerSecond 上传速度限制（字节/秒），为0表示不限速
+     */
     public SwitcherHttpProxyServerBootstrap withDirectProxyThrottling(
             long readThrottleBytesPerSecond, long writeThrottleBytesPerSecond) {
-        directProxyReadThrottleBytesPerSecond = readThrottleBytesPerSecond;
-        directProxyWriteThrottleBytesPerSecond = writeThrottleBytesPerSecond;
+        switcher.upstreamProxyManager.getDetail(UpstreamProxyManager.DIRECT_CONNECTION)
+                .setThrottle(readThrottleBytesPerSecond, writeThrottleBytesPerSecond);
+        return this;
+    }
+
+    /**
+     * 添加上游代理组，之后通过 {@link UpstreamProxyManager#add(String, int, String)} 把上游代理加入组，
+     * 见 {@link UpstreamProxyGroup}
+     *
+     * @param name                     组名
+     * @param weight                   权重
+     * @param readQuotaBytesPerSecond  组的下载配额（字节/秒），为0表示不限速
+     * @param writeQuotaBytesPerSecond 组的上传配额（字节/秒），为0表示不限速
+     */
+    public SwitcherHttpProxyServerBootstrap withUpstreamProxyGroup(String name, int weight,
+                                                                   long readQuotaBytesPerSecond,
+                                                                   long writeQuotaBytesPerSecond) {
+        switcher.upstreamProxyManager.addGroup(name, weight)
+                .setQuota(readQuotaBytesPerSecond, writeQuotaBytesPerSecond);
+        return this;
+    }
+
+    /**
+     * 启动后定期主动探测上游代理，见 {@link UpstreamProxyProber}
+     *
+     * @param target         探测的目标
+     * @param intervalMillis 探测间隔（毫秒）
+     * @param timeoutMillis  每次探测的超时时间（毫秒）
+     */
+    public SwitcherHttpProxyServerBootstrap withHealthCheck(InetSocketAddress target, long intervalMillis,
+                                                            int timeoutMillis) {
+        healthCheckTarget = target;
+        healthCheckIntervalMillis = intervalMillis;
+        healthCheckTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * 开启拆分下载，大文件的响应体会被拆分为多个范围，通过多个上游代理并发获取，见 {@link RangeDownloader}
+     *
+     * @param minContentLength 响应体至少这么大时才拆分
+     * @param pieceSize        每个范围的大小
+     * @param parallelism      最多同时使用的上游代理数
+     * @param window           最多缓冲的范围数
+     * @param timeoutMillis    获取每个范围时的连接和读取超时（毫秒）
+     */
+    public SwitcherHttpProxyServerBootstrap withParallelRangeDownload(long minContentLength, int pieceSize,
+                                                                      int parallelism, int window,
+                                                                      int timeoutMillis) {
+        return withParallelRangeDownload(minContentLength, pieceSize, parallelism, window, timeoutMillis,
+                RangeDownloader.DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    /**
+     * 开启拆分下载，并限制所有下载共用的缓冲大小，额度用完时新的下载不拆分，照常转发
+     *
+     * @param minContentLength 响应体至少这么大时才拆分
+     * @param pieceSize        每个范围的大小
+     * @param parallelism      最多同时使用的上游代理数
+     * @param window           每个下载最多缓冲的范围数
+     * @param timeoutMillis    获取每个范围时的连接和读取超时（毫秒）
+     * @param maxBufferedBytes 所有下载最多共缓冲的字节数
+     */
+    public SwitcherHttpProxyServerBootstrap withParallelRangeDownload(long minContentLength, int pieceSize,
+                                                                      int parallelism, int window,
+                                                                      int timeoutMillis, long maxBufferedBytes) {
+        switcher.setRangeDownloader(new RangeDownloader(switcher, minContentLength, pieceSize, parallelism, window,
+                timeoutMillis, maxBufferedBytes));
+        return this;
+    }
+
+    /**
+     * 使用默认参数开启拆分下载
+     */
+    public SwitcherHttpProxyServerBootstrap withParallelRangeDownload() {
+        return withParallelRangeDownload(RangeDownloader.DEFAULT_MIN_CONTENT_LENGTH, RangeDownloader.DEFAULT_PIECE_SIZE,
+                RangeDownloader.DEFAULT_PARALLELISM, RangeDownloader.DEFAULT_WINDOW,
+                RangeDownloader.DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * 开启断点续传：可以续传的GET响应（见 {@link RangeDownloader#isResumable}）在所用的上游代理被移除或停滞时，
+     * 从已经返回给客户端的位置通过其它上游代理续传，而不是断开客户端
+     * <p>
+     * 续传使用拆分下载的机制，没有开启拆分下载时会以默认参数创建，但不会拆分新的下载
+     *
+     * @param stallMillis 响应体这么久（毫秒）没有进展时认为上游代理停滞
+     */
+    public SwitcherHttpProxyServerBootstrap withResumableDownload(long stallMillis) {
+        resumeStallMillis = stallMillis;
+        return this;
+    }
+
+    /**
+     * 启动后定期把慢的下载迁移到其它上游代理，见 {@link Rebalancer}
+     * <p>
+     * 迁移通过断点续传进行，没有调用 {@link #withResumableDownload(long)} 时会以slowMillis作为停滞时间开启
+     *
+     * @param intervalMillis 检查间隔（毫秒）
+     * @param percentile     速度低于这个分位数（0到1之间）的下载被认为是慢的
+     * @param slowMillis     持续慢这么久（毫秒）后迁移
+     */
+    public SwitcherHttpProxyServerBootstrap withRebalancer(long intervalMillis, double percentile, long slowMillis) {
+        rebalanceIntervalMillis = intervalMillis;
+        rebalancePercentile = percentile;
+        rebalanceSlowMillis = slowMillis;
+        return this;
+    }
+
+    /**
+     * 启动时从文件中加载上游代理，见 {@link UpstreamProxyRegistry}
+     *
+     * @param path               文件路径
+     * @param watch              是否在文件变化时重新加载
+     * @param drainTimeoutMillis 被删除的上游代理排空的超时时间（毫秒），超时后中止剩余的连接
+     */
+    public SwitcherHttpProxyServerBootstrap withUpstreamProxyRegistry(Path path, boolean watch,
+                                                                      long drainTimeoutMillis) {
+        registryPath = path;
+        registryWatch = watch;
+        switcher.registry.setDrainTimeout(drainTimeoutMillis);
+        return this;
+    }
+
+    /**
+     * 启动后导出指标，见 {@link MetricsExporter}
+     *
+     * @param address Prometheus文本格式的http服务监听的地址，为null时不启动
+     * @param jmx     是否注册JMX的MBean
+     */
+    public SwitcherHttpProxyServerBootstrap withMetrics(InetSocketAddress address, boolean jmx) {
+        metricsAddress = address;
+        metricsJmx = jmx;
+        return this;
+    }
+
+    /**
+     * 从PKCS12文件中读取中间人解密使用的CA，文件不存在时生成并保存，见 {@link SwitcherMitmManager#loadCertificateAuthority}
+     * <p>
+     * 不设置时每次启动都会生成新的CA，客户端需要重新信任
+     *
+     * @param keyStorePath PKCS12文件
+     * @param password     PKCS12文件的密码
+     */
+    public SwitcherHttpProxyServerBootstrap withMitmCertificateAuthority(Path keyStorePath, char[] password) {
+        try {
+            switcher.mitmManager.loadCertificateAuthority(keyStorePath, password);
+        } catch (IOException | GeneralSecurityException e) {
+            logger.warn("无法从 {} 读取CA，将使用临时生成的CA", keyStorePath, e);
+        }
+        return this;
+    }
+
+    /**
+     * 设置中间人解密时和服务端握手是否校验证书和主机名，默认校验，证书无效时连接失败；
+     * 旧版本使用的 {@link org.littleshoot.proxy.extras.SelfSignedMitmManager} 不校验，需要保持旧的行为时设为false
+     *
+     * @param verify 是否校验，见 {@link SwitcherMitmManager#setVerifyServerCertificates(boolean)}
+     */
+    public SwitcherHttpProxyServerBootstrap withMitmServerVerification(boolean verify) {
+        switcher.mitmManager.setVerifyServerCertificates(verify);
+        return this;
+    }
+
+    /**
+     * @param capacity 最多缓存多少个主机的证书，见 {@link SwitcherMitmManager}
+     */
+    public SwitcherHttpProxyServerBootstrap withMitmCertificateCache(int capacity) {
+        switcher.mitmManager.setCapacity(capacity);
+        return this;
+    }
+
+    /**
+     * 只对匹配规则的主机做中间人解密，其它CONNECT请求直接转发原始字节，按tcp层的字节数统计和限速，
+     * 规则可以在运行时通过 {@link Switcher#mitmRules} 修改，见 {@link MitmRules}
+     * <p>
+     * 匹配的请求会转发给一个只监听环回地址的内部代理服务器解密，所以只对本机发起的连接生效
+     *
+     * @param hosts 需要解密的主机，不传时所有CONNECT请求都不解密
+     */
+    public SwitcherHttpProxyServerBootstrap withSelectiveMitm(String... hosts) {
+        selectiveMitm = true;
+        for (String host : hosts) {
+            switcher.mitmRules.add(host);
+        }
         return this;
     }
 
     public SwitcherHttpProxyServerBootstrap withNetworkInterface(InetSocketAddress inetSocketAddress) {
         httpProxyServerBootstrap.withNetworkInterface(inetSocketAddress);
+        mitmHttpProxyServerBootstrap.withNetworkInterface(inetSocketAddress);
         return this;
     }
 
     public SwitcherHttpProxyServerBootstrap withMaxInitialLineLength(int maxInitialLineLength) {
         httpProxyServerBootstrap.withMaxInitialLineLength(maxInitialLineLength);
+        mitmHttpProxyServerBootstrap.withMaxInitialLineLength(maxInitialLineLength);
         return this;
     }
 
     public SwitcherHttpProxyServerBootstrap withMaxHeaderSize(int maxHeaderSize) {
         httpProxyServerBootstrap.withMaxHeaderSize(maxHeaderSize);
+        mitmHttpProxyServerBootstrap.withMaxHeaderSize(maxHeaderSize);
         return this;
     }
 
     public SwitcherHttpProxyServerBootstrap withMaxChunkSize(int maxChunkSize) {
         httpProxyServerBootstrap.withMaxChunkSize(maxChunkSize);
+        mitmHttpProxyServerBootstrap.withMaxChunkSize(maxChunkSize);
         return this;
     }
 
@@ -138,12 +380,56 @@ public class SwitcherHttpProxyServerBootstrap {
     }
 
     public SwitcherHttpProxyServer start() {
-        return new SwitcherHttpProxyServer(switcher, httpProxyServerBootstrap.start(),
-                directProxyReadThrottleBytesPerSecond, directProxyWriteThrottleBytesPerSecond);
+        // 在开始接受连接之前加载上游代理
+        if (registryPath != null) {
+            if (registryWatch) {
+                switcher.registry.watch(registryPath);
+            } else {
+                switcher.registry.load(registryPath);
+            }
+        }
+        HttpProxyServer mitmHttpProxyServer = null;
+        if (selectiveMitm) {
+            mitmHttpProxyServer = mitmHttpProxyServerBootstrap.start();
+            switcher.setMitmServer(mitmHttpProxyServer.getListenAddress());
+            httpProxyServerBootstrap.withManInTheMiddle(null);
+        }
+        SwitcherHttpProxyServer switcherHttpProxyServer = new SwitcherHttpProxyServer(switcher,
+                httpProxyServerBootstrap.start(), mitmHttpProxyServer);
+        if (rebalanceIntervalMillis > 0) {
+            switcher.rebalancer.start(rebalanceIntervalMillis, rebalancePercentile, rebalanceSlowMillis);
+            if (resumeStallMillis <= 0) {
+                // 使用校验后的值，否则非法的slowMillis会关闭续传，迁移也就无法进行
+                resumeStallMillis = switcher.rebalancer.getSlowMillis();
+            }
+        }
+        if (resumeStallMillis > 0) {
+            if (switcher.rangeDownloader == null) {
+                switcher.setRangeDownloader(new RangeDownloader(switcher, Long.MAX_VALUE,
+                        RangeDownloader.DEFAULT_PIECE_SIZE, RangeDownloader.DEFAULT_PARALLELISM,
+                        RangeDownloader.DEFAULT_WINDOW, RangeDownloader.DEFAULT_TIMEOUT_MILLIS));
+            }
+            switcher.rangeDownloader.resumeStallMillis = resumeStallMillis;
+        }
+        if (metricsAddress != null) {
+            try {
+                switcher.metricsExporter.startHttp(metricsAddress);
+            } catch (IOException e) {
+                logger.warn("无法在 {} 上启动指标的http服务", metricsAddress, e);
+            }
+        }
+        if (metricsJmx) {
+            switcher.metricsExporter.registerMBeans();
+        }
+        if (healthCheckTarget != null) {
+            switcher.prober.start(healthCheckTarget, healthCheckIntervalMillis, healthCheckTimeoutMillis);
+        }
+        return switcherHttpProxyServer;
     }
 
     public SwitcherHttpProxyServerBootstrap withThreadPoolConfiguration(ThreadPoolConfiguration configuration) {
         httpProxyServerBootstrap.withThreadPoolConfiguration(configuration);
+        mitmHttpProxyServerBootstrap.withThreadPoolConfiguration(configuration);
         return this;
     }
 
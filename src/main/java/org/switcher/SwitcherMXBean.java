@@ -0,0 +1,28 @@
+package org.switcher;
+
+/**
+ * 通过JMX导出的全局指标，见 {@link MetricsExporter#registerMBeans()}
+ */
+public interface SwitcherMXBean {
+    /**
+     * @return 总下载速度（字节/秒）
+     */
+    long getSpeed();
+
+    /**
+     * @return 总上传速度（字节/秒）
+     */
+    long getUploadSpeed();
+
+    int getConnectionCount();
+
+    int getUpstreamProxyCount();
+
+    long getReceivedBytes();
+
+    long getSentBytes();
+
+    long getConnects();
+
+    long getConnectFailures();
+}
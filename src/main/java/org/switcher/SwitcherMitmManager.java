@@ -0,0 +1,431 @@
+package org.switcher;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.*;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.littleshoot.proxy.MitmManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.*;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * 中间人解密，替代 {@link org.littleshoot.proxy.extras.SelfSignedMitmManager}
+ * <p>
+ * 用一个CA给每个主机签发证书，CA可以保存到磁盘上，客户端只需要信任一次；
+ * 所有主机的证书共用一对密钥，每个主机的 {@link SSLContext} 放在有上限的LRU缓存中，
+ * 重复连接同一个主机时不需要再签发证书，并且可以复用 {@link SSLContext} 中缓存的会话，跳过完整的握手。
+ * <p>
+ * 和 {@link org.littleshoot.proxy.extras.SelfSignedMitmManager} 不同，默认会校验服务端的证书和主机名，
+ * 见 {@link #setVerifyServerCertificates(boolean)}
+ */
+public class SwitcherMitmManager implements MitmManager {
+    private final static Logger logger = LoggerFactory.getLogger(SwitcherMitmManager.class);
+
+    public final static int DEFAULT_CAPACITY = 256;
+
+    private final static String KEY_ALGORITHM = "RSA";
+    private final static int KEY_SIZE = 2048;
+    private final static String SIGNATURE_ALGORITHM = "SHA256WithRSAEncryption";
+    private final static String CA_ALIAS = "switcher-ca";
+
+    /**
+     * 签发的证书的有效期，部分客户端不接受超过398天的证书
+     */
+    private final static long CERTIFICATE_VALIDITY = TimeUnit.DAYS.toMillis(365);
+    private final static long CA_VALIDITY = TimeUnit.DAYS.toMillis(10 * 365);
+
+    /**
+     * 每个主机的会话缓存的大小和有效期（秒）
+     */
+    private final static int SESSION_CACHE_SIZE = 1024;
+    private final static int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    private final static char[] EMPTY_PASSWORD = new char[0];
+
+    private final static Pattern IPV4 = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+    /**
+     * 无法从请求中取出主机名时使用的名字
+     */
+    private final static String UNKNOWN_HOST = "switcher";
+
+    private final SecureRandom random;
+
+    /**
+     * 访问顺序的LinkedHashMap，用自身作为锁
+     */
+    private final LinkedHashMap<String, SSLContext> sslContexts;
+
+    /**
+     * 和服务端握手时使用，同一个 {@link SSLContext} 会缓存到每个服务端的会话
+     */
+    private final SSLContext clientSslContext;
+
+    /**
+     * 不校验服务端证书时和服务端握手使用
+     */
+    private final SSLContext trustAllSslContext;
+
+    private volatile int capacity;
+
+    private volatile boolean verifyServerCertificates;
+
+    /**
+     * CA，为null时在第一次使用时生成，只保存在内存中
+     */
+    private volatile CertificateAuthority certificateAuthority;
+
+    /**
+     * 所有主机的证书共用的密钥，生成密钥是签发证书中最慢的一步
+     */
+    private volatile KeyPair serverKeyPair;
+
+    private static class CertificateAuthority {
+        final PrivateKey privateKey;
+        final X509Certificate certificate;
+
+        CertificateAuthority(PrivateKey privateKey, X509Certificate certificate) {
+            this.privateKey = privateKey;
+            this.certificate = certificate;
+        }
+    }
+
+    public SwitcherMitmManager() {
+        random = new SecureRandom();
+        sslContexts = new LinkedHashMap<>(16, 0.75f, true);
+        capacity = DEFAULT_CAPACITY;
+        verifyServerCertificates = true;
+        try {
+            clientSslContext = SSLContext.getInstance("TLS");
+            clientSslContext.init(null, null, null);
+            trustAllSslContext = SSLContext.getInstance("TLS");
+            trustAllSslContext.init(null, new TrustManager[]{new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            }}, null);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("无法初始化SSLContext", e);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            logger.warn("非法参数capacity={}(<=0)，将修改为默认值{}", capacity, DEFAULT_CAPACITY);
+            capacity = DEFAULT_CAPACITY;
+        }
+        this.capacity = capacity;
+        synchronized (sslContexts) {
+            evict();
+        }
+    }
+
+    public boolean isVerifyServerCertificates() {
+        return verifyServerCertificates;
+    }
+
+    /**
+     * 设置和服务端握手时是否校验证书和主机名，之后建立的连接生效
+     *
+     * @param verifyServerCertificates 为false时接受服务端的任何证书，和 {@link org.littleshoot.proxy.extras.SelfSignedMitmManager}
+     *                                 一样，客户端无法察觉到服务端的证书有问题
+     */
+    public void setVerifyServerCertificates(boolean verifyServerCertificates) {
+        this.verifyServerCertificates = verifyServerCertificates;
+        if (!verifyServerCertificates) {
+            logger.warn("和服务端握手时将不校验证书");
+        }
+    }
+
+    public int size() {
+        synchronized (sslContexts) {
+            return sslContexts.size();
+        }
+    }
+
+    /**
+     * 从PKCS12文件中读取CA，文件不存在时生成新的CA并保存，同时在旁边保存PEM格式的证书（文件名加上.crt），供客户端导入信任；
+     * 文件系统支持POSIX权限时，PKCS12文件只有所有者可以读写
+     *
+     * @param keyStorePath PKCS12文件
+     * @param password     PKCS12文件的密码
+     * @throws IOException              读写文件失败
+     * @throws GeneralSecurityException 文件中没有CA或生成CA失败
+     */
+    public void loadCertificateAuthority(Path keyStorePath, char[] password)
+            throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        CertificateAuthority certificateAuthority;
+        if (Files.exists(keyStorePath)) {
+            try (InputStream inputStream = Files.newInputStream(keyStorePath)) {
+                keyStore.load(inputStream, password);
+            }
+            Key key = keyStore.getKey(CA_ALIAS, password);
+            Certificate certificate = keyStore.getCertificate(CA_ALIAS);
+            if (!(key instanceof PrivateKey) || !(certificate instanceof X509Certificate)) {
+                throw new KeyStoreException(keyStorePath + " 中没有别名为" + CA_ALIAS + "的CA");
+            }
+            certificateAuthority = new CertificateAuthority((PrivateKey) key, (X509Certificate) certificate);
+            logger.info("从 {} 读取CA", keyStorePath);
+        } else {
+            certificateAuthority = generateCertificateAuthority();
+            keyStore.load(null, null);
+            keyStore.setKeyEntry(CA_ALIAS, certificateAuthority.privateKey, password,
+                    new Certificate[]{certificateAuthority.certificate});
+            if (keyStorePath.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                // 在写入私钥之前就限制权限
+                Files.createFile(keyStorePath, PosixFilePermissions.asFileAttribute(
+                        EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+            }
+            try (OutputStream outputStream = Files.newOutputStream(keyStorePath)) {
+                keyStore.store(outputStream, password);
+            }
+            Path certificatePath = Paths.get(keyStorePath + ".crt");
+            try (Writer writer = Files.newBufferedWriter(certificatePath, StandardCharsets.US_ASCII)) {
+                writer.write("-----BEGIN CERTIFICATE-----\n");
+                writer.write(Base64.getMimeEncoder(64, new byte[]{'\n'})
+                        .encodeToString(certificateAuthority.certificate.getEncoded()));
+                writer.write("\n-----END CERTIFICATE-----\n");
+            }
+            logger.info("生成新的CA并保存到 {}，客户端需要信任 {}", keyStorePath, certificatePath);
+        }
+        setCertificateAuthority(certificateAuthority);
+    }
+
+    /**
+     * @return CA的证书，还没有生成时会先生成
+     */
+    public X509Certificate getCertificateAuthority() {
+        return sureGetCertificateAuthority().certificate;
+    }
+
+    private void setCertificateAuthority(CertificateAuthority certificateAuthority) {
+        synchronized (sslContexts) {
+            this.certificateAuthority = certificateAuthority;
+            // 旧CA签发的证书不再有效
+            sslContexts.clear();
+        }
+    }
+
+    private CertificateAuthority sureGetCertificateAuthority() {
+        CertificateAuthority certificateAuthority = this.certificateAuthority;
+        if (certificateAuthority == null) {
+            synchronized (sslContexts) {
+                certificateAuthority = this.certificateAuthority;
+                if (certificateAuthority == null) {
+                    try {
+                        certificateAuthority = generateCertificateAuthority();
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException("无法生成CA", e);
+                    }
+                    this.certificateAuthority = certificateAuthority;
+                    logger.info("生成新的CA，只保存在内存中，重启后客户端需要重新信任");
+                }
+            }
+        }
+        return certificateAuthority;
+    }
+
+    private KeyPair sureGetServerKeyPair() throws GeneralSecurityException {
+        KeyPair serverKeyPair = this.serverKeyPair;
+        if (serverKeyPair == null) {
+            synchronized (sslContexts) {
+                serverKeyPair = this.serverKeyPair;
+                if (serverKeyPair == null) {
+                    serverKeyPair = generateKeyPair();
+                    this.serverKeyPair = serverKeyPair;
+                }
+            }
+        }
+        return serverKeyPair;
+    }
+
+    private KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+        keyPairGenerator.initialize(KEY_SIZE, random);
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    private BigInteger serialNumber() {
+        return new BigInteger(64, random);
+    }
+
+    private CertificateAuthority generateCertificateAuthority() throws GeneralSecurityException {
+        KeyPair keyPair = generateKeyPair();
+        long millis = System.currentTimeMillis();
+        X500Name name = new X500Name("CN=switcher CA, O=switcher");
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, serialNumber(),
+                new Date(millis - TimeUnit.DAYS.toMillis(1)), new Date(millis + CA_VALIDITY), name,
+                keyPair.getPublic());
+        try {
+            builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+            builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+        } catch (IOException e) {
+            throw new GeneralSecurityException(e);
+        }
+        return new CertificateAuthority(keyPair.getPrivate(), sign(builder, keyPair.getPrivate()));
+    }
+
+    private static X509Certificate sign(X509v3CertificateBuilder builder, PrivateKey privateKey)
+            throws GeneralSecurityException {
+        try {
+            return new JcaX509CertificateConverter()
+                    .getCertificate(builder.build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(privateKey)));
+        } catch (OperatorCreationException e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    /**
+     * 给主机签发证书并创建 {@link SSLContext}
+     *
+     * @param host 主机名或ip
+     * @return 使用该证书的 {@link SSLContext}
+     */
+    private SSLContext newSslContext(String host) throws GeneralSecurityException, IOException {
+        CertificateAuthority certificateAuthority = sureGetCertificateAuthority();
+        KeyPair serverKeyPair = sureGetServerKeyPair();
+        long millis = System.currentTimeMillis();
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(certificateAuthority.certificate,
+                serialNumber(), new Date(millis - TimeUnit.DAYS.toMillis(1)), new Date(millis + CERTIFICATE_VALIDITY),
+                new X500Name("CN=" + host), serverKeyPair.getPublic());
+        // ipv6地址带有方括号，见 Tabu#hostOf
+        String name = host.startsWith("[") ? host.substring(1, host.length() - 1) : host;
+        boolean isIp = name.contains(":") || IPV4.matcher(name).matches();
+        builder.addExtension(Extension.subjectAlternativeName, false,
+                new GeneralNames(new GeneralName(isIp ? GeneralName.iPAddress : GeneralName.dNSName, name)));
+        builder.addExtension(Extension.basicConstraints, false, new BasicConstraints(false));
+        builder.addExtension(Extension.extendedKeyUsage, false, new ExtendedKeyUsage(KeyPurposeId.id_kp_serverAuth));
+        X509Certificate certificate = sign(builder, certificateAuthority.privateKey);
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry(host, serverKeyPair.getPrivate(), EMPTY_PASSWORD,
+                new Certificate[]{certificate, certificateAuthority.certificate});
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, EMPTY_PASSWORD);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, random);
+        SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+        sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+        return sslContext;
+    }
+
+    /**
+     * 从缓存中取出主机的 {@link SSLContext}，没有时签发新的证书
+     *
+     * @param host 主机名或ip
+     * @return {@link SSLContext}
+     */
+    SSLContext getSslContext(String host) {
+        synchronized (sslContexts) {
+            SSLContext sslContext = sslContexts.get(host);
+            if (sslContext != null) {
+                return sslContext;
+            }
+        }
+        SSLContext sslContext;
+        try {
+            sslContext = newSslContext(host);
+        } catch (GeneralSecurityException | IOException e) {
+            logger.warn("无法为 {} 签发证书", host, e);
+            throw new IllegalStateException("无法为 " + host + " 签发证书", e);
+        }
+        synchronized (sslContexts) {
+            // 并发签发同一个主机时只保留先放入的，让会话可以复用
+            SSLContext existing = sslContexts.putIfAbsent(host, sslContext);
+            if (existing != null) {
+                return existing;
+            }
+            evict();
+        }
+        logger.debug("为 {} 签发证书", host);
+        return sslContext;
+    }
+
+    /**
+     * 调用时需要持有sslContexts的锁
+     */
+    private void evict() {
+        int capacity = this.capacity;
+        while (sslContexts.size() > capacity) {
+            Map.Entry<String, SSLContext> eldest = sslContexts.entrySet().iterator().next();
+            sslContexts.remove(eldest.getKey());
+        }
+    }
+
+    @Override
+    public SSLEngine serverSslEngine(String peerHost, int peerPort) {
+        if (!verifyServerCertificates) {
+            SSLEngine sslEngine = trustAllSslContext.createSSLEngine(peerHost, peerPort);
+            sslEngine.setUseClientMode(true);
+            return sslEngine;
+        }
+        SSLEngine sslEngine = clientSslContext.createSSLEngine(peerHost, peerPort);
+        sslEngine.setUseClientMode(true);
+        SSLParameters sslParameters = sslEngine.getSSLParameters();
+        sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+        sslEngine.setSSLParameters(sslParameters);
+        return sslEngine;
+    }
+
+    @Override
+    public SSLEngine serverSslEngine() {
+        SSLEngine sslEngine = (verifyServerCertificates ? clientSslContext : trustAllSslContext).createSSLEngine();
+        sslEngine.setUseClientMode(true);
+        return sslEngine;
+    }
+
+    @Override
+    public SSLEngine clientSslEngineFor(HttpRequest httpRequest, SSLSession serverSslSession) {
+        String host = Tabu.hostOf(httpRequest);
+        if (host.equals(Tabu.ANY_HOST)) {
+            host = serverSslSession != null && serverSslSession.getPeerHost() != null ?
+                    serverSslSession.getPeerHost() : UNKNOWN_HOST;
+        }
+        SSLEngine sslEngine = getSslContext(host).createSSLEngine();
+        sslEngine.setUseClientMode(false);
+        return sslEngine;
+    }
+}
@@ -1,13 +1,319 @@
 package org.switcher;
 
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * 禁忌表，记录（代理，服务器）建立连接的失败情况
  * 可以根据禁忌表判断之后的uri是否使用某个代理
+ * <p>
+ * 每次失败后，（代理，服务器）会被禁忌一段时间，连续失败时禁忌时间按指数增长，成功后清除记录；
+ * 表的大小有上限，超出时先淘汰早已过期的记录，再淘汰最久没有被访问的记录，直到容量的 {@link #EVICT_RATIO}
  */
 public class Tabu {
+    private final static Logger logger = LoggerFactory.getLogger(Tabu.class);
+
+    /**
+     * 通配的服务器，表示上游代理本身连接失败，和目标服务器无关
+     */
+    public final static String ANY_HOST = "";
+
+    public final static int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * 第一次失败后的禁忌时间（毫秒）
+     */
+    public final static long BASE_BACKOFF = 1000;
+
+    /**
+     * 最长的禁忌时间（毫秒），过期超过这么久的记录会被遗忘
+     */
+    public final static long MAX_BACKOFF = 5 * 60 * 1000;
+
+    /**
+     * 超出容量时淘汰到容量的这个比例，从而每次淘汰的开销可以分摊到之后的多次失败上
+     */
+    final static double EVICT_RATIO = 0.875;
+
+    /**
+     * 查找时使用的键，每个线程一个，选择代理时不需要为每个代理创建 {@link Key}
+     */
+    private final static ThreadLocal<Key> PROBE = ThreadLocal.withInitial(Key::new);
+
     private final Switcher switcher;
 
+    private final Map<Key, Entry> entries;
+
+    private volatile int capacity;
+
+    /**
+     * 所有记录中最晚的禁忌结束时间，值为 {@link SpeedClock#millis()}；
+     * 记录在过期后还要保留一段时间用于计算退避，所以表不为空时也可能没有正在被禁忌的记录，见 {@link #isActive()}
+     */
+    private final AtomicLong latestExpireAt;
+
+    /**
+     * 只有 {@link #PROBE} 中的实例会被修改，放进表中的实例创建后不再修改
+     */
+    private static class Key {
+        InetSocketAddress proxySocket;
+        String host;
+
+        Key() {
+        }
+
+        Key(InetSocketAddress proxySocket, String host) {
+            this.proxySocket = proxySocket;
+            this.host = host;
+        }
+
+        Key set(InetSocketAddress proxySocket, String host) {
+            this.proxySocket = proxySocket;
+            this.host = host;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return proxySocket.equals(key.proxySocket) && host.equals(key.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * proxySocket.hashCode() + host.hashCode();
+        }
+    }
+
+    private static class Entry {
+        /**
+         * 连续失败的次数
+         */
+        int failures;
+
+        /**
+         * 禁忌的结束时间，值为 {@link SpeedClock#millis()}
+         */
+        volatile long expireAt;
+
+        /**
+         * 最近一次访问的时间，用于淘汰
+         */
+        volatile long accessedAt;
+    }
+
     Tabu(Switcher switcher) {
         this.switcher = switcher;
+        entries = new ConcurrentHashMap<>();
+        capacity = DEFAULT_CAPACITY;
+        latestExpireAt = new AtomicLong();
+    }
+
+    /**
+     * 从请求中取出目标服务器的主机名
+     *
+     * @param httpRequest {@link HttpRequest}
+     * @return 主机名，无法取出时为 {@link #ANY_HOST}
+     */
+    static String hostOf(HttpRequest httpRequest) {
+        String uri = httpRequest.uri();
+        String authority;
+        int schemeEnd = uri.indexOf("://");
+        if (schemeEnd >= 0) {
+            // 普通的http代理请求，如http://host:port/path
+            int start = schemeEnd + 3;
+            int end = uri.indexOf('/', start);
+            authority = end < 0 ? uri.substring(start) : uri.substring(start, end);
+        } else if (uri.startsWith("/")) {
+            // 中间人解密后的请求，只有路径，主机在Host头中
+            authority = httpRequest.headers().get(HttpHeaderNames.HOST);
+        } else {
+            // CONNECT请求，如host:port
+            authority = uri;
+        }
+        if (authority == null) {
+            return ANY_HOST;
+        }
+        if (authority.startsWith("[")) {
+            // ipv6地址
+            int end = authority.indexOf(']');
+            return end < 0 ? authority : authority.substring(0, end + 1);
+        }
+        int portStart = authority.indexOf(':');
+        return portStart < 0 ? authority : authority.substring(0, portStart);
+    }
+
+    private static long backoff(int failures) {
+        return failures > 20 ? MAX_BACKOFF : Math.min(BASE_BACKOFF << (failures - 1), MAX_BACKOFF);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            logger.warn("非法参数capacity={}(<=0)，将修改为默认值{}", capacity, DEFAULT_CAPACITY);
+            capacity = DEFAULT_CAPACITY;
+        }
+        this.capacity = capacity;
+        evict(SpeedClock.millis());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * 选择代理时据此决定是否需要过滤，只需要读取一个volatile变量
+     *
+     * @return 是否可能有正在被禁忌的记录，为false时一定没有
+     */
+    public boolean isActive() {
+        return isActive(SpeedClock.millis());
+    }
+
+    boolean isActive(long millis) {
+        return millis < latestExpireAt.get() && !entries.isEmpty();
+    }
+
+    /**
+     * 记录一次失败
+     *
+     * @param proxySocket 上游代理的socket
+     * @param host        目标服务器，上游代理本身失败时为 {@link #ANY_HOST}
+     */
+    void fail(InetSocketAddress proxySocket, String host) {
+        fail(proxySocket, host, SpeedClock.millis());
+    }
+
+    /**
+     * 和 {@link #fail(InetSocketAddress, String)} 相同，但指定当前时间
+     *
+     * @param millis 当前的 {@link SpeedClock#millis()}
+     */
+    void fail(InetSocketAddress proxySocket, String host, long millis) {
+        Entry entry = entries.compute(new Key(proxySocket, host), (key, oldEntry) -> {
+            Entry newEntry = oldEntry == null ? new Entry() : oldEntry;
+            if (millis - newEntry.expireAt > MAX_BACKOFF) {
+                // 距离上次禁忌结束已经很久了，重新计数
+                newEntry.failures = 0;
+            }
+            ++newEntry.failures;
+            newEntry.expireAt = millis + backoff(newEntry.failures);
+            newEntry.accessedAt = millis;
+            return newEntry;
+        });
+        latestExpireAt.accumulateAndGet(entry.expireAt, Math::max);
+        logger.info("上游代理 {} 到 {} 连续失败{}次，禁忌{}ms", proxySocket, host.isEmpty() ? "任意服务器" : host,
+                entry.failures, entry.expireAt - millis);
+        if (entries.size() > capacity) {
+            evict(millis);
+        }
+    }
+
+    /**
+     * 记录一次成功，清除对应的失败记录
+     *
+     * @param proxySocket 上游代理的socket
+     * @param host        目标服务器，上游代理本身成功时为 {@link #ANY_HOST}
+     */
+    void succeed(InetSocketAddress proxySocket, String host) {
+        // 绝大多数时候表是空的，不需要查找
+        if (!entries.isEmpty() && entries.remove(PROBE.get().set(proxySocket, host)) != null) {
+            logger.info("上游代理 {} 到 {} 恢复正常", proxySocket, host.isEmpty() ? "任意服务器" : host);
+        }
+    }
+
+    /**
+     * 判断是否应该避免通过上游代理访问目标服务器
+     *
+     * @param proxySocket 上游代理的socket
+     * @param host        目标服务器
+     * @return 上游代理本身或（代理，服务器）正在被禁忌时为true
+     */
+    public boolean isTabu(InetSocketAddress proxySocket, String host) {
+        return isTabu(proxySocket, host, SpeedClock.millis());
+    }
+
+    /**
+     * 和 {@link #isTabu(InetSocketAddress, String)} 相同，但指定当前时间
+     *
+     * @param millis 当前的 {@link SpeedClock#millis()}
+     */
+    boolean isTabu(InetSocketAddress proxySocket, String host, long millis) {
+        if (!isActive(millis)) {
+            return false;
+        }
+        Key probe = PROBE.get();
+        return isTabu0(probe.set(proxySocket, ANY_HOST), millis) ||
+                (!host.isEmpty() && isTabu0(probe.set(proxySocket, host), millis));
+    }
+
+    private boolean isTabu0(Key key, long millis) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        entry.accessedAt = millis;
+        return millis < entry.expireAt;
+    }
+
+    /**
+     * 超出容量时淘汰记录，先遗忘早已过期的，再按最近一次访问的时间淘汰到容量的 {@link #EVICT_RATIO}
+     *
+     * @param millis 当前的 {@link SpeedClock#millis()}
+     */
+    private synchronized void evict(long millis) {
+        int capacity = this.capacity;
+        if (entries.size() <= capacity) {
+            // 其它线程已经淘汰过了
+            return;
+        }
+        entries.values().removeIf(entry -> millis - entry.expireAt > MAX_BACKOFF);
+        int excess = entries.size() - (int) (capacity * EVICT_RATIO);
+        if (excess <= 0) {
+            return;
+        }
+        // accessedAt在排序时可能被修改，所以先取快照，再按快照找出第excess早的时间
+        List<Map.Entry<Key, Entry>> mapEntries = new ArrayList<>(entries.entrySet());
+        excess = Math.min(excess, mapEntries.size());
+        if (excess <= 0) {
+            return;
+        }
+        long[] accessedAts = new long[mapEntries.size()];
+        for (int i = 0; i < accessedAts.length; i++) {
+            accessedAts[i] = mapEntries.get(i).getValue().accessedAt;
+        }
+        long[] sorted = accessedAts.clone();
+        Arrays.sort(sorted);
+        long threshold = sorted[excess - 1];
+        for (int i = 0; i < accessedAts.length && excess > 0; i++) {
+            if (accessedAts[i] <= threshold) {
+                Map.Entry<Key, Entry> mapEntry = mapEntries.get(i);
+                entries.remove(mapEntry.getKey(), mapEntry.getValue());
+                --excess;
+            }
+        }
     }
 }
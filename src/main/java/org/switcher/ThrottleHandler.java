@@ -0,0 +1,242 @@
+package org.switcher;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.util.UncheckedBooleanSupplier;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 到服务端（或上游代理）的连接上的限速handler，放在pipeline的最前面，按线路上的字节数消费令牌，
+ * 同时消费所属的每一层令牌桶（见 {@link BandwidthShaper}），暂停时间取最大值；
+ * 读写的字节也在这里分别记录到连接的下载和上传的 {@link SpeedRecorder}，不需要再按客户端的socket查找连接，
+ * 读写的字节同时计入 {@link TrafficMetrics}
+ * <p>
+ * 读超速时推迟下一次 {@link #read(ChannelHandlerContext)}，而不修改autoRead，这样不会和littleproxy的背压控制冲突；
+ * 写超速时把channel标记为不可写，littleproxy会因此暂停读取客户端。
+ * 两个方向都不会复制或缓存数据
+ */
+class ThrottleHandler extends ChannelDuplexHandler {
+    final static String NAME = "switcher-throttle";
+
+    /**
+     * 限速时每次读取的最大字节数，每次只读一个缓冲区，从而共享令牌桶的连接每轮获得的字节数相近，
+     * 见 {@link QuantumRecvByteBufAllocator}
+     */
+    final static int QUANTUM = 16 * 1024;
+
+    /**
+     * {@link ChannelOutboundBuffer#setUserDefinedWritability(int, boolean)} 的下标，
+     * netty自带的traffic shaping使用了1到3
+     */
+    private final static int WRITABILITY_INDEX = 4;
+
+    /**
+     * 暂停时间小于这个值（纳秒）时忽略，避免频繁调度
+     */
+    final static long MIN_PAUSE = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final TokenBucket[] readBuckets;
+
+    private final TokenBucket[] writeBuckets;
+
+    /**
+     * 以下字段只在channel的eventLoop中访问
+     */
+    private long readResumeAt;
+    private boolean readPending;
+    private long writeResumeAt;
+    private boolean writeSuspended;
+
+    private final SpeedRecorder speedRecorder;
+    private final SpeedRecorder uploadSpeedRecorder;
+
+    /**
+     * 上游代理和全局的统计
+     */
+    private final TrafficMetrics[] metrics;
+
+    /**
+     * 连接关闭、handler被移除时调用
+     */
+    private final Runnable onRemoved;
+
+    ThrottleHandler(TokenBucket[] readBuckets, TokenBucket[] writeBuckets, SpeedRecorder speedRecorder,
+                    SpeedRecorder uploadSpeedRecorder, TrafficMetrics[] metrics, Runnable onRemoved) {
+        this.speedRecorder = speedRecorder;
+        this.uploadSpeedRecorder = uploadSpeedRecorder;
+        this.metrics = metrics;
+        this.onRemoved = onRemoved;
+        this.readBuckets = readBuckets;
+        this.writeBuckets = writeBuckets;
+    }
+
+    static long consume(TokenBucket[] tokenBuckets, long bytes, long nanos) {
+        long pause = 0;
+        for (TokenBucket tokenBucket : tokenBuckets) {
+            pause = Math.max(pause, tokenBucket.consume(bytes, nanos));
+        }
+        return pause;
+    }
+
+    /**
+     * 下载方向上是否有任何一层令牌桶在限速，限速可以在运行时修改，所以每次读取时都要检查
+     */
+    private boolean isReadLimited() {
+        for (TokenBucket tokenBucket : readBuckets) {
+            if (tokenBucket.getRate() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 限速时每次只读一个不超过 {@link #QUANTUM} 的缓冲区，不限速时和channel原来的allocator完全一样
+     */
+    private class QuantumRecvByteBufAllocator implements RecvByteBufAllocator {
+        private final RecvByteBufAllocator original;
+
+        QuantumRecvByteBufAllocator(RecvByteBufAllocator original) {
+            this.original = original;
+        }
+
+        @Override
+        public Handle newHandle() {
+            return new QuantumHandle(original.newHandle());
+        }
+    }
+
+    private class QuantumHandle extends RecvByteBufAllocator.DelegatingHandle
+            implements RecvByteBufAllocator.ExtendedHandle {
+        QuantumHandle(RecvByteBufAllocator.Handle delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public ByteBuf allocate(ByteBufAllocator alloc) {
+            return isReadLimited() ? alloc.ioBuffer(guess()) : delegate().allocate(alloc);
+        }
+
+        @Override
+        public int guess() {
+            return isReadLimited() ? Math.min(delegate().guess(), QUANTUM) : delegate().guess();
+        }
+
+        @Override
+        public boolean continueReading() {
+            return !isReadLimited() && delegate().continueReading();
+        }
+
+        @Override
+        public boolean continueReading(UncheckedBooleanSupplier maybeMoreDataSupplier) {
+            if (isReadLimited()) {
+                return false;
+            }
+            RecvByteBufAllocator.Handle delegate = delegate();
+            return delegate instanceof RecvByteBufAllocator.ExtendedHandle ?
+                    ((RecvByteBufAllocator.ExtendedHandle) delegate).continueReading(maybeMoreDataSupplier) :
+                    delegate.continueReading();
+        }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        RecvByteBufAllocator original = ctx.channel().config().getRecvByteBufAllocator();
+        ctx.channel().config().setRecvByteBufAllocator(new QuantumRecvByteBufAllocator(original));
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        onRemoved.run();
+    }
+
+    private static long sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        } else {
+            return 0;
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        long nanos = System.nanoTime();
+        long size = sizeOf(msg);
+        speedRecorder.record((int) size);
+        for (TrafficMetrics trafficMetrics : metrics) {
+            trafficMetrics.receivedBytes.add(size);
+        }
+        long pause = consume(readBuckets, size, nanos);
+        if (pause >= MIN_PAUSE) {
+            readResumeAt = Math.max(readResumeAt, nanos + pause);
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void read(ChannelHandlerContext ctx) throws Exception {
+        long delay = readResumeAt - System.nanoTime();
+        if (delay <= 0) {
+            ctx.read();
+        } else if (!readPending) {
+            readPending = true;
+            ctx.executor().schedule(() -> {
+                readPending = false;
+                try {
+                    read(ctx);
+                } catch (Exception e) {
+                    ctx.fireExceptionCaught(e);
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        long nanos = System.nanoTime();
+        long size = sizeOf(msg);
+        uploadSpeedRecorder.record((int) size);
+        for (TrafficMetrics trafficMetrics : metrics) {
+            trafficMetrics.sentBytes.add(size);
+        }
+        long pause = consume(writeBuckets, size, nanos);
+        ctx.write(msg, promise);
+        if (pause >= MIN_PAUSE) {
+            writeResumeAt = Math.max(writeResumeAt, nanos + pause);
+            if (!writeSuspended) {
+                writeSuspended = true;
+                setWritable(ctx, false);
+                scheduleWritable(ctx, pause);
+            }
+        }
+    }
+
+    private void scheduleWritable(ChannelHandlerContext ctx, long delay) {
+        ctx.executor().schedule(() -> {
+            long remaining = writeResumeAt - System.nanoTime();
+            if (remaining > 0) {
+                scheduleWritable(ctx, remaining);
+            } else {
+                writeSuspended = false;
+                setWritable(ctx, true);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private static void setWritable(ChannelHandlerContext ctx, boolean writable) {
+        ChannelOutboundBuffer channelOutboundBuffer = ctx.channel().unsafe().outboundBuffer();
+        // channel关闭后为null
+        if (channelOutboundBuffer != null) {
+            channelOutboundBuffer.setUserDefinedWritability(WRITABILITY_INDEX, writable);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.switcher;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.ChainedProxy;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * 通过实测带宽的剩余空间来比较上游代理
+ * <p>
+ * 从每个上游代理的速度历史中学习其饱和时的速度上限，对每个代理估计再增加一个连接能带来的速度增量，
+ * 即 min(单连接速度, 剩余空间)，增量越大越优先；增量相同时，按增加连接后每个连接能分到的速度排序，
+ * 最后再按连接数排序。当各个上游代理的限速不同时，比单纯按连接数分配能得到更高的总速度
+ * <p>
+ * 以上传为主的请求（见 {@link TrafficDirection#of(HttpRequest)}）按上传的速度和上限比较，其它请求按下载比较
+ */
+public class ThroughputSwitchTactics implements SwitchTactics {
+    /**
+     * 观测到的上限不一定是真正的上限，因此假设上限总比观测值多这么多比例，使未饱和的代理仍有机会被尝试
+     */
+    private final static double EXPLORATION = 0.1;
+
+    /**
+     * 某个上游代理在一次排序中的估计值
+     */
+    private static class Estimate {
+        final UpstreamProxyPair upstreamProxyPair;
+
+        /**
+         * 增加一个连接后总速度的增量
+         */
+        final long gain;
+
+        /**
+         * 增加一个连接后每个连接分到的速度
+         */
+        final long share;
+
+        final int connectionSize;
+
+        Estimate(UpstreamProxyPair upstreamProxyPair, TrafficDirection direction) {
+            this.upstreamProxyPair = upstreamProxyPair;
+            UpstreamProxyDetail upstreamProxyDetail = upstreamProxyPair.upstreamProxyDetail;
+            connectionSize = upstreamProxyDetail.getRelevantConnectionSize();
+            UpstreamProxyDetail.Sample sample = upstreamProxyDetail.sample(direction);
+            gain = gain(sample.speed, sample.ceiling, connectionSize);
+            share = share(sample.ceiling, connectionSize);
+        }
+    }
+
+    private final static Comparator<Estimate> COMPARATOR = Comparator
+            .comparingLong((Estimate estimate) -> estimate.gain).reversed()
+            .thenComparing(Comparator.comparingLong((Estimate estimate) -> estimate.share).reversed())
+            .thenComparingInt(estimate -> estimate.connectionSize);
+
+    /**
+     * 和 {@link #COMPARATOR} 的顺序一致，但直接比较 {@link UpstreamProxyDetail}，不需要分配对象。
+     * 速度和上限读取 {@link UpstreamProxyDetail#sample(TrafficDirection)}，同一周期内的比较不会重复合并子recorder
+     */
+    private final static Comparator<UpstreamProxyDetail> DETAIL_COMPARATOR = detailComparator(TrafficDirection.DOWNLOAD);
+    private final static Comparator<UpstreamProxyDetail> UPLOAD_DETAIL_COMPARATOR =
+            detailComparator(TrafficDirection.UPLOAD);
+
+    private static Comparator<UpstreamProxyDetail> detailComparator(TrafficDirection direction) {
+        return (a, b) -> {
+            int aConnectionSize = a.getRelevantConnectionSize();
+            int bConnectionSize = b.getRelevantConnectionSize();
+            UpstreamProxyDetail.Sample aSample = a.sample(direction);
+            UpstreamProxyDetail.Sample bSample = b.sample(direction);
+            int result = Long.compare(gain(bSample.speed, bSample.ceiling, bConnectionSize),
+                    gain(aSample.speed, aSample.ceiling, aConnectionSize));
+            if (result == 0) {
+                result = Long.compare(share(bSample.ceiling, bConnectionSize), share(aSample.ceiling, aConnectionSize));
+            }
+            if (result == 0) {
+                result = Integer.compare(aConnectionSize, bConnectionSize);
+            }
+            return result;
+        };
+    }
+
+    /**
+     * @param speed          当前速度
+     * @param ceiling        速度上限
+     * @param connectionSize 连接数
+     * @return 增加一个连接后总速度的增量，还没有观测到流量时为最大值，使其优先被尝试
+     */
+    private static long gain(long speed, long ceiling, int connectionSize) {
+        if (ceiling == 0) {
+            return Long.MAX_VALUE;
+        }
+        long headroom = Math.max((long) (ceiling * (1 + EXPLORATION)) - speed, 0);
+        long perConnection = connectionSize == 0 ? ceiling : speed / connectionSize;
+        return Math.min(perConnection, headroom);
+    }
+
+    /**
+     * @param ceiling        速度上限
+     * @param connectionSize 连接数
+     * @return 增加一个连接后每个连接分到的速度，还没有观测到流量时为最大值
+     */
+    private static long share(long ceiling, int connectionSize) {
+        return ceiling == 0 ? Long.MAX_VALUE : ceiling / (connectionSize + 1);
+    }
+
+    @Override
+    public List<UpstreamProxyPair> getRank(String uri, List<UpstreamProxyPair> proxyPairs) {
+        // 先计算好每个代理的估计值，避免排序时反复读取速度
+        List<Estimate> estimates = new ArrayList<>(proxyPairs.size());
+        // 只有uri时无法判断方向，按下载比较
+        proxyPairs.forEach(upstreamProxyPair ->
+                estimates.add(new Estimate(upstreamProxyPair, TrafficDirection.DOWNLOAD)));
+        estimates.sort(COMPARATOR);
+        proxyPairs.clear();
+        estimates.forEach(estimate -> proxyPairs.add(estimate.upstreamProxyPair));
+        return proxyPairs;
+    }
+
+    @Override
+    public void select(HttpRequest httpRequest, UpstreamProxyPair[] proxyPairs, Queue<ChainedProxy> chainedProxies) {
+        PowerOfTwoChoices.select(proxyPairs, TrafficDirection.of(httpRequest) == TrafficDirection.UPLOAD ?
+                UPLOAD_DETAIL_COMPARATOR : DETAIL_COMPARATOR, chainedProxies);
+    }
+}
@@ -0,0 +1,107 @@
+package org.switcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 令牌桶，用GCRA（通用信元速率算法）实现：只记录一个“理论到达时间”，不需要定时补充令牌，消费时一次CAS即可
+ * <p>
+ * 已经读到或写出的字节无法退回，所以 {@link #consume(long, long)} 总是扣除，允许欠账，
+ * 返回需要暂停多久才能还清，由调用者负责暂停
+ */
+public class TokenBucket {
+    private final static Logger logger = LoggerFactory.getLogger(TokenBucket.class);
+
+    private final static long NANOS_PER_SECOND = 1000_000_000L;
+
+    /**
+     * 默认允许的突发量为这么多毫秒的流量
+     */
+    private final static long DEFAULT_BURST_MILLIS = 100;
+
+    /**
+     * 默认允许的最小突发量（字节），太小时每读一次都要暂停
+     */
+    private final static long MIN_BURST = 16 * 1024;
+
+    /**
+     * 速率（字节/秒），为0表示不限速
+     */
+    private volatile long rate;
+
+    /**
+     * 允许的突发量（字节）
+     */
+    private volatile long burst;
+
+    /**
+     * 理论到达时间，值为 {@link System#nanoTime()}
+     */
+    private final AtomicLong tat;
+
+    public TokenBucket() {
+        tat = new AtomicLong(System.nanoTime());
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public long getBurst() {
+        return burst;
+    }
+
+    /**
+     * 修改速率，突发量取默认值
+     *
+     * @param rate 速率（字节/秒），为0表示不限速
+     */
+    public void setRate(long rate) {
+        setRate(rate, Math.max(rate * DEFAULT_BURST_MILLIS / 1000, MIN_BURST));
+    }
+
+    /**
+     * 修改速率和突发量，之前的欠账会被清除
+     *
+     * @param rate  速率（字节/秒），为0表示不限速
+     * @param burst 允许的突发量（字节）
+     */
+    public void setRate(long rate, long burst) {
+        if (rate < 0) {
+            logger.warn("非法参数rate={}(<0)，将修改为0（不限速）", rate);
+            rate = 0;
+        }
+        if (burst <= 0) {
+            logger.warn("非法参数burst={}(<=0)，将修改为{}", burst, MIN_BURST);
+            burst = MIN_BURST;
+        }
+        this.burst = burst;
+        this.rate = rate;
+        tat.set(System.nanoTime());
+    }
+
+    /**
+     * 消费bytes个令牌
+     *
+     * @param bytes 字节数
+     * @param nanos 当前的 {@link System#nanoTime()}
+     * @return 需要暂停的纳秒数，为0表示不需要暂停
+     */
+    long consume(long bytes, long nanos) {
+        long rate = this.rate;
+        if (rate <= 0) {
+            return 0;
+        }
+        long increment = bytes * NANOS_PER_SECOND / rate;
+        long tolerance = burst * NANOS_PER_SECOND / rate;
+        while (true) {
+            long tat = this.tat.get();
+            long newTat = Math.max(tat, nanos) + increment;
+            if (this.tat.compareAndSet(tat, newTat)) {
+                return Math.max(0, newTat - nanos - tolerance);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.switcher;
+
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+
+/**
+ * 流量的方向，选择策略可以按请求的主要方向比较上游代理的速度，见 {@link UpstreamProxyDetail#getSpeedRecorder(TrafficDirection)}
+ */
+public enum TrafficDirection {
+    /**
+     * 从服务端（或上游代理）读取
+     */
+    DOWNLOAD,
+
+    /**
+     * 向服务端（或上游代理）写入
+     */
+    UPLOAD;
+
+    /**
+     * 请求体至少这么大时，认为请求以上传为主
+     */
+    public final static long UPLOAD_THRESHOLD = 64 * 1024;
+
+    /**
+     * 根据请求头判断请求的主要方向，只看请求头，不需要等待请求体
+     *
+     * @param httpRequest {@link HttpRequest}
+     * @return 请求体足够大或使用分块传输时为 {@link #UPLOAD}，否则为 {@link #DOWNLOAD}，CONNECT请求无法判断，认为是下载
+     */
+    public static TrafficDirection of(HttpRequest httpRequest) {
+        if (HttpUtil.isTransferEncodingChunked(httpRequest)) {
+            return UPLOAD;
+        }
+        try {
+            return HttpUtil.getContentLength(httpRequest, 0L) >= UPLOAD_THRESHOLD ? UPLOAD : DOWNLOAD;
+        } catch (NumberFormatException e) {
+            return DOWNLOAD;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.switcher;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 某个上游代理或全局的流量和建立连接的统计，都是只增不减的计数，导出时直接读取，见 {@link MetricsExporter}
+ * <p>
+ * 字节数在 {@link ThrottleHandler} 中按线路上的字节记录，建立连接的延迟从
+ * {@link SwitcherHttpFilter#proxyToServerConnectionStarted()} 开始计算，各阶段的耗时见 {@link ConnectionPhase}
+ */
+public class TrafficMetrics {
+    final LongAdder receivedBytes;
+    final LongAdder sentBytes;
+    final LongAdder connects;
+    final LongAdder connectFailures;
+
+    /**
+     * 建立连接的延迟（微秒）
+     */
+    public final LatencyHistogram connectLatency;
+
+    /**
+     * 建立连接的各个阶段的耗时（微秒），下标为 {@link ConnectionPhase#ordinal()}
+     */
+    private final LatencyHistogram[] phaseLatencies;
+
+    TrafficMetrics() {
+        receivedBytes = new LongAdder();
+        sentBytes = new LongAdder();
+        connects = new LongAdder();
+        connectFailures = new LongAdder();
+        connectLatency = new LatencyHistogram();
+        phaseLatencies = new LatencyHistogram[ConnectionPhase.values().length];
+        for (int i = 0; i < phaseLatencies.length; i++) {
+            phaseLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param phase 阶段
+     * @return 该阶段耗时（微秒）的直方图
+     */
+    public LatencyHistogram getPhaseLatency(ConnectionPhase phase) {
+        return phaseLatencies[phase.ordinal()];
+    }
+
+    void recordPhase(ConnectionPhase phase, long nanos) {
+        phaseLatencies[phase.ordinal()].record(nanos / 1000);
+    }
+
+    /**
+     * @return 从服务端（或上游代理）接收的字节数
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    /**
+     * @return 发送给服务端（或上游代理）的字节数
+     */
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
+
+    public long getConnects() {
+        return connects.sum();
+    }
+
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    void connectSucceeded(long latencyMicros) {
+        connects.increment();
+        connectLatency.record(latencyMicros);
+    }
+}
@@ -1,40 +1,347 @@
 package org.switcher;
 
+import org.littleshoot.proxy.ChainedProxy;
+
 import java.net.InetSocketAddress;
-import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 上游代理的详细信息
  */
 public class UpstreamProxyDetail {
     /**
-     * 通过此上游代理访问服务端的所有连接的集合
+     * 观测到的速度上限每过这么多毫秒衰减一半，使上限能跟随上游代理的变化而下降
+     */
+    private final static long CEILING_HALF_LIFE = 5 * 60 * 1000;
+
+    /**
+     * 上游代理的socket
+     */
+    public final InetSocketAddress proxySocket;
+
+    /**
+     * 每个上游代理只创建一个 {@link ChainedProxy}，建立连接时直接重用
+     */
+    final ChainedProxy chainedProxy;
+
+    /**
+     * 所属的组，为null表示不属于任何组，见 {@link UpstreamProxyGroup}
+     */
+    public final UpstreamProxyGroup group;
+
+    /**
+     * 通过此上游代理访问服务端的所有连接的集合，只在移除上游代理时用于中止连接
      */
     final Set<InetSocketAddress> relevantConnections;
 
+    /**
+     * relevantConnections的大小加上正在通过此上游代理获取的拆分下载的块数，选择代理时直接读取，
+     * 见 {@link #addPieceConnection()}；属于某个组时同时计入组的连接数
+     */
+    private final AtomicInteger relevantConnectionSize;
+
+    /**
+     * 下载和上传的速度，见 {@link #getSpeedRecorder(TrafficDirection)}
+     */
     public final SpeedRecorder speedRecorder;
+    public final SpeedRecorder uploadSpeedRecorder;
+
+    /**
+     * 下载（从上游读取）和上传（向上游写入）的限速，见 {@link ThrottleHandler}
+     */
+    final TokenBucket readBucket;
+    final TokenBucket writeBucket;
+
+    /**
+     * 流量和建立连接的统计
+     */
+    public final TrafficMetrics metrics;
+
+    /**
+     * 主动探测得到的健康状况
+     */
+    public final UpstreamProxyHealth health;
+
+    /**
+     * 被 {@link Rebalancer} 降级的结束时间，值为 {@link SpeedClock#millis()}，在此之前不分配新的连接
+     */
+    volatile long degradedUntil;
 
     /**
-     * 执行和状态相关的操作时需要该锁
+     * 是否正在被 {@link UpstreamProxyRegistry} 排空：不在快照中，不分配新的连接，已有的连接结束或超时后移除
      */
-    final ReadWriteLock stateLock;
+    volatile boolean draining;
 
     /**
-     * 是否已经被移除
+     * 不属于任何组时，在组之间选择时使用的权重，见 {@link GroupSwitchTactics}
      */
-    boolean removed;
+    private volatile int weight;
 
-    UpstreamProxyDetail(SpeedRecorder parent) {
-        relevantConnections = new HashSet<>();
-        speedRecorder = new SpeedRecorder(parent);
-        stateLock = new ReentrantReadWriteLock(true);
+    /**
+     * 是否已经被移除，只会从false变为true，见 {@link #addConnection(InetSocketAddress)}
+     */
+    private volatile boolean removed;
+
+    /**
+     * 从历史速度中学习到的下载和上传的速度上限（字节/秒），为0表示还没有观测到流量
+     */
+    private volatile long ceiling;
+    private volatile long uploadCeiling;
+
+    /**
+     * ceiling和uploadCeiling最近一次更新的时间，值为 {@link SpeedClock#millis()}
+     */
+    private volatile long ceilingUpdatedAt;
+    private volatile long uploadCeilingUpdatedAt;
+
+    /**
+     * 最近一次采样的下载和上传的速度和上限，见 {@link #sample(TrafficDirection)}
+     */
+    private volatile Sample sample;
+    private volatile Sample uploadSample;
+
+    /**
+     * 某个方向在某一时刻的速度和上限
+     * <p>
+     * 读取速度要合并所有子recorder，选择代理时每次比较都读取的话开销和连接数成正比，
+     * 因此每个 {@link SpeedClock} 周期最多采样一次，同一周期内的比较都读取同一个采样
+     */
+    static class Sample {
+        /**
+         * 采样时的 {@link SpeedClock#millis()}
+         */
+        final long millis;
+
+        final long speed;
+
+        final long ceiling;
+
+        Sample(long millis, long speed, long ceiling) {
+            this.millis = millis;
+            this.speed = speed;
+            this.ceiling = ceiling;
+        }
+    }
+
+    /**
+     * @param proxySocket  上游代理的地址
+     * @param chainedProxy 上游代理对应的 {@link ChainedProxy}
+     * @param group        所属的组，为null时速度直接计入parent和uploadParent，否则计入组
+     * @param parent       全局的下载速度
+     * @param uploadParent 全局的上传速度
+     */
+    UpstreamProxyDetail(InetSocketAddress proxySocket, ChainedProxy chainedProxy, UpstreamProxyGroup group,
+                        SpeedRecorder parent, SpeedRecorder uploadParent) {
+        this.proxySocket = proxySocket;
+        this.chainedProxy = chainedProxy;
+        this.group = group;
+        relevantConnections = ConcurrentHashMap.newKeySet();
+        relevantConnectionSize = new AtomicInteger();
+        speedRecorder = new SpeedRecorder(group == null ? parent : group.speedRecorder);
+        uploadSpeedRecorder = new SpeedRecorder(group == null ? uploadParent : group.uploadSpeedRecorder);
+        readBucket = new TokenBucket();
+        writeBucket = new TokenBucket();
+        metrics = new TrafficMetrics();
+        health = new UpstreamProxyHealth();
+        weight = UpstreamProxyGroup.DEFAULT_WEIGHT;
         removed = false;
+        sample = new Sample(-1, 0, 0);
+        uploadSample = sample;
+    }
+
+    /**
+     * 设置通过此上游代理的所有连接共享的速度限制，立即对已有的连接生效
+     *
+     * @param readThrottleBytesPerSecond  下载速度限制（字节/秒），为0表示不限速
+     * @param writeThrottleBytesPerSecond 上传速度限制（字节/秒），为0表示不限速
+     */
+    public void setThrottle(long readThrottleBytesPerSecond, long writeThrottleBytesPerSecond) {
+        readBucket.setRate(readThrottleBytesPerSecond);
+        writeBucket.setRate(writeThrottleBytesPerSecond);
+    }
+
+    public long getReadThrottle() {
+        return readBucket.getRate();
+    }
+
+    public long getWriteThrottle() {
+        return writeBucket.getRate();
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * 通过 {@link UpstreamProxyManager#setWeight(InetSocketAddress, int)} 修改，以便重新判断是否需要按权重选择
+     */
+    void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    public boolean isDraining() {
+        return draining;
     }
 
     public int getRelevantConnectionSize() {
-        return relevantConnections.size();
+        return relevantConnectionSize.get();
+    }
+
+    /**
+     * 记录一个通过此上游代理的连接
+     * <p>
+     * 先加入集合再检查removed，而 {@link #markRemoved()} 先设置removed再遍历集合，两边都是volatile操作，
+     * 所以并发时至少有一边能看到另一边：要么连接被移除方中止，要么这里返回false由调用者中止，不需要加锁
+     *
+     * @param clientSocket 客户端的socket
+     * @return 上游代理是否仍然可用，为false时调用者应中止连接
+     */
+    boolean addConnection(InetSocketAddress clientSocket) {
+        if (relevantConnections.add(clientSocket)) {
+            incrementConnectionSize();
+        }
+        return !removed;
+    }
+
+    void removeConnection(InetSocketAddress clientSocket) {
+        if (relevantConnections.remove(clientSocket)) {
+            decrementConnectionSize();
+        }
+    }
+
+    /**
+     * 记录一个正在通过此上游代理获取的拆分下载的块，见 {@link ParallelRangeDownload}。
+     * 块的请求不属于任何客户端连接，移除上游代理时由worker自己放弃，所以只计数，不加入relevantConnections
+     *
+     * @return 上游代理是否仍然可用，为false时调用者仍需调用 {@link #removePieceConnection()}
+     */
+    boolean addPieceConnection() {
+        incrementConnectionSize();
+        return !removed;
+    }
+
+    void removePieceConnection() {
+        decrementConnectionSize();
+    }
+
+    private void incrementConnectionSize() {
+        relevantConnectionSize.incrementAndGet();
+        if (group != null) {
+            group.addConnection();
+        }
+    }
+
+    private void decrementConnectionSize() {
+        relevantConnectionSize.decrementAndGet();
+        if (group != null) {
+            group.removeConnection();
+        }
+    }
+
+    /**
+     * 标记为已移除
+     *
+     * @return 之后仍需中止的连接，见 {@link #addConnection(InetSocketAddress)}
+     */
+    Set<InetSocketAddress> markRemoved() {
+        removed = true;
+        return relevantConnections;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return 是否正在被 {@link Rebalancer} 降级
+     */
+    public boolean isDegraded() {
+        return degradedUntil != 0 && SpeedClock.millis() < degradedUntil;
+    }
+
+    /**
+     * @param direction 流量的方向
+     * @return 对应方向的 {@link SpeedRecorder}
+     */
+    public SpeedRecorder getSpeedRecorder(TrafficDirection direction) {
+        return direction == TrafficDirection.UPLOAD ? uploadSpeedRecorder : speedRecorder;
+    }
+
+    /**
+     * 获取观测到的下载速度上限，即饱和时的速度，会顺便用当前速度更新上限
+     * <p>
+     * 上限取衰减后的历史上限和当前速度中的较大者，并发更新时可能丢失一次更新，对估计没有影响
+     *
+     * @param speed 当前速度
+     * @return 速度上限（字节/秒）
+     */
+    long updateCeiling(long speed) {
+        long millis = SpeedClock.millis();
+        long newCeiling = Math.max(decay(ceiling, millis - ceilingUpdatedAt), speed);
+        ceiling = newCeiling;
+        ceilingUpdatedAt = millis;
+        return newCeiling;
+    }
+
+    /**
+     * 和 {@link #updateCeiling(long)} 相同，但可以指定方向
+     *
+     * @param direction 流量的方向
+     * @param speed     对应方向的当前速度
+     * @return 对应方向的速度上限（字节/秒）
+     */
+    long updateCeiling(TrafficDirection direction, long speed) {
+        if (direction == TrafficDirection.DOWNLOAD) {
+            return updateCeiling(speed);
+        }
+        long millis = SpeedClock.millis();
+        long newCeiling = Math.max(decay(uploadCeiling, millis - uploadCeilingUpdatedAt), speed);
+        uploadCeiling = newCeiling;
+        uploadCeilingUpdatedAt = millis;
+        return newCeiling;
+    }
+
+    /**
+     * 获取对应方向在当前 {@link SpeedClock} 周期的速度和上限，周期内第一次调用时才读取速度并更新上限。
+     * 并发时可能有多个线程同时采样，结果相同，只是多读取一次
+     *
+     * @param direction 流量的方向
+     * @return 当前周期的采样
+     */
+    Sample sample(TrafficDirection direction) {
+        long millis = SpeedClock.millis();
+        Sample sample = direction == TrafficDirection.UPLOAD ? uploadSample : this.sample;
+        if (sample.millis == millis) {
+            return sample;
+        }
+        long speed = getSpeedRecorder(direction).getSpeed();
+        sample = new Sample(millis, speed, updateCeiling(direction, speed));
+        if (direction == TrafficDirection.UPLOAD) {
+            uploadSample = sample;
+        } else {
+            this.sample = sample;
+        }
+        return sample;
+    }
+
+    private static long decay(long ceiling, long elapsed) {
+        return (long) (ceiling * Math.pow(0.5, (double) elapsed / CEILING_HALF_LIFE));
+    }
+
+    /**
+     * @return 观测到的下载速度上限（字节/秒），为0表示还没有观测到流量
+     */
+    public long getCeiling() {
+        return updateCeiling(speedRecorder.getSpeed());
+    }
+
+    /**
+     * @param direction 流量的方向
+     * @return 观测到的对应方向的速度上限（字节/秒），为0表示还没有观测到流量
+     */
+    public long getCeiling(TrafficDirection direction) {
+        return updateCeiling(direction, getSpeedRecorder(direction).getSpeed());
     }
 }
@@ -0,0 +1,131 @@
+package org.switcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一组共享同一个物理瓶颈的上游代理，例如同一个NAT后面的多个校园网账号
+ * <p>
+ * 组内所有上游代理的速度汇总到组的 {@link SpeedRecorder}，再汇总到全局；组的配额是组内所有连接共享的令牌桶，
+ * 和全局、客户端主机、上游代理的令牌桶一起由 {@link ThrottleHandler} 消费。
+ * 选择代理时先按权重在组之间选择，再在组内选择，见 {@link GroupSwitchTactics}
+ */
+public class UpstreamProxyGroup {
+    private final static Logger logger = LoggerFactory.getLogger(UpstreamProxyGroup.class);
+
+    public final static int DEFAULT_WEIGHT = 1;
+
+    /**
+     * 速度达到配额的这么多比例时，认为组已经饱和
+     */
+    private final static double SATURATION = 0.9;
+
+    public final String name;
+
+    /**
+     * 组内所有上游代理的下载和上传的速度
+     */
+    public final SpeedRecorder speedRecorder;
+    public final SpeedRecorder uploadSpeedRecorder;
+
+    /**
+     * 组内所有连接共享的下载和上传的配额
+     */
+    final TokenBucket readBucket;
+    final TokenBucket writeBucket;
+
+    private volatile int weight;
+
+    /**
+     * 组内所有上游代理的连接数之和，包括正在被排空或不可用的上游代理上的连接，它们同样占用组的瓶颈；
+     * 由 {@link UpstreamProxyDetail} 随自身的连接数一起更新，选择组时直接读取
+     */
+    private final AtomicInteger relevantConnectionSize;
+
+    /**
+     * 是否已经被移除，只会从false变为true
+     */
+    private volatile boolean removed;
+
+    UpstreamProxyGroup(String name, int weight, SpeedRecorder parent, SpeedRecorder uploadParent) {
+        this.name = name;
+        speedRecorder = new SpeedRecorder(parent);
+        uploadSpeedRecorder = new SpeedRecorder(uploadParent);
+        readBucket = new TokenBucket();
+        writeBucket = new TokenBucket();
+        relevantConnectionSize = new AtomicInteger();
+        setWeight(weight);
+        removed = false;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @param weight 权重，组之间按权重分配连接
+     */
+    public void setWeight(int weight) {
+        if (weight <= 0) {
+            logger.warn("非法参数weight={}(<=0)，将修改为默认值{}", weight, DEFAULT_WEIGHT);
+            weight = DEFAULT_WEIGHT;
+        }
+        this.weight = weight;
+    }
+
+    public int getRelevantConnectionSize() {
+        return relevantConnectionSize.get();
+    }
+
+    void addConnection() {
+        relevantConnectionSize.incrementAndGet();
+    }
+
+    void removeConnection() {
+        relevantConnectionSize.decrementAndGet();
+    }
+
+    /**
+     * 设置组内所有连接共享的配额，立即对已有的连接生效
+     *
+     * @param readQuotaBytesPerSecond  下载配额（字节/秒），为0表示不限速
+     * @param writeQuotaBytesPerSecond 上传配额（字节/秒），为0表示不限速
+     */
+    public void setQuota(long readQuotaBytesPerSecond, long writeQuotaBytesPerSecond) {
+        readBucket.setRate(readQuotaBytesPerSecond);
+        writeBucket.setRate(writeQuotaBytesPerSecond);
+    }
+
+    public long getReadQuota() {
+        return readBucket.getRate();
+    }
+
+    public long getWriteQuota() {
+        return writeBucket.getRate();
+    }
+
+    public SpeedRecorder getSpeedRecorder(TrafficDirection direction) {
+        return direction == TrafficDirection.UPLOAD ? uploadSpeedRecorder : speedRecorder;
+    }
+
+    /**
+     * @param direction 请求的主要方向
+     * @return 对应方向的速度是否已经接近配额，没有配额时认为没有饱和
+     */
+    boolean isSaturated(TrafficDirection direction) {
+        long quota = direction == TrafficDirection.UPLOAD ? getWriteQuota() : getReadQuota();
+        return quota != 0 && getSpeedRecorder(direction).getSpeed() >= quota * SATURATION;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    void markRemoved() {
+        removed = true;
+        speedRecorder.tearDown();
+        uploadSpeedRecorder.tearDown();
+    }
+}
@@ -0,0 +1,93 @@
+package org.switcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 上游代理的健康状况，由 {@link UpstreamProxyProber} 主动探测得到
+ */
+public class UpstreamProxyHealth {
+    /**
+     * 连续失败这么多次后，认为上游代理不可用
+     */
+    public final static int DOWN_THRESHOLD = 3;
+
+    /**
+     * 平滑往返时间时，新样本所占的比例
+     */
+    private final static double RTT_ALPHA = 0.25;
+
+    private final AtomicLong successes;
+    private final AtomicLong failures;
+
+    /**
+     * 连续失败的次数，只被探测线程修改
+     */
+    private volatile int consecutiveFailures;
+
+    /**
+     * 平滑后的往返时间（纳秒），为0表示还没有成功的探测
+     */
+    private volatile long rtt;
+
+    /**
+     * 最近一次探测的时间，值为 {@link SpeedClock#millis()}，为0表示还没有探测过
+     */
+    private volatile long probedAt;
+
+    UpstreamProxyHealth() {
+        successes = new AtomicLong();
+        failures = new AtomicLong();
+        consecutiveFailures = 0;
+        rtt = 0;
+        probedAt = 0;
+    }
+
+    /**
+     * 记录一次成功的探测
+     *
+     * @param rtt 本次探测的往返时间（纳秒）
+     */
+    void success(long rtt) {
+        successes.incrementAndGet();
+        consecutiveFailures = 0;
+        long oldRtt = this.rtt;
+        this.rtt = oldRtt == 0 ? rtt : (long) (oldRtt * (1 - RTT_ALPHA) + rtt * RTT_ALPHA);
+        probedAt = SpeedClock.millis();
+    }
+
+    /**
+     * 记录一次失败的探测
+     */
+    void failure() {
+        failures.incrementAndGet();
+        ++consecutiveFailures;
+        probedAt = SpeedClock.millis();
+    }
+
+    /**
+     * @return 是否被探测为不可用，还没有探测过时认为可用
+     */
+    public boolean isDown() {
+        return consecutiveFailures >= DOWN_THRESHOLD;
+    }
+
+    /**
+     * @return 平滑后的往返时间（纳秒），为0表示还没有成功的探测
+     */
+    public long getRtt() {
+        return rtt;
+    }
+
+    /**
+     * @return 探测的成功率，还没有探测过时为1
+     */
+    public double getSuccessRate() {
+        long successes = this.successes.get();
+        long total = successes + failures.get();
+        return total == 0 ? 1 : (double) successes / total;
+    }
+
+    public long getProbedAt() {
+        return probedAt;
+    }
+}
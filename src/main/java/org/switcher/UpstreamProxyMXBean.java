@@ -0,0 +1,47 @@
+package org.switcher;
+
+/**
+ * 通过JMX导出的上游代理指标，见 {@link MetricsExporter#registerMBeans()}
+ */
+public interface UpstreamProxyMXBean {
+    /**
+     * @return 下载速度（字节/秒）
+     */
+    long getSpeed();
+
+    /**
+     * @return 上传速度（字节/秒）
+     */
+    long getUploadSpeed();
+
+    /**
+     * @return 观测到的上传速度上限（字节/秒）
+     */
+    long getUploadCeiling();
+
+    /**
+     * @return 观测到的速度上限（字节/秒）
+     */
+    long getCeiling();
+
+    int getActiveConnections();
+
+    long getReceivedBytes();
+
+    long getSentBytes();
+
+    long getConnects();
+
+    long getConnectFailures();
+
+    long getConnectLatencyP50Micros();
+
+    long getConnectLatencyP99Micros();
+
+    /**
+     * @return 主动探测的往返时间（微秒）
+     */
+    long getRttMicros();
+
+    boolean isDown();
+}
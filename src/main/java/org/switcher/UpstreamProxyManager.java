@@ -6,6 +6,7 @@ import org.switcher.exception.UpStreamProxyAlreadyExistsException;
 import org.switcher.exception.UpStreamProxyNotFoundException;
 
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -26,6 +27,33 @@ public class UpstreamProxyManager {
      */
     final Map<InetSocketAddress, UpstreamProxyDetail> proxies;
 
+    /**
+     * proxies的不可变快照，在上游代理增加或移除时重建，不需要遍历proxies和分配对象
+     */
+    private volatile UpstreamProxyPair[] snapshot;
+
+    /**
+     * snapshot中可以分配新连接的上游代理，选择代理时直接使用，随snapshot一起重建；
+     * 不包括正在被排空、被探测为不可用或被降级的上游代理，后两者在状态变化时由
+     * {@link UpstreamProxyProber} 和 {@link Rebalancer} 重建，见 {@link #rebuildSnapshot()}
+     */
+    private volatile UpstreamProxyPair[] selectable;
+
+    /**
+     * selectable按组的划分，随selectable一起重建，见 {@link GroupSwitchTactics}
+     */
+    private volatile GroupSwitchTactics.Partition partition;
+
+    /**
+     * 按名字查找上游代理组，见 {@link UpstreamProxyGroup}
+     */
+    private final Map<String, UpstreamProxyGroup> groups;
+
+    /**
+     * 快照中是否有设置过权重的上游代理，随快照一起重建
+     */
+    private volatile boolean weighted;
+
     /**
      * 在代理发生变化时，会对连接进行一些处理，因此需要引用connectionManager
      */
@@ -37,6 +65,10 @@ public class UpstreamProxyManager {
     UpstreamProxyManager(Switcher switcher) {
         this.switcher = switcher;
         proxies = new ConcurrentHashMap<>();
+        snapshot = new UpstreamProxyPair[0];
+        selectable = snapshot;
+        partition = new GroupSwitchTactics.Partition(selectable);
+        groups = new ConcurrentHashMap<>();
         add(DIRECT_CONNECTION);
     }
 
@@ -47,7 +79,25 @@ public class UpstreamProxyManager {
      * @param port 端口
      */
     public void add(String host, int port) {
-        add(new InetSocketAddress(host, port));
+        add(host, port, null);
+    }
+
+    /**
+     * 添加属于某个组的上游代理
+     *
+     * @param host      主机
+     * @param port      端口
+     * @param groupName 组名，为null表示不属于任何组
+     */
+    public void add(String host, int port, String groupName) {
+        InetSocketAddress proxySocket;
+        try {
+            proxySocket = switcher.resolver.resolve(host, port);
+        } catch (UnknownHostException e) {
+            logger.warn("无法解析上游代理 {}:{}", host, port);
+            return;
+        }
+        add(proxySocket, groupName);
     }
 
     /**
@@ -56,18 +106,87 @@ public class UpstreamProxyManager {
      * @param proxySocket 上游代理socket
      */
     public UpstreamProxyDetail add(InetSocketAddress proxySocket) {
+        return add(proxySocket, null);
+    }
+
+    /**
+     * 添加属于某个组的上游代理，组必须已经通过 {@link #addGroup(String, int)} 添加；
+     * 上游代理的组在添加时确定，需要换组时先移除再添加
+     *
+     * @param proxySocket 上游代理socket
+     * @param groupName   组名，为null表示不属于任何组
+     * @return 上游代理的详细信息，组不存在时为null
+     */
+    public UpstreamProxyDetail add(InetSocketAddress proxySocket, String groupName) {
+        UpstreamProxyDetail upstreamProxyDetail;
+        // 和removeGroup互斥，否则组可能在检查之后、加入之前被移除
+        synchronized (this) {
+            UpstreamProxyGroup group = null;
+            if (groupName != null) {
+                group = groups.get(groupName);
+                if (group == null) {
+                    logger.warn("上游代理组 {} 不存在，无法添加上游代理 {}", groupName, proxySocket);
+                    return null;
+                }
+            }
+            upstreamProxyDetail = put(proxySocket, group);
+        }
+        if (upstreamProxyDetail == null) {
+            logger.warn("上游代理 {} 已存在", proxySocket);
+            return getDetail(proxySocket);
+        }
+        rebuildSnapshot();
+        switcher.metricsExporter.upstreamProxyAdded(upstreamProxyDetail);
+        return upstreamProxyDetail;
+    }
+
+    /**
+     * 批量添加上游代理，所有代理加入后只重建一次快照，已存在的代理会被跳过
+     *
+     * @param groupNames 上游代理socket到组名的映射，组名为null表示不属于任何组
+     * @return 新添加的上游代理
+     */
+    List<UpstreamProxyDetail> addAll(Map<InetSocketAddress, String> groupNames) {
+        List<UpstreamProxyDetail> added = new ArrayList<>(groupNames.size());
+        // 和removeGroup互斥，见 add(InetSocketAddress, String)
+        synchronized (this) {
+            groupNames.forEach((proxySocket, groupName) -> {
+                UpstreamProxyGroup group = null;
+                if (groupName != null) {
+                    group = groups.get(groupName);
+                    if (group == null) {
+                        logger.warn("上游代理组 {} 不存在，无法添加上游代理 {}", groupName, proxySocket);
+                        return;
+                    }
+                }
+                UpstreamProxyDetail upstreamProxyDetail = put(proxySocket, group);
+                if (upstreamProxyDetail != null) {
+                    added.add(upstreamProxyDetail);
+                }
+            });
+        }
+        if (!added.isEmpty()) {
+            rebuildSnapshot();
+            added.forEach(switcher.metricsExporter::upstreamProxyAdded);
+        }
+        return added;
+    }
+
+    /**
+     * 加入proxies，不重建快照
+     *
+     * @return 新的上游代理的详细信息，已存在时为null
+     */
+    private UpstreamProxyDetail put(InetSocketAddress proxySocket, UpstreamProxyGroup group) {
         AtomicBoolean contains = new AtomicBoolean(true);
 
         // 需要原子性操作，不能换为containsKey+put
         UpstreamProxyDetail upstreamProxyDetail = proxies.computeIfAbsent(proxySocket, __ -> {
             contains.set(false);
-            return new UpstreamProxyDetail(switcher.speedRecorder);
+            return new UpstreamProxyDetail(proxySocket, switcher.makeChainedProxy(proxySocket),
+                    group, switcher.speedRecorder, switcher.uploadSpeedRecorder);
         });
-
-        if (contains.get()) {
-            logger.warn("上游代理 {} 已存在", proxySocket);
-        }
-        return upstreamProxyDetail;
+        return contains.get() ? null : upstreamProxyDetail;
     }
 
     void sureAdd(InetSocketAddress proxySocket) {
@@ -82,15 +201,176 @@ public class UpstreamProxyManager {
     }
 
     /**
-     * 获取所有上游代理
+     * 添加上游代理组，已经存在时只修改权重
+     *
+     * @param name   组名
+     * @param weight 权重
+     * @return 上游代理组
+     */
+    public UpstreamProxyGroup addGroup(String name, int weight) {
+        UpstreamProxyGroup group = groups.computeIfAbsent(name, __ ->
+                new UpstreamProxyGroup(name, weight, switcher.speedRecorder, switcher.uploadSpeedRecorder));
+        group.setWeight(weight);
+        return group;
+    }
+
+    /**
+     * 移除上游代理组，组内还有上游代理时不能移除
+     *
+     * @param name 组名
+     * @return 是否移除成功
+     */
+    public synchronized boolean removeGroup(String name) {
+        UpstreamProxyGroup group = groups.get(name);
+        if (group == null) {
+            return false;
+        }
+        if (hasMembers(group)) {
+            logger.warn("上游代理组 {} 中还有上游代理，不能移除", name);
+            return false;
+        }
+        groups.remove(name);
+        group.markRemoved();
+        return true;
+    }
+
+    public UpstreamProxyGroup getGroup(String name) {
+        return groups.get(name);
+    }
+
+    public List<UpstreamProxyGroup> getGroups() {
+        return new ArrayList<>(groups.values());
+    }
+
+    /**
+     * @param group 上游代理组
+     * @return 组内是否还有上游代理，包括正在被排空的
+     */
+    boolean hasMembers(UpstreamProxyGroup group) {
+        for (UpstreamProxyDetail upstreamProxyDetail : proxies.values()) {
+            if (upstreamProxyDetail.group == group) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 设置不属于任何组的上游代理在组之间选择时的权重，见 {@link GroupSwitchTactics}
+     *
+     * @param proxySocket 上游代理socket
+     * @param weight      权重
+     * @return 上游代理是否存在
+     */
+    public boolean setWeight(InetSocketAddress proxySocket, int weight) {
+        UpstreamProxyDetail upstreamProxyDetail = getDetail(proxySocket);
+        if (upstreamProxyDetail == null) {
+            logger.warn("上游代理 {} 不存在，无法设置权重", proxySocket);
+            return false;
+        }
+        if (weight <= 0) {
+            logger.warn("非法参数weight={}(<=0)，将修改为默认值{}", weight, UpstreamProxyGroup.DEFAULT_WEIGHT);
+            weight = UpstreamProxyGroup.DEFAULT_WEIGHT;
+        }
+        upstreamProxyDetail.setWeight(weight);
+        rebuildSnapshot();
+        return true;
+    }
+
+    /**
+     * @return 是否有上游代理组或设置过权重的上游代理，没有时选择代理不需要分组
+     */
+    boolean isWeighted() {
+        return weighted || !groups.isEmpty();
+    }
+
+    /**
+     * 开始或取消排空上游代理，排空的上游代理不在 {@link #selectable()} 中，所以不会分配新的连接，
+     * 见 {@link UpstreamProxyRegistry}
+     *
+     * @param proxySocket 上游代理socket
+     * @param draining    是否排空
+     * @return 上游代理是否存在
+     */
+    boolean setDraining(InetSocketAddress proxySocket, boolean draining) {
+        UpstreamProxyDetail upstreamProxyDetail = getDetail(proxySocket);
+        if (upstreamProxyDetail == null) {
+            return false;
+        }
+        upstreamProxyDetail.draining = draining;
+        rebuildSnapshot();
+        return true;
+    }
+
+    /**
+     * 获取所有上游代理，包括正在被排空的，见 {@link UpstreamProxyDetail#isDraining()}
      *
      * @return 所有上游代理
      */
     public List<UpstreamProxyPair> getAll() {
-        List<UpstreamProxyPair> proxyPairs = new ArrayList<>();
-        proxies.forEach((proxySocket, upstreamProxyDetail) ->
-                proxyPairs.add(new UpstreamProxyPair(proxySocket, upstreamProxyDetail)));
-        return proxyPairs;
+        return new ArrayList<>(Arrays.asList(snapshot));
+    }
+
+    /**
+     * 获取所有上游代理的快照，包括正在被排空的，不能修改
+     *
+     * @return 所有上游代理
+     */
+    UpstreamProxyPair[] snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * 获取可以分配新连接的上游代理的快照，不包括正在被排空、被探测为不可用或被降级的，不能修改
+     *
+     * @return 可以分配新连接的上游代理
+     */
+    UpstreamProxyPair[] selectable() {
+        return selectable;
+    }
+
+    /**
+     * 获取 {@link #selectable()} 按组的划分，和selectable分别读取，所以可能属于不同的快照，使用前需要比较
+     *
+     * @return 划分
+     */
+    GroupSwitchTactics.Partition partition() {
+        return partition;
+    }
+
+    /**
+     * 重建快照，加锁是为了保证最后一次重建一定能看到最新的proxies以及上游代理的状态
+     * <p>
+     * 被探测为不可用或被降级的上游代理不放入selectable，选择代理时不需要逐个检查；
+     * 如果没有被排空的上游代理都不可用，则不排除它们，和之前逐个过滤时的做法一致
+     */
+    synchronized void rebuildSnapshot() {
+        List<UpstreamProxyPair> proxyPairs = new ArrayList<>(proxies.size());
+        List<UpstreamProxyPair> undrainedPairs = new ArrayList<>(proxies.size());
+        List<UpstreamProxyPair> availablePairs = new ArrayList<>(proxies.size());
+        for (Map.Entry<InetSocketAddress, UpstreamProxyDetail> entry : proxies.entrySet()) {
+            UpstreamProxyDetail upstreamProxyDetail = entry.getValue();
+            UpstreamProxyPair upstreamProxyPair = new UpstreamProxyPair(entry.getKey(), upstreamProxyDetail);
+            proxyPairs.add(upstreamProxyPair);
+            if (!upstreamProxyDetail.draining) {
+                undrainedPairs.add(upstreamProxyPair);
+                if (!upstreamProxyDetail.health.isDown() && !upstreamProxyDetail.isDegraded()) {
+                    availablePairs.add(upstreamProxyPair);
+                }
+            }
+        }
+        List<UpstreamProxyPair> selectablePairs = availablePairs.isEmpty() ? undrainedPairs : availablePairs;
+        boolean weighted = false;
+        for (UpstreamProxyPair upstreamProxyPair : selectablePairs) {
+            weighted |= upstreamProxyPair.upstreamProxyDetail.getWeight() != UpstreamProxyGroup.DEFAULT_WEIGHT;
+        }
+        snapshot = proxyPairs.toArray(new UpstreamProxyPair[0]);
+        UpstreamProxyPair[] selectable = selectablePairs.size() == proxyPairs.size() ?
+                snapshot : selectablePairs.toArray(new UpstreamProxyPair[0]);
+        // 先写划分再写selectable，读到新的selectable之后一定能读到对应的划分
+        partition = new GroupSwitchTactics.Partition(selectable);
+        this.selectable = selectable;
+        this.weighted = weighted;
     }
 
     public void forEach(BiConsumer<InetSocketAddress, UpstreamProxyDetail> action) {
@@ -116,19 +396,30 @@ public class UpstreamProxyManager {
     }
 
     /**
-     * 移除上游代理
+     * 移除上游代理，立即中止所有相关的连接，需要等已有的连接结束时使用 {@link UpstreamProxyRegistry#drain}
      *
      * @param proxySocket 上游代理socket
      */
     public UpstreamProxyDetail remove(InetSocketAddress proxySocket) {
         UpstreamProxyDetail upstreamProxyDetail = proxies.remove(proxySocket);
         if (upstreamProxyDetail != null) {
+            rebuildSnapshot();
+            if (upstreamProxyDetail.health.isDown()) {
+                // 否则在下一次状态变化之前，选择代理时一直不能跳过过滤
+                switcher.prober.updateAnyDown();
+            }
+            switcher.metricsExporter.upstreamProxyRemoved(upstreamProxyDetail);
             // 修改状态，防止产生野连接
-            upstreamProxyDetail.stateLock.writeLock().lock();
-            upstreamProxyDetail.removed = true;
-            upstreamProxyDetail.stateLock.writeLock().unlock();
+            Set<InetSocketAddress> relevantConnections = upstreamProxyDetail.markRemoved();
+            // 不再计入全局速度
+            upstreamProxyDetail.speedRecorder.tearDown();
+            upstreamProxyDetail.uploadSpeedRecorder.tearDown();
+            RangeDownloader rangeDownloader = switcher.rangeDownloader;
+            if (rangeDownloader != null) {
+                rangeDownloader.fetcher.remove(proxySocket);
+            }
             // 中止和该代理相关的所有连接
-            upstreamProxyDetail.relevantConnections.forEach(switcher.connectionManager::sureAbort);
+            relevantConnections.forEach(switcher.connectionManager::sureAbort);
         }
         return upstreamProxyDetail;
     }
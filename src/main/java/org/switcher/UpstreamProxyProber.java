@@ -0,0 +1,211 @@
+package org.switcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * 主动探测上游代理是否可用
+ * <p>
+ * 定期通过每个上游代理向目标发送CONNECT请求（直连则直接连接目标），
+ * 把往返时间和成功与否记录到 {@link UpstreamProxyDetail#health} 中，使不可用的代理不必等真实的连接失败才被发现
+ */
+public class UpstreamProxyProber {
+    private final static Logger logger = LoggerFactory.getLogger(UpstreamProxyProber.class);
+
+    public final static int DEFAULT_THREADS = 4;
+
+    public final static InetSocketAddress DEFAULT_TARGET = InetSocketAddress.createUnresolved("www.baidu.com", 443);
+    public final static long DEFAULT_INTERVAL = 10 * 1000;
+    public final static int DEFAULT_TIMEOUT = 5000;
+
+    private final Switcher switcher;
+
+    /**
+     * 正在探测的上游代理，避免同一个代理的探测堆积
+     */
+    private final Set<InetSocketAddress> probing;
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService executor;
+
+    private volatile InetSocketAddress target;
+
+    private volatile int timeoutMillis;
+
+    /**
+     * 是否有上游代理被探测为不可用，选择代理时据此决定是否需要过滤
+     */
+    private volatile boolean anyDown;
+
+    UpstreamProxyProber(Switcher switcher) {
+        this.switcher = switcher;
+        probing = ConcurrentHashMap.newKeySet();
+    }
+
+    private static ThreadFactory daemonThreadFactory(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * 开始定期探测
+     *
+     * @param target         探测的目标，通过上游代理CONNECT到此地址，不需要解析
+     * @param intervalMillis 探测间隔（毫秒）
+     * @param timeoutMillis  每次探测的超时时间（毫秒），为0表示不超时
+     */
+    public synchronized void start(InetSocketAddress target, long intervalMillis, int timeoutMillis) {
+        stop();
+        if (target == null) {
+            logger.warn("非法参数target=null，将修改为默认值{}", DEFAULT_TARGET);
+            target = DEFAULT_TARGET;
+        }
+        if (intervalMillis <= 0) {
+            logger.warn("非法参数intervalMillis={}(<=0)，将修改为默认值{}", intervalMillis, DEFAULT_INTERVAL);
+            intervalMillis = DEFAULT_INTERVAL;
+        }
+        if (timeoutMillis < 0) {
+            logger.warn("非法参数timeoutMillis={}(<0)，将修改为默认值{}", timeoutMillis, DEFAULT_TIMEOUT);
+            timeoutMillis = DEFAULT_TIMEOUT;
+        }
+        this.target = target;
+        this.timeoutMillis = timeoutMillis;
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("switcher-prober-scheduler"));
+        executor = Executors.newFixedThreadPool(DEFAULT_THREADS, daemonThreadFactory("switcher-prober"));
+        scheduler.scheduleWithFixedDelay(this::probeAll, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("开始探测上游代理，目标 {}，间隔{}ms", target, intervalMillis);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            executor.shutdownNow();
+            scheduler = null;
+            executor = null;
+            probing.clear();
+        }
+    }
+
+    private void probeAll() {
+        ExecutorService executor = this.executor;
+        for (UpstreamProxyPair upstreamProxyPair : switcher.upstreamProxyManager.snapshot()) {
+            if (probing.add(upstreamProxyPair.proxySocket)) {
+                try {
+                    executor.execute(() -> {
+                        try {
+                            probe(upstreamProxyPair);
+                        } finally {
+                            probing.remove(upstreamProxyPair.proxySocket);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // 已经停止
+                    probing.remove(upstreamProxyPair.proxySocket);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void probe(UpstreamProxyPair upstreamProxyPair) {
+        UpstreamProxyHealth health = upstreamProxyPair.upstreamProxyDetail.health;
+        boolean wasDown = health.isDown();
+        long start = System.nanoTime();
+        try {
+            probe(upstreamProxyPair.proxySocket);
+            health.success(System.nanoTime() - start);
+            if (wasDown) {
+                logger.info("上游代理 {} 恢复可用", upstreamProxyPair.proxySocket);
+            }
+        } catch (IOException e) {
+            health.failure();
+            if (!wasDown && health.isDown()) {
+                logger.warn("上游代理 {} 连续{}次探测失败，标记为不可用", upstreamProxyPair.proxySocket,
+                        UpstreamProxyHealth.DOWN_THRESHOLD, e);
+            } else {
+                logger.debug("探测上游代理 {} 失败", upstreamProxyPair.proxySocket, e);
+            }
+        }
+        if (wasDown != health.isDown()) {
+            updateAnyDown();
+            // 不可用的上游代理不在可选择的快照中
+            switcher.upstreamProxyManager.rebuildSnapshot();
+        }
+    }
+
+    /**
+     * 状态变化或不可用的上游代理被移除时重新统计，选择代理时只需要读取一个volatile变量
+     */
+    void updateAnyDown() {
+        boolean anyDown = false;
+        for (UpstreamProxyPair upstreamProxyPair : switcher.upstreamProxyManager.snapshot()) {
+            if (upstreamProxyPair.upstreamProxyDetail.health.isDown()) {
+                anyDown = true;
+                break;
+            }
+        }
+        this.anyDown = anyDown;
+    }
+
+    /**
+     * @return 是否有上游代理被探测为不可用
+     */
+    public boolean isAnyDown() {
+        return anyDown;
+    }
+
+    /**
+     * 探测一次，直连时只建立到目标的连接，否则通过上游代理CONNECT到目标，并等待其响应200
+     *
+     * @param proxySocket 上游代理的socket
+     * @throws IOException 探测失败
+     */
+    private void probe(InetSocketAddress proxySocket) throws IOException {
+        InetSocketAddress target = this.target;
+        int timeoutMillis = this.timeoutMillis;
+        try (Socket socket = new Socket()) {
+            socket.setSoTimeout(timeoutMillis);
+            if (proxySocket == UpstreamProxyManager.DIRECT_CONNECTION) {
+                socket.connect(target.isUnresolved() ?
+                        new InetSocketAddress(target.getHostString(), target.getPort()) : target, timeoutMillis);
+                return;
+            }
+            socket.connect(proxySocket, timeoutMillis);
+            String authority = target.getHostString() + ":" + target.getPort();
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            outputStream.flush();
+            String statusLine = readLine(socket.getInputStream());
+            // 如HTTP/1.1 200 Connection established
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[1].equals("200")) {
+                throw new IOException("上游代理响应 " + statusLine);
+            }
+        }
+    }
+
+    private static String readLine(InputStream inputStream) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = inputStream.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+}
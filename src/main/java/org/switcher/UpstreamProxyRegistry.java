@@ -0,0 +1,601 @@
+package org.switcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从文件中批量加载上游代理，文件变化时按差异更新
+ * <p>
+ * 文件每行是一个组或一个上游代理，#开始的行是注释，例如：
+ * <pre>
+ * group name=campus-a weight=2 read=10485760 write=1048576
+ * upstream host=10.0.0.1 port=1080 group=campus-a
+ * upstream host=proxy.example.com port=8080 weight=3 read=0 write=0
+ * </pre>
+ * group的weight、read和write见 {@link UpstreamProxyGroup}；upstream的group可选，但必须在文件中声明，
+ * weight是不属于任何组时的权重（见 {@link GroupSwitchTactics}），read和write是上游代理自身的限速。
+ * <p>
+ * 重新加载时只处理变化的部分：所有主机名先并行解析，新的上游代理批量加入、只重建一次快照；
+ * 不再出现的上游代理不会被立即移除，而是先被排空，即不再分配新的连接，等已有的连接结束或超时后再移除；
+ * 换了组的上游代理需要重新创建，同样先排空原来的，移除后再按新的组添加。文件格式错误时保留当前的上游代理。
+ * 注册表只管理由它添加的上游代理，通过 {@link UpstreamProxyManager#add} 添加的即使出现在文件中也不受影响
+ */
+public class UpstreamProxyRegistry {
+    private final static Logger logger = LoggerFactory.getLogger(UpstreamProxyRegistry.class);
+
+    /**
+     * 排空的上游代理在这么久（毫秒）之后，中止剩余的连接并移除
+     */
+    public final static long DEFAULT_DRAIN_TIMEOUT = 5 * 60 * 1000;
+
+    private final static long DRAIN_CHECK_INTERVAL = 1000;
+
+    /**
+     * 文件变化后等待这么久（毫秒）再重新加载，编辑器保存时可能分多次写入
+     */
+    private final static long RELOAD_DELAY = 200;
+
+    private final Switcher switcher;
+
+    /**
+     * 由注册表添加的上游代理，键为文件中的 主机:端口，以下字段都只在持有this的锁时访问
+     */
+    private final Map<String, InetSocketAddress> managed;
+
+    /**
+     * 由注册表添加的组，以及已经从文件中删除、等待组内的上游代理排空后移除的组
+     */
+    private final Set<String> managedGroups;
+    private final Set<String> retiredGroups;
+
+    /**
+     * 正在被排空的上游代理及其截止时间，值为 {@link SpeedClock#millis()}
+     */
+    private final Map<InetSocketAddress, Long> draining;
+
+    /**
+     * 正在换组的上游代理，原来的排空并移除后按新的条目添加
+     */
+    private final Map<InetSocketAddress, UpstreamEntry> moving;
+
+    private ScheduledExecutorService scheduler;
+
+    private ScheduledFuture<?> pendingReload;
+
+    private WatchService watchService;
+
+    /**
+     * 上一次成功应用的文件内容，内容没有变化时不重新加载
+     */
+    private String content;
+
+    private volatile long drainTimeout;
+
+    static class GroupEntry {
+        String name;
+        int weight = UpstreamProxyGroup.DEFAULT_WEIGHT;
+        long readQuota;
+        long writeQuota;
+    }
+
+    static class UpstreamEntry {
+        String host;
+        int port;
+        String groupName;
+        int weight = UpstreamProxyGroup.DEFAULT_WEIGHT;
+        long readThrottle;
+        long writeThrottle;
+
+        String key() {
+            return host + ":" + port;
+        }
+    }
+
+    UpstreamProxyRegistry(Switcher switcher) {
+        this.switcher = switcher;
+        managed = new HashMap<>();
+        managedGroups = new HashSet<>();
+        retiredGroups = new HashSet<>();
+        draining = new HashMap<>();
+        moving = new HashMap<>();
+        drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+    }
+
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public void setDrainTimeout(long drainTimeout) {
+        if (drainTimeout < 0) {
+            logger.warn("非法参数drainTimeout={}(<0)，将修改为默认值{}", drainTimeout, DEFAULT_DRAIN_TIMEOUT);
+            drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+        }
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * 加载文件并应用与当前上游代理的差异
+     *
+     * @param path 文件路径
+     * @return 是否成功，读取失败或格式错误时保留当前的上游代理
+     */
+    public synchronized boolean load(Path path) {
+        String content;
+        try {
+            content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.warn("无法读取上游代理注册表 {}", path, e);
+            return false;
+        }
+        if (content.equals(this.content)) {
+            return true;
+        }
+        List<GroupEntry> groupEntries = new ArrayList<>();
+        List<UpstreamEntry> upstreamEntries = new ArrayList<>();
+        try {
+            parse(content, groupEntries, upstreamEntries);
+        } catch (IllegalArgumentException e) {
+            logger.warn("上游代理注册表 {} 格式错误，保留当前的上游代理：{}", path, e.getMessage());
+            return false;
+        }
+        ensureScheduler();
+        // 有主机解析失败时不记住内容，文件不变也会在下次变化时重试
+        this.content = apply(groupEntries, upstreamEntries) ? content : null;
+        return true;
+    }
+
+    /**
+     * 加载文件，并在文件变化时重新加载
+     *
+     * @param path 文件路径
+     * @return 第一次加载是否成功，失败时仍会继续监视
+     */
+    public synchronized boolean watch(Path path) {
+        stopWatching();
+        Path absolutePath = path.toAbsolutePath();
+        WatchService watchService;
+        try {
+            watchService = absolutePath.getFileSystem().newWatchService();
+            absolutePath.getParent().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            logger.warn("无法监视上游代理注册表 {}", absolutePath, e);
+            return load(absolutePath);
+        }
+        this.watchService = watchService;
+        // 第一次加载失败时也要能在文件修改后重新加载
+        ensureScheduler();
+        Thread thread = new Thread(() -> watchLoop(watchService, absolutePath), "switcher-registry-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("开始监视上游代理注册表 {}", absolutePath);
+        return load(absolutePath);
+    }
+
+    /**
+     * 停止监视，正在被排空的上游代理被立即移除
+     */
+    public synchronized void stop() {
+        stopWatching();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            pendingReload = null;
+        }
+        draining.keySet().forEach(proxySocket -> {
+            switcher.upstreamProxyManager.remove(proxySocket);
+            finishMove(proxySocket);
+        });
+        draining.clear();
+    }
+
+    /**
+     * 排空上游代理：不再分配新的连接，已有的连接结束或经过 {@link #getDrainTimeout()} 后移除
+     *
+     * @param proxySocket 上游代理socket
+     * @return 上游代理是否存在
+     */
+    public synchronized boolean drain(InetSocketAddress proxySocket) {
+        if (!switcher.upstreamProxyManager.setDraining(proxySocket, true)) {
+            logger.warn("上游代理 {} 不存在，无法排空", proxySocket);
+            return false;
+        }
+        ensureScheduler();
+        draining.put(proxySocket, SpeedClock.millis() + drainTimeout);
+        // 明确要求排空的不再按新的组添加
+        moving.remove(proxySocket);
+        logger.info("开始排空上游代理 {}", proxySocket);
+        return true;
+    }
+
+    private void stopWatching() {
+        if (watchService != null) {
+            try {
+                // 监视线程会因ClosedWatchServiceException退出
+                watchService.close();
+            } catch (IOException e) {
+                logger.warn("无法关闭上游代理注册表的监视", e);
+            }
+            watchService = null;
+        }
+    }
+
+    private void ensureScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "switcher-registry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::checkDraining,
+                    DRAIN_CHECK_INTERVAL, DRAIN_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void watchLoop(WatchService watchService, Path path) {
+        Path fileName = path.getFileName();
+        try {
+            while (true) {
+                WatchKey watchKey = watchService.take();
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (fileName.equals(event.context())) {
+                        scheduleReload(path);
+                    }
+                }
+                watchKey.reset();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            logger.debug("停止监视上游代理注册表 {}", path);
+        }
+    }
+
+    /**
+     * 合并短时间内的多次变化，只在最后一次变化之后加载一次
+     */
+    private synchronized void scheduleReload(Path path) {
+        if (scheduler == null) {
+            return;
+        }
+        if (pendingReload != null) {
+            pendingReload.cancel(false);
+        }
+        pendingReload = scheduler.schedule(() -> {
+            try {
+                load(path);
+            } catch (RuntimeException e) {
+                logger.warn("重新加载上游代理注册表 {} 失败", path, e);
+            }
+        }, RELOAD_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return 所有主机是否都解析成功
+     */
+    private boolean apply(List<GroupEntry> groupEntries, List<UpstreamEntry> upstreamEntries) {
+        long startedAt = System.nanoTime();
+        UpstreamProxyManager upstreamProxyManager = switcher.upstreamProxyManager;
+
+        Set<String> groupNames = new HashSet<>();
+        for (GroupEntry groupEntry : groupEntries) {
+            upstreamProxyManager.addGroup(groupEntry.name, groupEntry.weight)
+                    .setQuota(groupEntry.readQuota, groupEntry.writeQuota);
+            groupNames.add(groupEntry.name);
+        }
+        retiredGroups.removeAll(groupNames);
+        for (String groupName : managedGroups) {
+            if (!groupNames.contains(groupName)) {
+                retiredGroups.add(groupName);
+            }
+        }
+        managedGroups.clear();
+        managedGroups.addAll(groupNames);
+
+        // 先在后台并行解析所有主机，下面逐个解析时直接使用缓存
+        Set<String> hosts = new HashSet<>();
+        upstreamEntries.forEach(upstreamEntry -> hosts.add(upstreamEntry.host));
+        switcher.resolver.prefetch(hosts);
+
+        boolean resolved = true;
+        int moved = 0;
+        long deadline = SpeedClock.millis() + drainTimeout;
+        Set<InetSocketAddress> owned = new HashSet<>(managed.values());
+        Map<String, InetSocketAddress> desired = new LinkedHashMap<>();
+        Map<InetSocketAddress, String> toAdd = new LinkedHashMap<>();
+        for (UpstreamEntry upstreamEntry : upstreamEntries) {
+            InetSocketAddress proxySocket;
+            try {
+                proxySocket = switcher.resolver.resolve(upstreamEntry.host, upstreamEntry.port);
+            } catch (UnknownHostException e) {
+                resolved = false;
+                // 已经添加过的上游代理继续使用原来的地址，不因为一次解析失败而被排空
+                proxySocket = managed.get(upstreamEntry.key());
+                if (proxySocket == null) {
+                    logger.warn("无法解析上游代理 {}，跳过", upstreamEntry.key());
+                    continue;
+                }
+                logger.warn("无法解析上游代理 {}，继续使用 {}", upstreamEntry.key(), proxySocket);
+            }
+            UpstreamProxyDetail upstreamProxyDetail = upstreamProxyManager.getDetail(proxySocket);
+            if (upstreamProxyDetail != null && !owned.contains(proxySocket)) {
+                logger.debug("上游代理 {} 不是由注册表添加的，跳过", proxySocket);
+                continue;
+            }
+            desired.put(upstreamEntry.key(), proxySocket);
+            if (upstreamProxyDetail == null) {
+                moving.remove(proxySocket);
+                toAdd.put(proxySocket, upstreamEntry.groupName);
+            } else if (!Objects.equals(upstreamEntry.groupName,
+                    upstreamProxyDetail.group == null ? null : upstreamProxyDetail.group.name)) {
+                // 速度的父节点和令牌桶在创建时确定，换组需要重新创建，原来的连接不能因此中止
+                if (moving.put(proxySocket, upstreamEntry) == null) {
+                    logger.info("上游代理 {} 换到组 {}，排空后重新添加", proxySocket, upstreamEntry.groupName);
+                    ++moved;
+                }
+                if (draining.putIfAbsent(proxySocket, deadline) == null) {
+                    upstreamProxyDetail.draining = true;
+                }
+            } else {
+                moving.remove(proxySocket);
+                if (draining.remove(proxySocket) != null) {
+                    // 重新出现在文件中，取消排空
+                    upstreamProxyDetail.draining = false;
+                }
+            }
+        }
+        List<UpstreamProxyDetail> added = upstreamProxyManager.addAll(toAdd);
+        added.forEach(upstreamProxyDetail -> owned.add(upstreamProxyDetail.proxySocket));
+
+        for (UpstreamEntry upstreamEntry : upstreamEntries) {
+            InetSocketAddress proxySocket = desired.get(upstreamEntry.key());
+            UpstreamProxyDetail upstreamProxyDetail = proxySocket == null || !owned.contains(proxySocket) ?
+                    null : upstreamProxyManager.getDetail(proxySocket);
+            if (upstreamProxyDetail != null) {
+                upstreamProxyDetail.setThrottle(upstreamEntry.readThrottle, upstreamEntry.writeThrottle);
+                upstreamProxyDetail.setWeight(upstreamEntry.weight);
+            }
+        }
+
+        Set<InetSocketAddress> desiredSockets = new HashSet<>(desired.values());
+        int drained = 0;
+        for (InetSocketAddress proxySocket : managed.values()) {
+            if (desiredSockets.contains(proxySocket)) {
+                continue;
+            }
+            // 换组途中被删除的，排空后不再添加
+            moving.remove(proxySocket);
+            UpstreamProxyDetail upstreamProxyDetail = upstreamProxyManager.getDetail(proxySocket);
+            if (upstreamProxyDetail != null && !upstreamProxyDetail.draining) {
+                upstreamProxyDetail.draining = true;
+                draining.put(proxySocket, deadline);
+                ++drained;
+            }
+        }
+        // 只记录由注册表添加的，组不存在等原因没有添加成功的不算
+        managed.clear();
+        desired.forEach((key, proxySocket) -> {
+            if (owned.contains(proxySocket)) {
+                managed.put(key, proxySocket);
+            }
+        });
+        // 排空、取消排空和权重的变化都只重建一次快照
+        upstreamProxyManager.rebuildSnapshot();
+        checkDraining();
+
+        logger.info("加载上游代理注册表，新增{}个，换组{}个，排空{}个，共{}个，耗时{}ms", added.size(),
+                moved, drained, managed.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        return resolved;
+    }
+
+    /**
+     * 移除已经没有连接或超时的排空的上游代理，以及组内已经没有上游代理的被删除的组
+     */
+    private synchronized void checkDraining() {
+        try {
+            checkDraining0();
+        } catch (RuntimeException e) {
+            // 异常会使定期任务停止
+            logger.warn("检查排空的上游代理失败", e);
+        }
+    }
+
+    private void checkDraining0() {
+        UpstreamProxyManager upstreamProxyManager = switcher.upstreamProxyManager;
+        long millis = SpeedClock.millis();
+        Iterator<Map.Entry<InetSocketAddress, Long>> iterator = draining.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<InetSocketAddress, Long> entry = iterator.next();
+            InetSocketAddress proxySocket = entry.getKey();
+            UpstreamProxyDetail upstreamProxyDetail = upstreamProxyManager.getDetail(proxySocket);
+            if (upstreamProxyDetail == null || !upstreamProxyDetail.draining) {
+                // 已经在别处被移除或取消排空
+                iterator.remove();
+                if (upstreamProxyDetail == null) {
+                    finishMove(proxySocket);
+                } else {
+                    moving.remove(proxySocket);
+                }
+                continue;
+            }
+            int connections = upstreamProxyDetail.getRelevantConnectionSize();
+            if (connections == 0) {
+                logger.info("上游代理 {} 已排空，移除", proxySocket);
+            } else if (millis >= entry.getValue()) {
+                logger.warn("上游代理 {} 排空超时，中止剩余的{}个连接", proxySocket, connections);
+            } else {
+                continue;
+            }
+            iterator.remove();
+            upstreamProxyManager.remove(proxySocket);
+            finishMove(proxySocket);
+        }
+
+        retiredGroups.removeIf(groupName -> {
+            UpstreamProxyGroup group = upstreamProxyManager.getGroup(groupName);
+            if (group == null) {
+                return true;
+            }
+            if (upstreamProxyManager.hasMembers(group)) {
+                return false;
+            }
+            upstreamProxyManager.removeGroup(groupName);
+            logger.info("移除上游代理组 {}", groupName);
+            return true;
+        });
+    }
+
+    /**
+     * 换组的上游代理原来的已经移除，按新的组重新添加
+     */
+    private void finishMove(InetSocketAddress proxySocket) {
+        UpstreamEntry upstreamEntry = moving.remove(proxySocket);
+        if (upstreamEntry == null) {
+            return;
+        }
+        UpstreamProxyManager upstreamProxyManager = switcher.upstreamProxyManager;
+        List<UpstreamProxyDetail> added =
+                upstreamProxyManager.addAll(Collections.singletonMap(proxySocket, upstreamEntry.groupName));
+        if (added.isEmpty()) {
+            // 组已不存在，或者已经通过其它方式添加
+            managed.values().remove(proxySocket);
+            return;
+        }
+        added.get(0).setThrottle(upstreamEntry.readThrottle, upstreamEntry.writeThrottle);
+        upstreamProxyManager.setWeight(proxySocket, upstreamEntry.weight);
+        logger.info("上游代理 {} 已换到组 {}", proxySocket, upstreamEntry.groupName);
+    }
+
+    /**
+     * 解析文件内容
+     *
+     * @throws IllegalArgumentException 格式错误，信息中包含行号
+     */
+    static void parse(String content, List<GroupEntry> groupEntries, List<UpstreamEntry> upstreamEntries) {
+        Set<String> groupNames = new HashSet<>();
+        Set<String> upstreamKeys = new HashSet<>();
+        String[] lines = content.split("\r?\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                String[] tokens = line.split("\\s+");
+                Map<String, String> values = new HashMap<>();
+                for (int j = 1; j < tokens.length; j++) {
+                    int index = tokens[j].indexOf('=');
+                    if (index <= 0) {
+                        throw new IllegalArgumentException("应为key=value：" + tokens[j]);
+                    }
+                    values.put(tokens[j].substring(0, index), tokens[j].substring(index + 1));
+                }
+                switch (tokens[0]) {
+                    case "group":
+                        GroupEntry groupEntry = parseGroup(values);
+                        if (!groupNames.add(groupEntry.name)) {
+                            throw new IllegalArgumentException("重复的组 " + groupEntry.name);
+                        }
+                        groupEntries.add(groupEntry);
+                        break;
+                    case "upstream":
+                        UpstreamEntry upstreamEntry = parseUpstream(values);
+                        if (upstreamEntry.groupName != null && !groupNames.contains(upstreamEntry.groupName)) {
+                            throw new IllegalArgumentException("组 " + upstreamEntry.groupName + " 没有在之前声明");
+                        }
+                        if (!upstreamKeys.add(upstreamEntry.key())) {
+                            throw new IllegalArgumentException("重复的上游代理 " + upstreamEntry.key());
+                        }
+                        upstreamEntries.add(upstreamEntry);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("未知的类型 " + tokens[0]);
+                }
+                if (!values.isEmpty()) {
+                    throw new IllegalArgumentException("未知的字段 " + values.keySet());
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("第" + (i + 1) + "行：" + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 解析后从values中移除用到的字段，剩下的是未知的字段
+     */
+    private static GroupEntry parseGroup(Map<String, String> values) {
+        GroupEntry groupEntry = new GroupEntry();
+        groupEntry.name = values.remove("name");
+        if (groupEntry.name == null || groupEntry.name.isEmpty()) {
+            throw new IllegalArgumentException("缺少name");
+        }
+        String weight = values.remove("weight");
+        if (weight != null) {
+            groupEntry.weight = parsePositive("weight", weight);
+        }
+        groupEntry.readQuota = parseRate("read", values.remove("read"));
+        groupEntry.writeQuota = parseRate("write", values.remove("write"));
+        return groupEntry;
+    }
+
+    private static UpstreamEntry parseUpstream(Map<String, String> values) {
+        UpstreamEntry upstreamEntry = new UpstreamEntry();
+        upstreamEntry.host = values.remove("host");
+        if (upstreamEntry.host == null || upstreamEntry.host.isEmpty()) {
+            throw new IllegalArgumentException("缺少host");
+        }
+        String port = values.remove("port");
+        if (port == null) {
+            throw new IllegalArgumentException("缺少port");
+        }
+        upstreamEntry.port = parsePositive("port", port);
+        if (upstreamEntry.port > 65535) {
+            throw new IllegalArgumentException("port超出范围：" + port);
+        }
+        upstreamEntry.groupName = values.remove("group");
+        String weight = values.remove("weight");
+        if (weight != null) {
+            upstreamEntry.weight = parsePositive("weight", weight);
+        }
+        upstreamEntry.readThrottle = parseRate("read", values.remove("read"));
+        upstreamEntry.writeThrottle = parseRate("write", values.remove("write"));
+        return upstreamEntry;
+    }
+
+    private static int parsePositive(String name, String value) {
+        int number = Integer.parseInt(value);
+        if (number <= 0) {
+            throw new IllegalArgumentException(name + "必须大于0：" + value);
+        }
+        return number;
+    }
+
+    /**
+     * @return 速度（字节/秒），没有设置时为0，表示不限速
+     */
+    private static long parseRate(String name, String value) {
+        if (value == null) {
+            return 0;
+        }
+        long rate = Long.parseLong(value);
+        if (rate < 0) {
+            throw new IllegalArgumentException(name + "不能小于0：" + value);
+        }
+        return rate;
+    }
+}
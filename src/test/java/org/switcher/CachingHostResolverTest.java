@@ -0,0 +1,130 @@
+package org.switcher;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingHostResolverTest {
+    private final static String HOST = "localhost";
+    private final static String INVALID_HOST = "invalid.invalid";
+    private final static long TTL = 1000;
+    private final static long WAIT_MILLIS = 5000;
+
+    /**
+     * 记录每个主机实际解析的次数，不访问真正的dns；可以让解析等待，以便并发的调用者同时到达
+     */
+    private static class CountingResolver extends CachingHostResolver {
+        final Map<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+        volatile CountDownLatch gate = new CountDownLatch(0);
+
+        @Override
+        InetAddress lookupAddress(String host) throws UnknownHostException {
+            lookups.computeIfAbsent(host, __ -> new AtomicInteger()).incrementAndGet();
+            try {
+                gate.await(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (host.equals(INVALID_HOST)) {
+                throw new UnknownHostException(host);
+            }
+            return InetAddress.getByAddress(host, new byte[]{127, 0, 0, 1});
+        }
+
+        int lookups(String host) {
+            AtomicInteger count = lookups.get(host);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    private static void await(CountingResolver resolver, String host, int lookups) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (resolver.lookups(host) < lookups) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("没有在后台解析" + host);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void concurrentResolvesAreCoalesced() throws Exception {
+        CountingResolver resolver = new CountingResolver();
+        resolver.gate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<InetAddress>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> resolver.resolve(HOST, 0)));
+            }
+            await(resolver, HOST, 1);
+            resolver.gate.countDown();
+            for (Future<InetAddress> future : futures) {
+                assertTrue(future.get(WAIT_MILLIS, TimeUnit.MILLISECONDS).isLoopbackAddress());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, resolver.lookups(HOST), "同一个主机的并发解析没有合并");
+    }
+
+    @Test
+    void failureIsCachedForNegativeTtl() {
+        CountingResolver resolver = new CountingResolver();
+        resolver.setNegativeTtl(TTL);
+        assertThrows(UnknownHostException.class, () -> resolver.resolve(INVALID_HOST, 0));
+        assertThrows(UnknownHostException.class, () -> resolver.resolve(INVALID_HOST, TTL - 1));
+        assertEquals(1, resolver.lookups(INVALID_HOST), "失败的缓存期内又解析了");
+        assertThrows(UnknownHostException.class, () -> resolver.resolve(INVALID_HOST, TTL));
+        assertEquals(2, resolver.lookups(INVALID_HOST), "失败的缓存过期后没有重新解析");
+    }
+
+    @Test
+    void refreshesBeforeExpiry() throws Exception {
+        CountingResolver resolver = new CountingResolver();
+        resolver.setTtl(TTL);
+        resolver.resolve(HOST, 0);
+        resolver.resolve(HOST, TTL / 2);
+        assertEquals(1, resolver.lookups(HOST));
+
+        // 快过期时仍然返回缓存的结果，同时在后台刷新
+        resolver.gate = new CountDownLatch(1);
+        long refreshAt = TTL * 4 / 5;
+        assertTrue(resolver.resolve(HOST, refreshAt).isLoopbackAddress(), "刷新时阻塞了调用者");
+        await(resolver, HOST, 2);
+        resolver.gate.countDown();
+
+        // 等待后台的解析替换原来的结果
+        Thread.sleep(200);
+
+        // 刷新后的结果从刷新时开始计算ttl，原来的结果过期后也不需要重新解析
+        assertTrue(resolver.resolve(HOST, refreshAt + TTL / 2).isLoopbackAddress());
+        assertEquals(2, resolver.lookups(HOST), "刷新后的结果没有替换原来的结果");
+    }
+
+    @Test
+    void capacityIsBounded() throws UnknownHostException {
+        CountingResolver resolver = new CountingResolver();
+        resolver.setCapacity(1);
+        resolver.resolve(HOST, 0);
+        assertThrows(UnknownHostException.class, () -> resolver.resolve(INVALID_HOST, 1));
+        assertEquals(1, resolver.size(), "超出容量后没有淘汰");
+        // 最早的结果被淘汰，需要重新解析
+        resolver.resolve(HOST, 2);
+        assertEquals(2, resolver.lookups(HOST), "最早的结果没有被淘汰");
+        assertEquals(1, resolver.size());
+    }
+}
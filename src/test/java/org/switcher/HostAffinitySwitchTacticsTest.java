@@ -0,0 +1,184 @@
+package org.switcher;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.ChainedProxy;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HostAffinitySwitchTacticsTest {
+    private final static String HOST = "example.com";
+    private final static long TTL = 1000;
+    private final static int BYTES = 5000;
+
+    /**
+     * 总是把preferred排在最前面，其余的按快照的顺序，方便控制重新选择的结果
+     */
+    private static class PreferredTactics implements SwitchTactics {
+        volatile UpstreamProxyDetail preferred;
+
+        @Override
+        public List<UpstreamProxyPair> getRank(String uri, List<UpstreamProxyPair> proxyPairs) {
+            return proxyPairs;
+        }
+
+        @Override
+        public void select(HttpRequest httpRequest, UpstreamProxyPair[] proxyPairs,
+                           Queue<ChainedProxy> chainedProxies) {
+            chainedProxies.add(preferred.chainedProxy);
+            for (UpstreamProxyPair upstreamProxyPair : proxyPairs) {
+                if (upstreamProxyPair.upstreamProxyDetail != preferred) {
+                    chainedProxies.add(upstreamProxyPair.upstreamProxyDetail.chainedProxy);
+                }
+            }
+        }
+    }
+
+    private Switcher switcher;
+
+    private UpstreamProxyDetail first;
+
+    private UpstreamProxyDetail second;
+
+    private PreferredTactics fallback;
+
+    private HostAffinitySwitchTactics tactics;
+
+    @BeforeEach
+    void setUp() {
+        switcher = new Switcher();
+        first = switcher.upstreamProxyManager.add(new InetSocketAddress("127.0.0.1", 10001));
+        second = switcher.upstreamProxyManager.add(new InetSocketAddress("127.0.0.1", 10002));
+        fallback = new PreferredTactics();
+        fallback.preferred = first;
+        tactics = new HostAffinitySwitchTactics(fallback);
+        tactics.setTtl(TTL);
+    }
+
+    private static HttpRequest request(String host) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "http://" + host + "/");
+    }
+
+    private Queue<ChainedProxy> select(HostAffinitySwitchTactics tactics, String host, long millis) {
+        Queue<ChainedProxy> chainedProxies = new ArrayDeque<>();
+        tactics.select(request(host), switcher.upstreamProxyManager.snapshot(), chainedProxies, millis);
+        return chainedProxies;
+    }
+
+    private ChainedProxy selectFirst(String host, long millis) {
+        return select(tactics, host, millis).peek();
+    }
+
+    @Test
+    void stickyHitKeepsUpstream() {
+        assertSame(first.chainedProxy, selectFirst(HOST, 0));
+        fallback.preferred = second;
+        Queue<ChainedProxy> chainedProxies = select(tactics, HOST, TTL - 1);
+        assertSame(first.chainedProxy, chainedProxies.peek(), "命中记录时没有使用上一次的代理");
+        // 备选的代理来自fallback，不重复
+        assertEquals(chainedProxies.size(), new HashSet<>(chainedProxies).size(), "备选的代理中有重复的");
+        assertTrue(chainedProxies.contains(second.chainedProxy));
+        // 其它目标服务器不受影响
+        assertSame(second.chainedProxy, selectFirst("other.com", 0));
+    }
+
+    @Test
+    void saturatedUpstreamIsRebalanced() {
+        assertSame(first.chainedProxy, selectFirst(HOST, 0));
+        fallback.preferred = second;
+        // 只有一个连接的速度，即观测到的上限，所以已经饱和
+        first.addConnection(new InetSocketAddress("127.0.0.1", 20001));
+        first.speedRecorder.record(BYTES);
+        assertSame(second.chainedProxy, selectFirst(HOST, 1), "饱和的代理没有被重新选择");
+        // 重新选择的代理被记住
+        fallback.preferred = first;
+        assertSame(second.chainedProxy, selectFirst(HOST, 2), "没有记住重新选择的代理");
+    }
+
+    @Test
+    void removedUpstreamIsRebalanced() {
+        UpstreamProxyPair[] proxyPairs = switcher.upstreamProxyManager.snapshot();
+        Queue<ChainedProxy> chainedProxies = new ArrayDeque<>();
+        tactics.select(request(HOST), proxyPairs, chainedProxies, 0);
+        assertSame(first.chainedProxy, chainedProxies.peek());
+
+        switcher.upstreamProxyManager.remove(first.proxySocket);
+        fallback.preferred = second;
+        // 即使传入的仍然是移除前的快照，也不能再选中已移除的代理
+        chainedProxies.clear();
+        tactics.select(request(HOST), proxyPairs, chainedProxies, 1);
+        assertSame(second.chainedProxy, chainedProxies.peek(), "已移除的代理仍然被选中");
+    }
+
+    @Test
+    void expiredAffinityIsReselected() {
+        assertSame(first.chainedProxy, selectFirst(HOST, 0));
+        fallback.preferred = second;
+        // 每次命中都会刷新使用的时间
+        assertSame(first.chainedProxy, selectFirst(HOST, TTL - 1));
+        assertSame(first.chainedProxy, selectFirst(HOST, 2 * TTL - 2));
+        assertSame(second.chainedProxy, selectFirst(HOST, 3 * TTL - 2), "过期的记录仍然被使用");
+    }
+
+    @Test
+    void evictsLeastRecentlyAccessed() {
+        int capacity = 8;
+        tactics.setCapacity(capacity);
+        for (int i = 0; i <= capacity; i++) {
+            selectFirst("host" + i + ".com", i);
+        }
+        assertEquals((int) (capacity * HostAffinitySwitchTactics.EVICT_RATIO), tactics.size(),
+                "超出容量后没有淘汰到容量的EVICT_RATIO");
+
+        // 最近使用的仍然命中，最早使用的两个记录被淘汰，需要重新选择
+        fallback.preferred = second;
+        long millis = capacity + 1;
+        for (int i = 2; i <= capacity; i++) {
+            assertSame(first.chainedProxy, selectFirst("host" + i + ".com", millis), "最近使用的记录被淘汰了");
+        }
+        assertSame(second.chainedProxy, selectFirst("host0.com", millis), "最早使用的记录没有被淘汰");
+    }
+
+    @Test
+    void evictsExpiredFirst() {
+        int capacity = 8;
+        tactics.setCapacity(capacity);
+        for (int i = 0; i < capacity; i++) {
+            selectFirst("host" + i + ".com", 0);
+        }
+        // 新的记录超出容量时，过期的都被淘汰，不需要再按使用的时间淘汰
+        selectFirst(HOST, TTL);
+        assertEquals(1, tactics.size(), "过期的记录没有被淘汰");
+    }
+
+    @Test
+    void newInstanceIsIsolated() {
+        tactics.setCapacity(16);
+        selectFirst(HOST, 0);
+        HostAffinitySwitchTactics instance = tactics.newInstance();
+        assertEquals(16, instance.getCapacity(), "新实例没有沿用参数");
+        assertEquals(TTL, instance.getTtl());
+        assertEquals(0, instance.size(), "新实例沿用了记录");
+
+        // 新实例的记录和原来的互不影响
+        fallback.preferred = second;
+        assertSame(second.chainedProxy, select(instance, HOST, 1).peek());
+        assertSame(first.chainedProxy, selectFirst(HOST, 1));
+
+        // 使用HOST_AFFINITY的每个Switcher都有自己的实例
+        SwitchTactics switchTactics = new Switcher(Switcher.HOST_AFFINITY).getSwitchTactics();
+        SwitchTactics otherSwitchTactics = new Switcher(Switcher.HOST_AFFINITY).getSwitchTactics();
+        assertNotSame(Switcher.HOST_AFFINITY, switchTactics, "Switcher直接使用了共享的实例");
+        assertNotSame(switchTactics, otherSwitchTactics, "两个Switcher共享了同一个实例");
+    }
+}
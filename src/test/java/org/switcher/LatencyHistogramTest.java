@@ -0,0 +1,78 @@
+package org.switcher;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    @Test
+    void smallValuesAreExact() {
+        for (int value = 0; value < 8; value++) {
+            assertEquals(value, LatencyHistogram.indexOf(value));
+            assertEquals(value + 1, LatencyHistogram.upperBoundOf(value));
+        }
+        assertEquals(0, LatencyHistogram.indexOf(-1));
+    }
+
+    @Test
+    void bucketsAreContiguous() {
+        int last = LatencyHistogram.indexOf(Long.MAX_VALUE);
+        for (int i = 0; i < last; i++) {
+            long upperBound = LatencyHistogram.upperBoundOf(i);
+            assertEquals(i, LatencyHistogram.indexOf(upperBound - 1), "桶" + i + "的上界不在桶内");
+            assertEquals(i + 1, LatencyHistogram.indexOf(upperBound), "桶" + i + "和下一个桶之间有空隙");
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBoundOf(last));
+    }
+
+    @Test
+    void relativeErrorIsBounded() {
+        for (long value = 8; value < 1L << 31; value = value * 3 / 2 + 1) {
+            long upperBound = LatencyHistogram.upperBoundOf(LatencyHistogram.indexOf(value));
+            assertTrue(upperBound > value);
+            assertTrue(upperBound - 1 - value <= value / 8, "值" + value + "的误差超过1/8");
+        }
+    }
+
+    @Test
+    void countAndSum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(1000);
+        histogram.record(-5);
+        assertEquals(3, histogram.getCount());
+        assertEquals(1010, histogram.getSum(), "负数应按0记录");
+    }
+
+    @Test
+    void quantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtQuantile(0.5), "没有记录时应为0");
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        long median = histogram.getValueAtQuantile(0.5);
+        assertTrue(median >= 500 && median <= 500 + 500 / 8, "中位数为" + median);
+        long max = histogram.getValueAtQuantile(1);
+        assertTrue(max >= 1000 && max <= 1000 + 1000 / 8, "最大值为" + max);
+    }
+
+    @Test
+    void valuesOutOfRangeAreCapped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(1L << 31, histogram.getValueAtQuantile(0.99));
+    }
+
+    @Test
+    void countAtOrBelowNeverOvercounts() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5);
+        histogram.record(100);
+        histogram.record(10000);
+        assertEquals(1, histogram.getCountAtOrBelow(7));
+        assertEquals(1, histogram.getCountAtOrBelow(99));
+        assertEquals(2, histogram.getCountAtOrBelow(9999));
+        assertEquals(3, histogram.getCountAtOrBelow(Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,56 @@
+package org.switcher;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MitmRulesTest {
+    @Test
+    void emptyMatchesNothing() {
+        MitmRules mitmRules = new MitmRules();
+        assertTrue(mitmRules.isEmpty());
+        assertFalse(mitmRules.matches("example.com"));
+    }
+
+    @Test
+    void matchesHostAndSubdomains() {
+        MitmRules mitmRules = new MitmRules();
+        mitmRules.add("example.com");
+        assertTrue(mitmRules.matches("example.com"));
+        assertTrue(mitmRules.matches("dl.example.com"));
+        assertTrue(mitmRules.matches("a.b.example.com"));
+        assertFalse(mitmRules.matches("badexample.com"), "不应按字符串后缀匹配");
+        assertFalse(mitmRules.matches("example.org"));
+        assertFalse(mitmRules.matches("com"), "不应匹配上级域名");
+    }
+
+    @Test
+    void wildcardAndLeadingDotAreNormalized() {
+        MitmRules mitmRules = new MitmRules();
+        mitmRules.add("*.Example.com");
+        mitmRules.add(" .example.org ");
+        assertEquals(2, mitmRules.getAll().size());
+        assertTrue(mitmRules.matches("DL.EXAMPLE.COM"), "应忽略大小写");
+        assertTrue(mitmRules.matches("example.org"));
+        mitmRules.remove("example.com");
+        assertFalse(mitmRules.matches("dl.example.com"));
+    }
+
+    @Test
+    void anyHost() {
+        MitmRules mitmRules = new MitmRules();
+        mitmRules.add(MitmRules.ANY_HOST);
+        assertTrue(mitmRules.matches("example.com"));
+        assertTrue(mitmRules.matches("localhost"));
+        mitmRules.clear();
+        assertFalse(mitmRules.matches("example.com"));
+    }
+
+    @Test
+    void blankHostIsIgnored() {
+        MitmRules mitmRules = new MitmRules();
+        mitmRules.add(" ");
+        mitmRules.add("*.");
+        assertTrue(mitmRules.isEmpty());
+    }
+}
@@ -0,0 +1,227 @@
+package org.switcher;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelRangeDownloadTest {
+    private final static int PIECE_SIZE = 256 * 1024;
+    private final static int BODY_SIZE = 8 * PIECE_SIZE + 12345;
+    private final static int PARALLELISM = 3;
+    private final static int TIMEOUT_MILLIS = 5000;
+
+    /**
+     * 慢的上游代理的下载速度（字节/秒），获取一块需要约2秒，其它worker有足够的时间分走它的一半
+     */
+    private final static long SLOW_LIMIT = 128 * 1024;
+
+    private final static String ETAG = "\"v1\"";
+
+    /**
+     * 支持Range的源服务器，记录每个范围请求的起始位置
+     */
+    private static class Origin {
+        final HttpServer server;
+        final ExecutorService executor;
+        final byte[] body;
+        final Queue<Long> rangeStarts = new ConcurrentLinkedQueue<>();
+
+        volatile String etag = ETAG;
+
+        /**
+         * 为true时忽略Range，总是返回完整的响应体
+         */
+        volatile boolean ignoreRange;
+
+        Origin(byte[] body) throws IOException {
+            this.body = body;
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+            server.createContext("/", exchange -> {
+                Headers headers = exchange.getResponseHeaders();
+                headers.set("Content-Type", "application/octet-stream");
+                headers.set("Accept-Ranges", "bytes");
+                headers.set("ETag", etag);
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                int from = 0;
+                int to = body.length - 1;
+                int status = 200;
+                if (range != null && !ignoreRange) {
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    from = Integer.parseInt(bounds[0]);
+                    to = Math.min(Integer.parseInt(bounds[1]), body.length - 1);
+                    status = 206;
+                    headers.set("Content-Range", "bytes " + from + "-" + to + "/" + body.length);
+                    rangeStarts.add((long) from);
+                }
+                exchange.sendResponseHeaders(status, to - from + 1);
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    outputStream.write(body, from, to - from + 1);
+                } catch (IOException ignored) {
+                    // 范围被分走或者请求被放弃时，对方提前关闭连接
+                }
+            });
+            executor = Executors.newCachedThreadPool();
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+        }
+
+        void close() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private Origin origin;
+
+    private HttpProxyServer fastUpstream;
+
+    private HttpProxyServer slowUpstream;
+
+    private SwitcherHttpProxyServer switcherHttpProxyServer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        byte[] body = new byte[BODY_SIZE];
+        new Random(0).nextBytes(body);
+        origin = new Origin(body);
+        fastUpstream = DefaultHttpProxyServer.bootstrap().withName("fast").withPort(0).start();
+        slowUpstream = DefaultHttpProxyServer.bootstrap().withName("slow").withPort(0)
+                .withThrottling(SLOW_LIMIT, 0).start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (switcherHttpProxyServer != null) {
+            switcherHttpProxyServer.abort();
+        }
+        fastUpstream.abort();
+        slowUpstream.abort();
+        origin.close();
+    }
+
+    private void startSwitcher(long maxBufferedBytes) {
+        switcherHttpProxyServer = SwitcherHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withParallelRangeDownload(PIECE_SIZE, PIECE_SIZE, PARALLELISM, RangeDownloader.DEFAULT_WINDOW,
+                        TIMEOUT_MILLIS, maxBufferedBytes)
+                .start();
+        // 加上直连一共三个，每个都有一个worker
+        Switcher switcher = switcherHttpProxyServer.switcher;
+        switcher.upstreamProxyManager.add(fastUpstream.getListenAddress());
+        switcher.upstreamProxyManager.add(slowUpstream.getListenAddress());
+    }
+
+    private Response get() throws IOException {
+        OkHttpClient client = new OkHttpClient();
+        client.setProxy(new Proxy(Proxy.Type.HTTP, switcherHttpProxyServer.getListenAddress()));
+        client.setReadTimeout(30, TimeUnit.SECONDS);
+        return client.newCall(new Request.Builder().url(origin.url()).build()).execute();
+    }
+
+    private static byte[] readAll(Response response) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16 * 1024];
+        try (InputStream inputStream = response.body().byteStream()) {
+            int n;
+            while ((n = inputStream.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, n);
+            }
+        }
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    void bodyIsByteExactAcrossPiecesAndSteals() throws IOException {
+        startSwitcher(RangeDownloader.DEFAULT_MAX_BUFFERED_BYTES);
+        Response response = get();
+        assertEquals(200, response.code());
+        byte[] received = readAll(response);
+        assertEquals(BODY_SIZE, received.length);
+        assertTrue(Arrays.equals(origin.body, received), "拼接后的响应体和原始的不同");
+
+        assertFalse(origin.rangeStarts.isEmpty(), "没有拆分下载");
+        // 块的起始位置都是pieceSize的倍数，只有被分走的一半不是
+        assertTrue(origin.rangeStarts.stream().anyMatch(from -> from % PIECE_SIZE != 0),
+                "慢的上游代理上的块没有被分走，范围的起始位置为" + origin.rangeStarts);
+    }
+
+    @Test
+    void exhaustedBudgetFallsBackToNormalDownload() throws IOException {
+        // 额度不够每个worker领一块
+        startSwitcher(PIECE_SIZE);
+        byte[] received = readAll(get());
+        assertTrue(Arrays.equals(origin.body, received), "照常转发的响应体和原始的不同");
+        assertTrue(origin.rangeStarts.isEmpty(), "额度用完时仍然拆分了下载");
+    }
+
+    @Test
+    void clientIsClosedWhenAllWorkersFail() throws IOException {
+        startSwitcher(RangeDownloader.DEFAULT_MAX_BUFFERED_BYTES);
+        // 原始请求正常返回，之后所有的范围请求都得到完整的响应体，worker连续失败后放弃
+        origin.ignoreRange = true;
+        Response response = get();
+        assertEquals(200, response.code());
+        assertThrows(IOException.class, () -> readAll(response), "所有worker都失败后客户端连接没有被关闭");
+    }
+
+    @Test
+    void fetcherRejectsMismatchedRanges() throws IOException {
+        RangeFetcher fetcher = new RangeFetcher(TIMEOUT_MILLIS);
+        InetSocketAddress direct = UpstreamProxyManager.DIRECT_CONNECTION;
+        String url = origin.url();
+        try (InputStream inputStream = fetcher.fetch(direct, url, Collections.emptyList(), 100, 199, ETAG,
+                BODY_SIZE, ETAG).body().byteStream()) {
+            byte[] range = new byte[100];
+            int n = 0;
+            int read;
+            while (n < range.length && (read = inputStream.read(range, n, range.length - n)) >= 0) {
+                n += read;
+            }
+            assertEquals(range.length, n);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(origin.body, 100, 200), range));
+        }
+
+        // 总大小和原始响应不同
+        assertThrows(IOException.class, () -> fetcher.fetch(direct, url, Collections.emptyList(), 100, 199, ETAG,
+                BODY_SIZE + 1, ETAG), "没有拒绝Content-Range中不同的总大小");
+
+        // 服务端忽略了If-Range，返回了另一个版本的范围
+        origin.etag = "\"v2\"";
+        assertThrows(IOException.class, () -> fetcher.fetch(direct, url, Collections.emptyList(), 100, 199, ETAG,
+                BODY_SIZE, ETAG), "没有拒绝不同的ETag");
+
+        // 服务端忽略了Range
+        origin.etag = ETAG;
+        origin.ignoreRange = true;
+        assertThrows(IOException.class, () -> fetcher.fetch(direct, url, Collections.emptyList(), 100, 199, ETAG,
+                BODY_SIZE, ETAG), "没有拒绝完整的响应");
+    }
+}
@@ -0,0 +1,89 @@
+package org.switcher;
+
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.ChainedProxy;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PowerOfTwoChoicesTest {
+    private final static int ROUNDS = 1000;
+
+    /**
+     * 端口越小越优
+     */
+    private final static Comparator<UpstreamProxyDetail> BY_PORT =
+            Comparator.comparingInt(upstreamProxyDetail -> upstreamProxyDetail.proxySocket.getPort());
+
+    private final Map<ChainedProxy, UpstreamProxyDetail> details = new HashMap<>();
+
+    private UpstreamProxyPair[] proxyPairs(int size) {
+        Switcher switcher = new Switcher();
+        for (int i = 0; i < size; i++) {
+            UpstreamProxyDetail upstreamProxyDetail =
+                    switcher.upstreamProxyManager.add(new InetSocketAddress("127.0.0.1", 10001 + i));
+            details.put(upstreamProxyDetail.chainedProxy, upstreamProxyDetail);
+        }
+        return switcher.upstreamProxyManager.snapshot();
+    }
+
+    private Queue<ChainedProxy> select(UpstreamProxyPair[] proxyPairs) {
+        Queue<ChainedProxy> chainedProxies = new ArrayDeque<>();
+        PowerOfTwoChoices.select(proxyPairs, BY_PORT, chainedProxies);
+        return chainedProxies;
+    }
+
+    @Test
+    void emptySelectsNothing() {
+        assertTrue(select(new UpstreamProxyPair[0]).isEmpty());
+    }
+
+    @Test
+    void singleIsSelected() {
+        UpstreamProxyPair[] proxyPairs = proxyPairs(1);
+        Queue<ChainedProxy> chainedProxies = select(proxyPairs);
+        assertEquals(1, chainedProxies.size());
+        assertSame(proxyPairs[0].upstreamProxyDetail.chainedProxy, chainedProxies.peek());
+    }
+
+    @Test
+    void betterOfTwoComesFirst() {
+        UpstreamProxyPair[] proxyPairs = proxyPairs(2);
+        for (int round = 0; round < ROUNDS; round++) {
+            Queue<ChainedProxy> chainedProxies = select(proxyPairs);
+            assertEquals(2, chainedProxies.size(), "两个代理都应加入");
+            assertEquals(10001, details.get(chainedProxies.poll()).proxySocket.getPort(), "较优的代理没有排在前面");
+            assertEquals(10002, details.get(chainedProxies.poll()).proxySocket.getPort());
+        }
+    }
+
+    @Test
+    void pairIsDistinctAndOrdered() {
+        for (int size = 3; size <= 8; size++) {
+            UpstreamProxyPair[] proxyPairs = proxyPairs(size);
+            Set<Integer> firsts = new HashSet<>();
+            for (int round = 0; round < ROUNDS; round++) {
+                Queue<ChainedProxy> chainedProxies = select(proxyPairs);
+                assertEquals(Math.min(size, PowerOfTwoChoices.MAX_SELECTED), chainedProxies.size(),
+                        "加入的代理数不对，size=" + size);
+                assertEquals(chainedProxies.size(), new HashSet<>(chainedProxies).size(), "加入了重复的代理");
+                UpstreamProxyDetail first = details.get(chainedProxies.poll());
+                UpstreamProxyDetail second = details.get(chainedProxies.poll());
+                // 比较的两个代理不同，且较优的在前
+                assertTrue(BY_PORT.compare(first, second) < 0, "较优的代理没有排在前面");
+                firsts.add(first.proxySocket.getPort());
+            }
+            // 最差的代理永远不会是首选，其余的都有机会
+            assertEquals(size - 1, firsts.size(), "首选的分布不对，size=" + size);
+            assertFalse(firsts.contains(10000 + size));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package org.switcher;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.littleshoot.proxy.HttpProxyServer;
+import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResumableDownloadTest {
+    private final static int BODY_SIZE = 1024 * 1024 + 12345;
+
+    /**
+     * 完整的响应在这个位置停住，不是块大小的倍数，续传的范围必须从这里接上
+     */
+    private final static int STALL_AT = 300001;
+
+    private final static long WAIT_MILLIS = 10000;
+
+    private final static String ETAG = "\"v1\"";
+
+    /**
+     * 支持Range的源服务器，完整的响应传到 {@link #STALL_AT} 后停住，直到 {@link #release} 被放开；
+     * 范围请求立即返回，记录每个范围请求的起始位置
+     */
+    private static class Origin {
+        final HttpServer server;
+        final ExecutorService executor;
+        final byte[] body;
+        final Queue<Long> rangeStarts = new ConcurrentLinkedQueue<>();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Origin(byte[] body) throws IOException {
+            this.body = body;
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+            server.createContext("/", exchange -> {
+                Headers headers = exchange.getResponseHeaders();
+                headers.set("Content-Type", "application/octet-stream");
+                headers.set("Accept-Ranges", "bytes");
+                headers.set("ETag", ETAG);
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    if (range == null) {
+                        exchange.sendResponseHeaders(200, body.length);
+                        outputStream.write(body, 0, STALL_AT);
+                        outputStream.flush();
+                        release.await(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                        outputStream.write(body, STALL_AT, body.length - STALL_AT);
+                        return;
+                    }
+                    String[] bounds = range.substring("bytes=".length()).split("-");
+                    int from = Integer.parseInt(bounds[0]);
+                    int to = Math.min(Integer.parseInt(bounds[1]), body.length - 1);
+                    headers.set("Content-Range", "bytes " + from + "-" + to + "/" + body.length);
+                    rangeStarts.add((long) from);
+                    exchange.sendResponseHeaders(206, to - from + 1);
+                    outputStream.write(body, from, to - from + 1);
+                } catch (IOException | InterruptedException ignored) {
+                    // 续传后原来的连接被关闭
+                }
+            });
+            executor = Executors.newCachedThreadPool();
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+        }
+
+        void close() {
+            release.countDown();
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    private Origin origin;
+
+    private HttpProxyServer failingUpstream;
+
+    private HttpProxyServer otherUpstream;
+
+    private SwitcherHttpProxyServer switcherHttpProxyServer;
+
+    private Switcher switcher;
+
+    private UpstreamProxyDetail failing;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        byte[] body = new byte[BODY_SIZE];
+        new Random(0).nextBytes(body);
+        origin = new Origin(body);
+        failingUpstream = DefaultHttpProxyServer.bootstrap().withName("failing").withPort(0).start();
+        otherUpstream = DefaultHttpProxyServer.bootstrap().withName("other").withPort(0).start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (switcherHttpProxyServer != null) {
+            switcherHttpProxyServer.abort();
+        }
+        failingUpstream.abort();
+        otherUpstream.abort();
+        origin.close();
+    }
+
+    /**
+     * 启动Switcher，原始请求只能使用failingUpstream
+     */
+    private void startSwitcher(long stallMillis) {
+        switcherHttpProxyServer = SwitcherHttpProxyServer.bootstrap()
+                .withPort(0)
+                .withResumableDownload(stallMillis)
+                .start();
+        switcher = switcherHttpProxyServer.switcher;
+        failing = switcher.upstreamProxyManager.add(failingUpstream.getListenAddress());
+        switcher.upstreamProxyManager.setDraining(UpstreamProxyManager.DIRECT_CONNECTION, true);
+    }
+
+    /**
+     * 原始请求已经在failingUpstream上，之后的续传可以使用直连和otherUpstream
+     */
+    private void allowOthers() {
+        switcher.upstreamProxyManager.setDraining(UpstreamProxyManager.DIRECT_CONNECTION, false);
+        switcher.upstreamProxyManager.add(otherUpstream.getListenAddress());
+    }
+
+    private Response get() throws IOException {
+        OkHttpClient client = new OkHttpClient();
+        client.setProxy(new Proxy(Proxy.Type.HTTP, switcherHttpProxyServer.getListenAddress()));
+        client.setReadTimeout(30, TimeUnit.SECONDS);
+        return client.newCall(new Request.Builder().url(origin.url()).build()).execute();
+    }
+
+    private static void readFully(InputStream inputStream, ByteArrayOutputStream outputStream, int length)
+            throws IOException {
+        byte[] buffer = new byte[16 * 1024];
+        int n;
+        while (length > 0 && (n = inputStream.read(buffer, 0, Math.min(buffer.length, length))) >= 0) {
+            outputStream.write(buffer, 0, n);
+            length -= n;
+        }
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(message);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 读取停住之前的部分，调用trigger后读取剩余的部分，检查拼接的结果
+     */
+    private void download(Runnable trigger) throws Exception {
+        Response response = get();
+        assertEquals(200, response.code());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(BODY_SIZE);
+        try (InputStream inputStream = response.body().byteStream()) {
+            readFully(inputStream, outputStream, STALL_AT);
+            assertEquals(1, failing.getRelevantConnectionSize(), "原始请求没有使用failingUpstream");
+            allowOthers();
+            trigger.run();
+            readFully(inputStream, outputStream, Integer.MAX_VALUE);
+        }
+        byte[] received = outputStream.toByteArray();
+        assertEquals(BODY_SIZE, received.length, "续传后的响应体长度不对");
+        assertTrue(Arrays.equals(origin.body, received), "续传后的响应体和原始的不同");
+        // 续传从已经交给客户端的位置开始，之前的部分不再请求
+        assertTrue(origin.rangeStarts.contains((long) STALL_AT),
+                "没有从交给客户端的位置续传，范围的起始位置为" + origin.rangeStarts);
+        assertTrue(origin.rangeStarts.stream().allMatch(from -> from >= STALL_AT),
+                "续传时重新请求了已经交给客户端的部分，范围的起始位置为" + origin.rangeStarts);
+        await(() -> failing.getRelevantConnectionSize() == 0, "续传后原来的上游代理仍然计有这个连接");
+    }
+
+    @Test
+    void resumesWhenUpstreamIsRemoved() throws Exception {
+        // 停滞时间足够长，只能由移除触发续传
+        startSwitcher(WAIT_MILLIS * 10);
+        download(() -> switcher.upstreamProxyManager.remove(failingUpstream.getListenAddress()));
+        assertTrue(failing.isRemoved());
+    }
+
+    @Test
+    void resumesWhenStalled() throws Exception {
+        startSwitcher(500);
+        download(() -> {
+            // 源服务器停住后不再有进展，由停滞触发续传
+        });
+        assertFalse(failing.isRemoved());
+    }
+}
@@ -0,0 +1,97 @@
+package org.switcher;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpeedCounterTest {
+    private final static int SIZE = 5;
+    private final static int BYTES = 1000;
+
+    private static SpeedUnsafeRecorder collect(SpeedCounter counter, int resolution, long millis) {
+        SpeedUnsafeRecorder window = new SpeedUnsafeRecorder(SIZE);
+        window.reset(SIZE, resolution, millis);
+        counter.collect(window, millis);
+        return window;
+    }
+
+    @Test
+    void stripesAreMerged() throws InterruptedException {
+        SpeedCounter counter = new SpeedCounter(SIZE, 1000, 4);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    counter.record(1500, BYTES);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        counter.record(1500, BYTES);
+        assertEquals((threads.length * 100 + 1) * BYTES, collect(counter, 1000, 1999).get(0), "分段没有合并");
+    }
+
+    @Test
+    void bucketsAreSeparatedByTimestamp() {
+        SpeedCounter counter = new SpeedCounter(SIZE, 1000, 1);
+        counter.record(1000, BYTES);
+        counter.record(3000, 2 * BYTES);
+        counter.record(3999, 3 * BYTES);
+        SpeedUnsafeRecorder window = collect(counter, 1000, 3500);
+        assertEquals(5 * BYTES, window.get(0));
+        assertEquals(0, window.get(1));
+        assertEquals(BYTES, window.get(2));
+    }
+
+    @Test
+    void staleBucketIsNotReadAfterIdling() {
+        SpeedCounter counter = new SpeedCounter(SIZE, 1000, 1);
+        counter.record(0, BYTES);
+        // 空闲了整个窗口，桶中的旧数据不能再被读出
+        SpeedUnsafeRecorder window = collect(counter, 1000, SIZE * 1000);
+        for (int age = 0; age < SIZE; age++) {
+            assertEquals(0, window.get(age), "过期的桶被读出");
+        }
+        // 新的记录覆盖旧的桶，而不是累加
+        counter.record(SIZE * 1000, 2 * BYTES);
+        assertEquals(2 * BYTES, collect(counter, 1000, SIZE * 1000).get(0), "旧的桶没有被覆盖");
+    }
+
+    @Test
+    void staleBucketIsNotReadAfterFineTimestampWraps() {
+        SpeedCounter counter = new SpeedCounter(SIZE, 10, 1);
+        assertTrue(counter.timestampBits > 24, "细精度时时间戳没有增加位数");
+        counter.record(0, BYTES);
+        // 只用24位时间戳时，10毫秒的桶在2^24个桶之后就会回绕到同一个时间戳
+        long millis = (1L << 24) * 10;
+        SpeedUnsafeRecorder window = collect(counter, 10, millis);
+        assertEquals(0, window.get(0), "时间戳回绕后读出了过期的桶");
+    }
+
+    @Test
+    void fineBucketsAreConvertedToCoarseWindow() {
+        SpeedCounter counter = new SpeedCounter(20, 100, 1);
+        counter.record(1050, BYTES);
+        counter.record(1950, 2 * BYTES);
+        counter.record(2050, 4 * BYTES);
+        // 100毫秒的桶按起始时间合并到1秒的桶中
+        SpeedUnsafeRecorder window = collect(counter, 1000, 2100);
+        assertEquals(4 * BYTES, window.get(0));
+        assertEquals(3 * BYTES, window.get(1), "换算精度后没有合并到同一秒");
+    }
+
+    @Test
+    void fineBucketsKeepTheirResolution() {
+        SpeedCounter counter = new SpeedCounter(SIZE, 100, 1);
+        counter.record(950, BYTES);
+        counter.record(1050, 2 * BYTES);
+        SpeedUnsafeRecorder window = collect(counter, 100, 1099);
+        assertEquals(100, window.getResolution());
+        assertEquals(99, window.getElapsed());
+        assertEquals(2 * BYTES, window.get(0));
+        assertEquals(BYTES, window.get(1), "相同精度时桶的位置不对");
+    }
+}
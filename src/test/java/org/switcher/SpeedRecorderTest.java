@@ -0,0 +1,48 @@
+package org.switcher;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpeedRecorderTest {
+    private final static int BYTES = 5000;
+
+    @Test
+    void childIsMergedIntoParent() {
+        SpeedRecorder parent = new SpeedRecorder();
+        SpeedRecorder child = new SpeedRecorder(parent);
+        SpeedRecorder grandchild = new SpeedRecorder(child);
+        parent.record(BYTES);
+        child.record(BYTES);
+        grandchild.record(BYTES);
+        // 默认5秒的固定窗口
+        assertEquals(3 * BYTES / SpeedRecorder.DEFAULT_SIZE, parent.getSpeed(), "子recorder没有合并到父recorder");
+        assertEquals(2 * BYTES / SpeedRecorder.DEFAULT_SIZE, child.getSpeed());
+        assertEquals(BYTES / SpeedRecorder.DEFAULT_SIZE, grandchild.getSpeed());
+    }
+
+    @Test
+    void tearDownExcludesChild() {
+        SpeedRecorder parent = new SpeedRecorder();
+        SpeedRecorder child = new SpeedRecorder(parent);
+        SpeedRecorder grandchild = new SpeedRecorder(child);
+        parent.record(BYTES);
+        child.record(BYTES);
+        grandchild.record(BYTES);
+        child.tearDown();
+        assertEquals(BYTES / SpeedRecorder.DEFAULT_SIZE, parent.getSpeed(), "停止后仍然计入父recorder");
+        // 停止后的记录也不再计入
+        child.record(BYTES);
+        assertEquals(0, child.getSpeed());
+    }
+
+    @Test
+    void childInheritsEstimator() {
+        SpeedEstimator speedEstimator = new SlidingWindowSpeedEstimator(1000, 100);
+        SpeedRecorder parent = new SpeedRecorder(speedEstimator, 1, null);
+        SpeedRecorder child = new SpeedRecorder(parent);
+        assertSame(speedEstimator, child.getSpeedEstimator(), "子recorder没有沿用父recorder的估计方法");
+        child.record(BYTES);
+        assertTrue(parent.getSpeed() > 0, "细精度的子recorder没有合并到父recorder");
+    }
+}
@@ -0,0 +1,124 @@
+package org.switcher;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TabuTest {
+    private final static InetSocketAddress PROXY = new InetSocketAddress("127.0.0.1", 10001);
+    private final static InetSocketAddress OTHER_PROXY = new InetSocketAddress("127.0.0.1", 10002);
+    private final static String HOST = "example.com";
+
+    private Tabu tabu;
+
+    @BeforeEach
+    void setUp() {
+        tabu = new Switcher().tabu;
+    }
+
+    @Test
+    void backoffGrowsUntilMax() {
+        long millis = 0;
+        long backoff = Tabu.BASE_BACKOFF;
+        for (int failures = 1; failures <= 12; failures++) {
+            tabu.fail(PROXY, HOST, millis);
+            assertTrue(tabu.isTabu(PROXY, HOST, millis + backoff - 1), "第" + failures + "次失败后没有被禁忌");
+            assertFalse(tabu.isTabu(PROXY, HOST, millis + backoff), "第" + failures + "次失败后禁忌时间不对");
+            // 禁忌刚结束就再次失败
+            millis += backoff;
+            backoff = Math.min(backoff * 2, Tabu.MAX_BACKOFF);
+        }
+        assertEquals(Tabu.MAX_BACKOFF, backoff);
+    }
+
+    @Test
+    void failuresAreForgottenAfterMaxBackoff() {
+        tabu.fail(PROXY, HOST, 0);
+        tabu.fail(PROXY, HOST, Tabu.BASE_BACKOFF);
+        // 距离上次禁忌结束超过MAX_BACKOFF，重新计数
+        long millis = 3 * Tabu.BASE_BACKOFF + Tabu.MAX_BACKOFF + 1;
+        tabu.fail(PROXY, HOST, millis);
+        assertFalse(tabu.isTabu(PROXY, HOST, millis + Tabu.BASE_BACKOFF), "旧的失败次数没有被遗忘");
+    }
+
+    @Test
+    void hostAndAnyHost() {
+        tabu.fail(PROXY, HOST, 0);
+        assertTrue(tabu.isTabu(PROXY, HOST, 0));
+        assertFalse(tabu.isTabu(PROXY, "other.com", 0), "其它服务器不应被禁忌");
+        assertFalse(tabu.isTabu(OTHER_PROXY, HOST, 0), "其它代理不应被禁忌");
+        // 代理本身失败时，访问任何服务器都被禁忌
+        tabu.fail(OTHER_PROXY, Tabu.ANY_HOST, 0);
+        assertTrue(tabu.isTabu(OTHER_PROXY, HOST, 0));
+        assertTrue(tabu.isTabu(OTHER_PROXY, "other.com", 0));
+    }
+
+    @Test
+    void isActiveResets() {
+        assertFalse(tabu.isActive(0));
+        tabu.fail(PROXY, HOST, 0);
+        assertTrue(tabu.isActive(0));
+        // 过期后记录还在，但没有正在被禁忌的
+        assertFalse(tabu.isActive(Tabu.BASE_BACKOFF), "过期后仍然是active");
+        assertEquals(1, tabu.size());
+
+        tabu.fail(PROXY, HOST, 2 * Tabu.BASE_BACKOFF);
+        assertTrue(tabu.isActive(2 * Tabu.BASE_BACKOFF));
+        tabu.succeed(PROXY, HOST);
+        assertTrue(tabu.isEmpty());
+        assertFalse(tabu.isActive(2 * Tabu.BASE_BACKOFF), "成功后仍然是active");
+        assertFalse(tabu.isTabu(PROXY, HOST, 2 * Tabu.BASE_BACKOFF));
+    }
+
+    @Test
+    void evictsLeastRecentlyAccessed() {
+        int capacity = 8;
+        tabu.setCapacity(capacity);
+        for (int i = 0; i < capacity; i++) {
+            tabu.fail(PROXY, "host" + i, i);
+        }
+        assertEquals(capacity, tabu.size());
+        // 访问过的记录不会被先淘汰
+        assertTrue(tabu.isTabu(PROXY, "host0", capacity));
+        tabu.fail(PROXY, "host" + capacity, capacity + 1);
+        int remaining = (int) (capacity * Tabu.EVICT_RATIO);
+        assertEquals(remaining, tabu.size(), "没有淘汰到容量的7/8");
+        assertTrue(tabu.isTabu(PROXY, "host0", capacity + 1));
+        assertFalse(tabu.isTabu(PROXY, "host1", capacity + 1), "最久没有被访问的记录没有被淘汰");
+        assertFalse(tabu.isTabu(PROXY, "host2", capacity + 1), "最久没有被访问的记录没有被淘汰");
+        for (int i = 3; i <= capacity; i++) {
+            assertTrue(tabu.isTabu(PROXY, "host" + i, capacity + 1));
+        }
+
+        // 淘汰之后的失败不会立即再次淘汰
+        tabu.fail(PROXY, "host1", capacity + 2);
+        assertEquals(remaining + 1, tabu.size());
+    }
+
+    @Test
+    void evictsExpiredFirst() {
+        int capacity = 4;
+        tabu.setCapacity(capacity);
+        tabu.fail(PROXY, "expired", 0);
+        long millis = Tabu.BASE_BACKOFF + Tabu.MAX_BACKOFF + 1;
+        for (int i = 0; i < capacity - 1; i++) {
+            tabu.fail(PROXY, "host" + i, millis);
+        }
+        // 过期的记录最近被访问过，但仍然先被淘汰
+        assertFalse(tabu.isTabu(PROXY, "expired", millis + 1));
+        tabu.fail(PROXY, "host" + (capacity - 1), millis + 2);
+        assertEquals((int) (capacity * Tabu.EVICT_RATIO), tabu.size());
+        // 先淘汰过期的，再淘汰最久没有被访问的一个，而不是两个都按访问时间淘汰
+        int remaining = 0;
+        for (int i = 0; i < capacity - 1; i++) {
+            if (tabu.isTabu(PROXY, "host" + i, millis + 2)) {
+                ++remaining;
+            }
+        }
+        assertEquals(capacity - 2, remaining, "过期的记录没有被先淘汰");
+        assertTrue(tabu.isTabu(PROXY, "host" + (capacity - 1), millis + 2), "新的记录被淘汰了");
+    }
+}
@@ -0,0 +1,73 @@
+package org.switcher;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+    private final static long RATE = 1_000_000;
+    private final static long BURST = 100_000;
+    private final static long MILLIS = 1000_000L;
+
+    @Test
+    void unlimitedNeverPauses() {
+        TokenBucket tokenBucket = new TokenBucket();
+        assertEquals(0, tokenBucket.consume(100 * BURST, System.nanoTime()));
+    }
+
+    @Test
+    void burstPassesWithoutPause() {
+        TokenBucket tokenBucket = new TokenBucket();
+        tokenBucket.setRate(RATE, BURST);
+        assertEquals(0, tokenBucket.consume(BURST, System.nanoTime()), "突发量以内不应暂停");
+    }
+
+    @Test
+    void debtAccumulates() {
+        TokenBucket tokenBucket = new TokenBucket();
+        tokenBucket.setRate(RATE, BURST);
+        long nanos = System.nanoTime();
+        // 2倍突发量需要0.2秒，允许0.1秒的突发，欠0.1秒
+        assertEquals(100 * MILLIS, tokenBucket.consume(2 * BURST, nanos));
+        assertEquals(200 * MILLIS, tokenBucket.consume(BURST, nanos), "欠账没有累积");
+    }
+
+    @Test
+    void debtIsRepaidOverTime() {
+        TokenBucket tokenBucket = new TokenBucket();
+        tokenBucket.setRate(RATE, BURST);
+        long nanos = System.nanoTime();
+        assertEquals(100 * MILLIS, tokenBucket.consume(2 * BURST, nanos));
+        assertEquals(0, tokenBucket.consume(BURST, nanos + 200 * MILLIS), "暂停后欠账没有还清");
+        // 空闲再久，突发量也不会超过burst
+        assertEquals(100 * MILLIS, tokenBucket.consume(2 * BURST, nanos + 10_000 * MILLIS));
+    }
+
+    @Test
+    void setRateClearsDebt() {
+        TokenBucket tokenBucket = new TokenBucket();
+        tokenBucket.setRate(RATE, BURST);
+        assertTrue(tokenBucket.consume(10 * BURST, System.nanoTime()) > 0);
+        tokenBucket.setRate(RATE, BURST);
+        assertEquals(0, tokenBucket.consume(BURST, System.nanoTime()), "修改速率后欠账没有清除");
+    }
+
+    @Test
+    void defaultBurst() {
+        TokenBucket tokenBucket = new TokenBucket();
+        tokenBucket.setRate(RATE);
+        assertEquals(RATE / 10, tokenBucket.getBurst());
+        tokenBucket.setRate(1000);
+        assertEquals(16 * 1024, tokenBucket.getBurst(), "突发量不应小于最小值");
+    }
+
+    @Test
+    void illegalArgumentsFallBack() {
+        TokenBucket tokenBucket = new TokenBucket();
+        tokenBucket.setRate(-1, BURST);
+        assertEquals(0, tokenBucket.getRate());
+        tokenBucket.setRate(RATE, 0);
+        assertEquals(RATE, tokenBucket.getRate());
+        assertEquals(16 * 1024, tokenBucket.getBurst());
+    }
+}
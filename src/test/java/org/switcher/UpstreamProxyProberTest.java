@@ -0,0 +1,154 @@
+package org.switcher;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpstreamProxyProberTest {
+    private final static long INTERVAL_MILLIS = 50;
+    private final static int TIMEOUT_MILLIS = 1000;
+    private final static long WAIT_MILLIS = 5000;
+
+    /**
+     * 本地的替身上游代理，对CONNECT请求返回200或502
+     */
+    private static class StandInProxy implements AutoCloseable {
+        final ServerSocket serverSocket;
+
+        volatile boolean failing;
+
+        StandInProxy() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(this::serve, "stand-in-proxy");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress address() {
+            return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+        }
+
+        private void serve() {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    readHead(socket.getInputStream());
+                    OutputStream outputStream = socket.getOutputStream();
+                    outputStream.write((failing ? "HTTP/1.1 502 Bad Gateway\r\n\r\n" :
+                            "HTTP/1.1 200 Connection established\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                    outputStream.flush();
+                } catch (IOException e) {
+                    // 关闭或探测超时，继续等待下一个连接
+                }
+            }
+        }
+
+        /**
+         * 读到空行为止，直连的探测不发送任何内容，读到流结束
+         */
+        private static void readHead(InputStream inputStream) throws IOException {
+            int matched = 0;
+            int c;
+            while (matched < 4 && (c = inputStream.read()) != -1) {
+                matched = c == "\r\n\r\n".charAt(matched) ? matched + 1 : c == '\r' ? 1 : 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    private StandInProxy standInProxy;
+
+    private Switcher switcher;
+
+    private UpstreamProxyDetail upstreamProxyDetail;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        standInProxy = new StandInProxy();
+        switcher = new Switcher();
+        upstreamProxyDetail = switcher.upstreamProxyManager.add(standInProxy.address());
+        // 探测的目标也是替身，直连的探测只需要能建立连接
+        switcher.prober.start(standInProxy.address(), INTERVAL_MILLIS, TIMEOUT_MILLIS);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        switcher.prober.stop();
+        standInProxy.close();
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(message);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void healthyUpstreamHasRtt() throws InterruptedException {
+        UpstreamProxyHealth health = upstreamProxyDetail.health;
+        await(() -> health.getRtt() > 0, "没有成功的探测");
+        assertFalse(health.isDown());
+        assertEquals(1, health.getSuccessRate(), 0);
+        assertFalse(switcher.prober.isAnyDown());
+    }
+
+    @Test
+    void failingUpstreamIsMarkedDownAndRecovers() throws InterruptedException {
+        UpstreamProxyHealth health = upstreamProxyDetail.health;
+        standInProxy.failing = true;
+        await(health::isDown, "连续失败后没有被标记为不可用");
+        await(switcher.prober::isAnyDown, "anyDown没有更新");
+        await(() -> !isSelectable(), "不可用的上游代理仍在可选择的快照中");
+        assertTrue(health.getSuccessRate() < 1);
+
+        standInProxy.failing = false;
+        await(() -> !health.isDown(), "恢复后仍被标记为不可用");
+        await(() -> !switcher.prober.isAnyDown(), "anyDown没有清除");
+        await(this::isSelectable, "恢复后没有回到可选择的快照中");
+    }
+
+    private boolean isSelectable() {
+        for (UpstreamProxyPair upstreamProxyPair : switcher.upstreamProxyManager.selectable()) {
+            if (upstreamProxyPair.upstreamProxyDetail == upstreamProxyDetail) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    void removingDownUpstreamClearsAnyDown() throws InterruptedException {
+        standInProxy.failing = true;
+        await(switcher.prober::isAnyDown, "连续失败后没有被标记为不可用");
+        switcher.prober.stop();
+        switcher.upstreamProxyManager.remove(standInProxy.address());
+        assertFalse(switcher.prober.isAnyDown());
+    }
+
+    @Test
+    void invalidArgumentsFallBackToDefaults() throws InterruptedException {
+        switcher.prober.stop();
+        assertDoesNotThrow(() -> switcher.prober.start(null, 0, -1));
+        // 替身对CONNECT总是返回200，探测默认的目标也能成功
+        await(() -> upstreamProxyDetail.health.getRtt() > 0, "没有成功的探测");
+    }
+}
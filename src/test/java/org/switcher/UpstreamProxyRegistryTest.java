@@ -0,0 +1,161 @@
+package org.switcher;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpstreamProxyRegistryTest {
+    private final static InetSocketAddress FIRST = new InetSocketAddress("127.0.0.1", 10001);
+    private final static InetSocketAddress SECOND = new InetSocketAddress("127.0.0.1", 10002);
+
+    private final List<UpstreamProxyRegistry.GroupEntry> groupEntries = new ArrayList<>();
+    private final List<UpstreamProxyRegistry.UpstreamEntry> upstreamEntries = new ArrayList<>();
+
+    private Switcher switcher;
+
+    private Path path;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        switcher = new Switcher();
+        path = Files.createTempFile("upstreams", ".conf");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        switcher.registry.stop();
+        Files.deleteIfExists(path);
+    }
+
+    private void parse(String content) {
+        UpstreamProxyRegistry.parse(content, groupEntries, upstreamEntries);
+    }
+
+    private void assertParseError(String content, String message) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> parse(content));
+        assertTrue(e.getMessage().contains(message), "错误信息为" + e.getMessage());
+    }
+
+    private boolean load(String content) throws IOException {
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        return switcher.registry.load(path);
+    }
+
+    @Test
+    void parsesGroupsAndUpstreams() {
+        parse("# 注释\n" +
+                "\n" +
+                "group name=campus-a weight=2 read=10485760 write=1048576\r\n" +
+                "  upstream host=10.0.0.1 port=1080 group=campus-a  \n" +
+                "upstream host=proxy.example.com port=8080 weight=3 read=100 write=200\n");
+        assertEquals(1, groupEntries.size());
+        UpstreamProxyRegistry.GroupEntry groupEntry = groupEntries.get(0);
+        assertEquals("campus-a", groupEntry.name);
+        assertEquals(2, groupEntry.weight);
+        assertEquals(10485760, groupEntry.readQuota);
+        assertEquals(1048576, groupEntry.writeQuota);
+
+        assertEquals(2, upstreamEntries.size());
+        UpstreamProxyRegistry.UpstreamEntry first = upstreamEntries.get(0);
+        assertEquals("10.0.0.1:1080", first.key());
+        assertEquals("campus-a", first.groupName);
+        assertEquals(UpstreamProxyGroup.DEFAULT_WEIGHT, first.weight, "没有设置时应为默认权重");
+        assertEquals(0, first.readThrottle, "没有设置时应不限速");
+        UpstreamProxyRegistry.UpstreamEntry second = upstreamEntries.get(1);
+        assertNull(second.groupName);
+        assertEquals(3, second.weight);
+        assertEquals(100, second.readThrottle);
+        assertEquals(200, second.writeThrottle);
+    }
+
+    @Test
+    void errorsHaveLineNumbers() {
+        assertParseError("group name=a\n\nupstream host=h port=1 group=b", "第3行");
+        assertParseError("upstream host=h", "缺少port");
+        assertParseError("upstream port=1", "缺少host");
+        assertParseError("group weight=1", "缺少name");
+        assertParseError("proxy host=h port=1", "未知的类型");
+        assertParseError("upstream host=h port=1 color=red", "未知的字段");
+        assertParseError("upstream host=h port", "应为key=value");
+    }
+
+    @Test
+    void invalidValuesAreRejected() {
+        assertParseError("upstream host=h port=65536", "超出范围");
+        assertParseError("upstream host=h port=0", "必须大于0");
+        assertParseError("upstream host=h port=abc", "第1行");
+        assertParseError("group name=a weight=-1", "必须大于0");
+        assertParseError("group name=a read=-1", "不能小于0");
+    }
+
+    @Test
+    void duplicatesAndUndeclaredGroupsAreRejected() {
+        assertParseError("group name=a\ngroup name=a", "重复的组");
+        assertParseError("upstream host=h port=1\nupstream host=h port=1 weight=2", "重复的上游代理");
+        assertParseError("upstream host=h port=1 group=a\ngroup name=a", "没有在之前声明");
+    }
+
+    @Test
+    void malformedFileKeepsCurrentUpstreams() throws IOException {
+        assertTrue(load("upstream host=127.0.0.1 port=10001\n"));
+        assertFalse(load("upstream host=127.0.0.1 port=10001\nupstream host=127.0.0.1\n"));
+        assertNotNull(switcher.upstreamProxyManager.getDetail(FIRST));
+    }
+
+    @Test
+    void removedUpstreamIsDrained() throws IOException {
+        assertTrue(load("upstream host=127.0.0.1 port=10001\nupstream host=127.0.0.1 port=10002\n"));
+        assertNotNull(switcher.upstreamProxyManager.getDetail(SECOND));
+        assertTrue(load("upstream host=127.0.0.1 port=10001\n"));
+        // 没有连接，立即排空并移除
+        assertNull(switcher.upstreamProxyManager.getDetail(SECOND));
+        assertNotNull(switcher.upstreamProxyManager.getDetail(FIRST));
+    }
+
+    @Test
+    void movedUpstreamIsReaddedWithNewGroup() throws IOException {
+        assertTrue(load("group name=a\ngroup name=b\nupstream host=127.0.0.1 port=10001 group=a weight=2\n"));
+        UpstreamProxyDetail before = switcher.upstreamProxyManager.getDetail(FIRST);
+        assertEquals("a", before.group.name);
+        assertTrue(load("group name=a\ngroup name=b\nupstream host=127.0.0.1 port=10001 group=b weight=2\n"));
+        UpstreamProxyDetail after = switcher.upstreamProxyManager.getDetail(FIRST);
+        assertNotSame(before, after, "换组应重新创建");
+        assertEquals("b", after.group.name);
+        assertEquals(2, after.getWeight());
+        assertFalse(after.isDraining());
+    }
+
+    @Test
+    void upstreamAddedElsewhereIsNotManaged() throws IOException {
+        switcher.upstreamProxyManager.add(FIRST);
+        assertTrue(load("upstream host=127.0.0.1 port=10001\nupstream host=127.0.0.1 port=10002\n"));
+        assertTrue(load("upstream host=127.0.0.1 port=10002\n"));
+        UpstreamProxyDetail upstreamProxyDetail = switcher.upstreamProxyManager.getDetail(FIRST);
+        assertNotNull(upstreamProxyDetail, "不是由注册表添加的上游代理被移除");
+        assertFalse(upstreamProxyDetail.isDraining());
+    }
+
+    @Test
+    void drainingUpstreamStaysInSnapshot() {
+        switcher.upstreamProxyManager.add(FIRST);
+        assertTrue(switcher.registry.drain(FIRST));
+        boolean inSnapshot = false;
+        for (UpstreamProxyPair upstreamProxyPair : switcher.upstreamProxyManager.snapshot()) {
+            inSnapshot |= upstreamProxyPair.proxySocket.equals(FIRST);
+        }
+        assertTrue(inSnapshot, "排空的上游代理应保留在快照中");
+        for (UpstreamProxyPair upstreamProxyPair : switcher.upstreamProxyManager.selectable()) {
+            assertNotEquals(FIRST, upstreamProxyPair.proxySocket, "排空的上游代理不应被选择");
+        }
+    }
+}